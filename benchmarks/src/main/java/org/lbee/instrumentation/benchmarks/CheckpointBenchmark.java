@@ -0,0 +1,100 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.clock.ClockException;
+import org.lbee.instrumentation.clock.ClockFactory;
+import org.lbee.instrumentation.trace.TLATracer;
+import org.lbee.instrumentation.trace.TraceFormat;
+import org.lbee.instrumentation.trace.UpdateScope;
+import org.lbee.instrumentation.trace.VirtualField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the events with a checkpoint every given number of events (0:
+ * no checkpoint), for a variable of a given number of elements of which each
+ * event updates one. The <code>bytes</code> secondary result is the throughput
+ * of serialized bytes, checkpoints included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CheckpointBenchmark {
+    @Param({ "0", "100", "1000", "10000" })
+    public long interval;
+
+    @Param({ "100", "10000" })
+    public int stateSize;
+
+    @Param({ "GLOBAL", "PER_THREAD" })
+    public UpdateScope scope;
+
+    private TLATracer tracer;
+    private VirtualField log;
+    private List<Long> values;
+    private long index;
+
+    /**
+     * Bytes serialized.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Written {
+        public long bytes;
+        private long start;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            start = CountingSink.written();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws ClockException {
+        tracer = TLATracer.getTracer(new CountingSink(), ClockFactory.getClock(ClockFactory.MEMORY), scope,
+                TraceFormat.NDJSON);
+        values = new ArrayList<>(stateSize);
+        for (int i = 0; i < stateSize; i++) {
+            values.add(0L);
+        }
+        log = tracer.getVariableTracer("log");
+        tracer.registerSnapshot("log", () -> new ArrayList<>(values));
+        tracer.setCheckpointInterval(interval, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tracer.close();
+    }
+
+    @Benchmark
+    public long event(Written written) throws IOException {
+        final int i = (int) (index++ % stateSize);
+        values.set(i, index);
+        log.getField(i + 1).update(index);
+        final long clock = tracer.log("Step");
+        written.bytes = CountingSink.written() - written.start;
+        return clock;
+    }
+}
@@ -0,0 +1,121 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.clock.ClientClock;
+import org.lbee.instrumentation.clock.ClockException;
+import org.lbee.instrumentation.clock.ClockFactory;
+import org.lbee.instrumentation.clock.HybridClock;
+import org.lbee.instrumentation.clock.InstrumentationClock;
+import org.lbee.instrumentation.clock.ServerClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link InstrumentationClock#getNextTime(long)} for the
+ * MEMORY and FILE clocks, for a FILE clock mapped by each thread as it is by
+ * the processes sharing it (FILE_SHARED), for a {@link ClientClock} of a local
+ * {@link ServerClock}, asking the server for each time (SERVER) or reserving
+ * blocks of 100 times (SERVER_BLOCK), and for a {@link HybridClock} (HYBRID),
+ * at 1 and 4 threads sharing the clock.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClockBenchmark {
+    public enum Clock {
+        MEMORY, FILE, FILE_SHARED, SERVER, SERVER_BLOCK, HYBRID
+    }
+
+    @Param({ "MEMORY", "FILE", "FILE_SHARED", "SERVER", "SERVER_BLOCK", "HYBRID" })
+    public Clock clock;
+
+    private InstrumentationClock instrumentationClock;
+    private ServerClock server;
+    private File file;
+
+    /**
+     * Clock of a process using the shared clock.
+     */
+    @State(Scope.Thread)
+    public static class Process {
+        long time;
+        // Own mapping of the clock file (FILE_SHARED), the shared clock otherwise
+        InstrumentationClock clock;
+
+        @Setup(Level.Trial)
+        public void setup(ClockBenchmark benchmark) throws IOException, ClockException {
+            clock = benchmark.clock == Clock.FILE_SHARED
+                    ? ClockFactory.getClock(ClockFactory.FILE, benchmark.file.getPath())
+                    : benchmark.instrumentationClock;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ClockException {
+        switch (clock) {
+            case FILE:
+            case FILE_SHARED:
+                file = File.createTempFile("clock-benchmark", ".clock");
+                instrumentationClock = ClockFactory.getClock(ClockFactory.FILE, file.getPath());
+                break;
+            case SERVER:
+            case SERVER_BLOCK:
+                server = new ServerClock();
+                server.startInBackground(0);
+                instrumentationClock = ClockFactory.getClock(ClockFactory.SERVER, "localhost",
+                        String.valueOf(server.getLocalPort()), clock == Clock.SERVER ? "1" : "100");
+                break;
+            case HYBRID:
+                instrumentationClock = ClockFactory.getClock(ClockFactory.HYBRID);
+                break;
+            default:
+                instrumentationClock = ClockFactory.getClock(ClockFactory.MEMORY);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (instrumentationClock instanceof ClientClock) {
+            ((ClientClock) instrumentationClock).stopConnection();
+        }
+        if (server != null) {
+            server.stop();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long nextTime1(Process process) {
+        process.time = process.clock.getNextTime(process.time);
+        return process.time;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long nextTime4(Process process) {
+        process.time = process.clock.getNextTime(process.time);
+        return process.time;
+    }
+}
@@ -0,0 +1,96 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.clock.ClockException;
+import org.lbee.instrumentation.clock.ClockFactory;
+import org.lbee.instrumentation.trace.TLATracer;
+import org.lbee.instrumentation.trace.TraceFormat;
+import org.lbee.instrumentation.trace.UpdateScope;
+import org.lbee.instrumentation.trace.VirtualField;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the events when the same fields are modified several times
+ * between two logs, with and without coalescing the changes. The
+ * <code>bytes</code> secondary result is the throughput of serialized bytes
+ * (divide by the events per second to get the size of an event).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CoalescingBenchmark {
+    @Param({ "1", "8" })
+    public int changesPerEvent;
+
+    @Param({ "false", "true" })
+    public boolean coalescing;
+
+    private TLATracer tracer;
+    private VirtualField commitIndex;
+    private VirtualField votes;
+    private VirtualField log;
+    private long index;
+
+    /**
+     * Bytes serialized.
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Written {
+        public long bytes;
+        private long start;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            start = CountingSink.written();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws ClockException {
+        tracer = TLATracer.getTracer(new CountingSink(), ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.PER_THREAD, TraceFormat.NDJSON);
+        tracer.setCoalescing(coalescing);
+        commitIndex = tracer.getVariableTracer("commitIndex").getField(1);
+        votes = tracer.getVariableTracer("votes").getField(1);
+        log = tracer.getVariableTracer("log").getField(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tracer.close();
+    }
+
+    @Benchmark
+    public long event(Written written) throws IOException {
+        for (int i = 0; i < changesPerEvent; i++) {
+            commitIndex.update(index + i);
+            votes.add(i % 3);
+            log.append(index + i);
+        }
+        index += changesPerEvent;
+        final long clock = tracer.log("Step");
+        written.bytes = CountingSink.written() - written.start;
+        return clock;
+    }
+}
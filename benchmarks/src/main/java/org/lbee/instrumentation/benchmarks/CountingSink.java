@@ -0,0 +1,36 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.trace.TraceSink;
+
+/**
+ * A sink discarding the events, counting the bytes written by each thread
+ * (the events are written by the thread logging them).
+ */
+final class CountingSink implements TraceSink {
+    private static final ThreadLocal<long[]> WRITTEN = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * @return the number of bytes written by the calling thread
+     */
+    static long written() {
+        return WRITTEN.get()[0];
+    }
+
+    @Override
+    public void write(byte[] event, int offset, int length) {
+        WRITTEN.get()[0] += length;
+    }
+
+    @Override
+    public boolean isContiguous() {
+        return true;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,125 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.clock.ClockException;
+import org.lbee.instrumentation.clock.ClockFactory;
+import org.lbee.instrumentation.trace.TLATracer;
+import org.lbee.instrumentation.trace.TraceFormat;
+import org.lbee.instrumentation.trace.UpdateScope;
+import org.lbee.instrumentation.trace.VirtualField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of notifying a change of a field, depending on the depth of its path:
+ * with a handle kept by the caller (boxed or primitive value), with a handle
+ * looked up from the variable for each change (cached handles), and with the
+ * public {@link TLATracer#notifyChange(String, List, String, List)}. When the
+ * variable is not traced (<code>traced=false</code>), the changes are dropped
+ * by the filter.
+ *
+ * The changes are committed by a log every {@value #BATCH} changes (to a sink
+ * discarding the events), so the cost of a change includes its share of the
+ * serialization of the event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FieldBenchmark {
+    static final int BATCH = 256;
+
+    @Param({ "1", "2", "4", "8" })
+    public int depth;
+
+    @Param({ "true", "false" })
+    public boolean traced;
+
+    private TLATracer tracer;
+    private VirtualField variable;
+    private VirtualField field;
+    private List<Object> path;
+
+    @Setup(Level.Trial)
+    public void setup() throws ClockException {
+        tracer = TLATracer.getTracer(new CountingSink(), ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.PER_THREAD, TraceFormat.NDJSON);
+        if (!traced) {
+            tracer.getFilter().disable("nodes");
+        }
+        variable = tracer.getVariableTracer("nodes");
+        field = variable;
+        path = new ArrayList<>();
+        for (int i = 0; i < depth; i++) {
+            final Object segment = i % 2 == 0 ? "field" + i : (Object) i;
+            path.add(segment);
+            field = segment instanceof String ? field.getField((String) segment) : field.getField((Integer) segment);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tracer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long updateBoxed() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            field.update((Object) Long.valueOf(i + 1000));
+        }
+        return tracer.log();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long updatePrimitive() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            field.update(i + 1000L);
+        }
+        return tracer.log();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long lookupAndUpdate() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            VirtualField current = variable;
+            for (int d = 0; d < depth; d++) {
+                final Object segment = path.get(d);
+                current = segment instanceof String ? current.getField((String) segment)
+                        : current.getField((Integer) segment);
+            }
+            current.update(i + 1000L);
+        }
+        return tracer.log();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long notifyChange() throws IOException {
+        for (int i = 0; i < BATCH; i++) {
+            tracer.notifyChange("nodes", path, "Update", List.of(i + 1000L));
+        }
+        return tracer.log();
+    }
+}
@@ -0,0 +1,140 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.trace.TraceIndex;
+import org.lbee.instrumentation.trace.TraceIndexBuilder;
+import org.lbee.instrumentation.trace.TraceIndexWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of finding an event in a merged trace (4 loggers, clocks in order)
+ * with its sidecar index, against a scan of the trace: the event with a random
+ * clock, the nth event of a random logger, and all the events of a rare name
+ * (1% of the events). The trace is in the page cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+    private static final String[] LOGGERS = { "n0", "n1", "n2", "n3" };
+
+    @Param({ "100000", "1000000" })
+    public int events;
+
+    private File trace;
+    private TraceIndex index;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        trace = File.createTempFile("trace", ".ndjson");
+        final Random values = new Random(1);
+        try (BufferedWriter out = Files.newBufferedWriter(trace.toPath(), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < events; i++) {
+                final String logger = LOGGERS[values.nextInt(LOGGERS.length)];
+                final String event = i % 100 == 0 ? "Tick" : values.nextBoolean() ? "Append" : "Vote";
+                out.write("{\"clock\":" + i + ",\"log\":[{\"op\":\"AppendElement\",\"path\":[\"" + logger
+                        + "\"],\"args\":[{\"value\":\"payload " + values.nextInt() + "\",\"term\":" + i / 1000
+                        + "}]}],\"event\":\"" + event + "\",\"event_args\":[\"" + logger + "\"," + i
+                        + "],\"logger\":\"" + logger + "\"}");
+                out.newLine();
+            }
+        }
+        TraceIndexBuilder.build(trace.getPath(), trace.getPath() + ".idx", TraceIndexWriter.DEFAULT_BLOCK_SIZE);
+        index = TraceIndex.open(trace.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        index.close();
+        new File(trace.getPath() + ".idx").delete();
+        trace.delete();
+    }
+
+    @Benchmark
+    public String seekClock() throws IOException {
+        return index.readEvent(index.findClock(random.nextInt(events)));
+    }
+
+    @Benchmark
+    public String scanClock() throws IOException {
+        final String prefix = "{\"clock\":" + random.nextInt(events) + ",";
+        try (BufferedReader reader = Files.newBufferedReader(trace.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String seekNth() throws IOException {
+        final String logger = LOGGERS[random.nextInt(LOGGERS.length)];
+        return index.readEvent(index.findNth(logger, random.nextInt((int) index.getEvents(logger))));
+    }
+
+    @Benchmark
+    public String scanNth() throws IOException {
+        final String suffix = "\"logger\":\"" + LOGGERS[random.nextInt(LOGGERS.length)] + "\"}";
+        long n = random.nextInt(events / LOGGERS.length);
+        try (BufferedReader reader = Files.newBufferedReader(trace.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.endsWith(suffix) && n-- == 0) {
+                    return line;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public long seekEvents() throws IOException {
+        long length = 0;
+        for (long offset : index.findEvents("Tick")) {
+            length += index.readEvent(offset).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public long scanEvents() throws IOException {
+        long length = 0;
+        try (BufferedReader reader = Files.newBufferedReader(trace.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains("\"event\":\"Tick\"")) {
+                    length += line.length();
+                }
+            }
+        }
+        return length;
+    }
+}
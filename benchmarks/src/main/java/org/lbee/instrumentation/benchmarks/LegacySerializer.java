@@ -0,0 +1,66 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.helper.NDJsonSerializer;
+import org.lbee.instrumentation.helper.TLASerializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The serialization of the values by a chain of <code>instanceof</code>
+ * checks, as done by {@link NDJsonSerializer} before the dispatch on the
+ * cached type of the classes. Baseline of {@link SerializationBenchmark}.
+ */
+final class LegacySerializer {
+    private LegacySerializer() {
+    }
+
+    static void writeValue(JsonWriter out, Object propertyValue) throws IllegalAccessException, IOException {
+        if (propertyValue == null)
+            out.nullValue();
+        else if (propertyValue instanceof String)
+            out.value((String) propertyValue);
+        else if (propertyValue instanceof Boolean)
+            out.value((Boolean) propertyValue);
+        else if (propertyValue instanceof Number)
+            out.value((Number) propertyValue);
+        else if (propertyValue instanceof Character)
+            out.value(propertyValue.toString());
+        else if (propertyValue instanceof Enum<?>)
+            out.value(((Enum<?>) propertyValue).ordinal());
+        else if (propertyValue instanceof Object[])
+            writeArray(out, Arrays.asList((Object[]) propertyValue));
+        else if (propertyValue instanceof List<?>)
+            writeArray(out, (List<?>) propertyValue);
+        else if (propertyValue instanceof HashSet<?>)
+            writeArray(out, (HashSet<?>) propertyValue);
+        else if (propertyValue instanceof Map<?, ?>)
+            writeObject(out, (Map<?, ?>) propertyValue);
+        else if (propertyValue instanceof TLASerializer)
+            NDJsonSerializer.writeElement(out, ((TLASerializer) propertyValue).tlaSerialize());
+        else
+            throw new IllegalAccessException("Unknown");
+    }
+
+    private static void writeArray(JsonWriter out, Iterable<?> list) throws IllegalAccessException, IOException {
+        out.beginArray();
+        for (Object e : list) {
+            writeValue(out, e);
+        }
+        out.endArray();
+    }
+
+    private static void writeObject(JsonWriter out, Map<?, ?> map) throws IllegalAccessException, IOException {
+        out.beginObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            out.name(entry.getKey().toString());
+            writeValue(out, entry.getValue());
+        }
+        out.endObject();
+    }
+}
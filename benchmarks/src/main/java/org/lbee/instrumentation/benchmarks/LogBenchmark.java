@@ -0,0 +1,150 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.clock.ClockException;
+import org.lbee.instrumentation.clock.ClockFactory;
+import org.lbee.instrumentation.trace.AsyncTraceSink;
+import org.lbee.instrumentation.trace.FileTraceSink;
+import org.lbee.instrumentation.trace.TLATracer;
+import org.lbee.instrumentation.trace.TraceFormat;
+import org.lbee.instrumentation.trace.TraceSink;
+import org.lbee.instrumentation.trace.UpdateScope;
+import org.lbee.instrumentation.trace.VirtualField;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link TLATracer#log(String, Object[])} at 1, 8 and 32
+ * logging threads: each event changes two fields and has two arguments. The
+ * parameters select the sink (discarding the events, {@link FileTraceSink} or
+ * {@link AsyncTraceSink}), the scope of the changes and the format of the
+ * trace. With the discarding sink, the <code>bytes</code> secondary result is
+ * the throughput of serialized bytes (divide by the events per second to get
+ * the size of an event).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogBenchmark {
+    public enum Sink {
+        DISCARD, FILE, ASYNC
+    }
+
+    @Param({ "DISCARD", "FILE", "ASYNC" })
+    public Sink sink;
+
+    @Param({ "GLOBAL", "PER_THREAD" })
+    public UpdateScope scope;
+
+    @Param({ "NDJSON", "BINARY" })
+    public TraceFormat format;
+
+    private File file;
+    private TLATracer tracer;
+    private VirtualField logs;
+    private VirtualField terms;
+    private final AtomicInteger producers = new AtomicInteger();
+
+    /**
+     * State of a logging thread.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        int id;
+        long index;
+
+        @Setup(Level.Trial)
+        public void setup(LogBenchmark benchmark) {
+            id = benchmark.producers.getAndIncrement();
+        }
+    }
+
+    /**
+     * Bytes serialized by a logging thread (discarding sink only).
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Written {
+        public long bytes;
+        private long start;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            start = CountingSink.written();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ClockException {
+        file = File.createTempFile("log-benchmark", ".trace");
+        final TraceSink traceSink;
+        switch (sink) {
+            case FILE:
+                traceSink = new FileTraceSink(file.getPath());
+                break;
+            case ASYNC:
+                traceSink = new AsyncTraceSink(file.getPath());
+                break;
+            default:
+                traceSink = new CountingSink();
+        }
+        tracer = TLATracer.getTracer(traceSink, ClockFactory.getClock(ClockFactory.MEMORY), scope, format);
+        logs = tracer.getVariableTracer("logs");
+        terms = tracer.getVariableTracer("terms");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tracer.close();
+        file.delete();
+    }
+
+    private long event(Producer producer, Written written) throws IOException {
+        logs.getField(producer.id).append(producer.index);
+        terms.getField(producer.id).update(producer.index);
+        final long clock = tracer.log("AppendEntries", new Object[] { producer.id, producer.index });
+        producer.index++;
+        written.bytes = CountingSink.written() - written.start;
+        return clock;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long log1(Producer producer, Written written) throws IOException {
+        return event(producer, written);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long log8(Producer producer, Written written) throws IOException {
+        return event(producer, written);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long log32(Producer producer, Written written) throws IOException {
+        return event(producer, written);
+    }
+}
@@ -0,0 +1,132 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.helper.NDJsonSerializer;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.stream.JsonWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of typical argument shapes with
+ * {@link NDJsonSerializer#writeValue(JsonWriter, Object)} (dispatch on the
+ * cached type of the classes) and with the former chain of
+ * <code>instanceof</code> checks ({@link LegacySerializer}). The former chain
+ * does not support records and arrays of primitives: for these shapes, it
+ * serializes the equivalent map and list, as the callers had to build them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    public enum Shape {
+        INT, STRING, ENUM, LIST, SET, MAP, NESTED, RECORD, INT_ARRAY
+    }
+
+    public enum Role {
+        FOLLOWER, CANDIDATE, LEADER
+    }
+
+    public record Entry(long term, String command, boolean committed) {
+    }
+
+    @Param({ "INT", "STRING", "ENUM", "LIST", "SET", "MAP", "NESTED", "RECORD", "INT_ARRAY" })
+    public Shape shape;
+
+    private Object value;
+    // value serialized by the former chain
+    private Object legacyValue;
+    private CharArrayWriter chars;
+    private JsonWriter out;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("term", 12L);
+        entry.put("command", "set x 3");
+        entry.put("committed", true);
+        final List<Integer> indexes = List.of(1, 2, 3, 5, 8, 13, 21, 34);
+        switch (shape) {
+            case INT:
+                value = 123456;
+                break;
+            case STRING:
+                value = "node-12";
+                break;
+            case ENUM:
+                value = Role.LEADER;
+                break;
+            case LIST:
+                value = indexes;
+                break;
+            case SET:
+                value = new HashSet<>(List.of("n1", "n2", "n3", "n4"));
+                break;
+            case MAP:
+                value = entry;
+                break;
+            case NESTED: {
+                final Map<String, Object> message = new LinkedHashMap<>();
+                message.put("type", "AppendEntries");
+                message.put("term", 12);
+                message.put("entries", List.of(entry, entry, entry));
+                message.put("matchIndex", indexes);
+                value = message;
+                break;
+            }
+            case RECORD:
+                value = new Entry(12L, "set x 3", true);
+                legacyValue = entry;
+                break;
+            case INT_ARRAY:
+                value = new int[] { 1, 2, 3, 5, 8, 13, 21, 34 };
+                legacyValue = new ArrayList<>(indexes);
+                break;
+        }
+        if (legacyValue == null) {
+            legacyValue = value;
+        }
+        chars = new CharArrayWriter(1 << 12);
+        out = new JsonWriter(chars);
+        // several top level values are written in the same writer
+        out.setLenient(true);
+    }
+
+    @Benchmark
+    public int dispatch() throws IllegalAccessException, IOException {
+        chars.reset();
+        NDJsonSerializer.writeValue(out, value);
+        out.flush();
+        return chars.size();
+    }
+
+    @Benchmark
+    public int legacyChain() throws IllegalAccessException, IOException {
+        chars.reset();
+        LegacySerializer.writeValue(out, legacyValue);
+        out.flush();
+        return chars.size();
+    }
+}
@@ -0,0 +1,94 @@
+package org.lbee.instrumentation.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.lbee.instrumentation.clock.ClientClock;
+import org.lbee.instrumentation.clock.ServerClock;
+
+/**
+ * Load generator for a {@link ServerClock}: for each number of connections,
+ * opens as many {@link ClientClock}s (one thread each) which all request times
+ * as fast as possible, and reports the throughput and the latency
+ * percentiles of the requests.
+ *
+ * Usage: <code>ServerClockLoadGenerator [requests [host port]]</code>, where
+ * <code>requests</code> is the number of requests per connection (1000 by
+ * default). Without host and port, a server clock is started in the JVM.
+ */
+public class ServerClockLoadGenerator {
+    private static final int[] CONNECTIONS = { 10, 100, 1000 };
+
+    public static void main(String[] args) throws Exception {
+        final int requests = args.length >= 1 ? Integer.parseInt(args[0]) : 1000;
+        final String host;
+        final int port;
+        ServerClock server = null;
+        if (args.length >= 3) {
+            host = args[1];
+            port = Integer.parseInt(args[2]);
+        } else {
+            server = new ServerClock();
+            server.startInBackground(0);
+            host = "localhost";
+            port = server.getLocalPort();
+        }
+        for (int connections : CONNECTIONS) {
+            run(host, port, connections, requests);
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private static void run(String host, int port, int connections, int requests)
+            throws IOException, InterruptedException {
+        final List<ClientClock> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            clients.add(ClientClock.getInstance(host, port));
+        }
+        final long[] latencies = new long[connections * requests];
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            final ClientClock client = clients.get(c);
+            final int offset = c * requests;
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long clock = 0;
+                for (int r = 0; r < requests; r++) {
+                    final long begin = System.nanoTime();
+                    clock = client.getNextTime(clock);
+                    latencies[offset + r] = System.nanoTime() - begin;
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsed = System.nanoTime() - begin;
+        for (ClientClock client : clients) {
+            client.stopConnection();
+        }
+        Arrays.sort(latencies);
+        System.out.printf("connections=%d requests=%d throughput=%.0f req/s p50=%.1f us p99=%.1f us max=%.1f us%n",
+                connections, latencies.length, latencies.length * 1e9 / elapsed,
+                percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3,
+                latencies[latencies.length - 1] / 1e3);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
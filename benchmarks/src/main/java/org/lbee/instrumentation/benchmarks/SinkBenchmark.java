@@ -0,0 +1,68 @@
+package org.lbee.instrumentation.benchmarks;
+
+import org.lbee.instrumentation.trace.FileTraceSink;
+import org.lbee.instrumentation.trace.MappedTraceSink;
+import org.lbee.instrumentation.trace.TraceSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency distribution (p50, p99, ...) of writing a serialized event to a
+ * {@link MappedTraceSink} in APPEND mode and to a {@link FileTraceSink}, which
+ * flushes each event to the operating system.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SinkBenchmark {
+    public enum Sink {
+        MAPPED, FILE
+    }
+
+    private static final byte[] EVENT = ("{\"clock\":1,\"messages\":[{\"op\":\"AppendElement\",\"path\":[1,\"log\"],"
+            + "\"args\":[\"some payload value\"]}],\"event\":\"AppendEntries\",\"event_args\":[1]}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Param({ "MAPPED", "FILE" })
+    public Sink sink;
+
+    private File file;
+    private TraceSink traceSink;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("sink-benchmark", ".trace");
+        traceSink = sink == Sink.MAPPED ? new MappedTraceSink(file.getPath()) : new FileTraceSink(file.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        traceSink.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        traceSink.write(EVENT, 0, EVENT.length);
+    }
+}
@@ -1,39 +1,154 @@
 package org.lbee.instrumentation.clock;
 
-import java.io.BufferedReader;
+import org.lbee.instrumentation.helper.LatencyHistogram;
+import org.lbee.instrumentation.helper.LatencySnapshot;
+import org.lbee.instrumentation.helper.MBeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
 
-public class ClientClock implements InstrumentationClock {
+/**
+ * A client of a {@link ServerClock}. By default, each time is obtained with
+ * one round trip to the server. With a block size greater than 1, the client
+ * reserves blocks of consecutive times from the server and hands them out
+ * locally: times stay unique among all the clients and each time is greater
+ * than the clock given by the process (Lamport ordering), but two processes
+ * may get times that are not ordered as the real time of their requests.
+ *
+ * The client counts the times it gives and measures the round trips to the
+ * server ({@link #getRoundTripLatency()}, also available through JMX with
+ * {@link #registerMBean(String)}).
+ */
+public class ClientClock implements InstrumentationClock, ClientClockMXBean {
+    // maximum number of requests sent before reading the answers
+    private static final int PIPELINE_CHUNK = 256;
     private Socket clientSocket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private DataOutputStream out;
+    private DataInputStream in;
+    // number of times reserved at once (1 to ask the server for each time)
+    private final int blockSize;
+    // next time of the current block and end (excluded) of the block
+    private long next;
+    private long end;
+    // times given, and duration of the round trips to the server
+    private final LongAdder times = new LongAdder();
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+    // name of the MXBean of the clock (null if not registered)
+    private volatile ObjectName mbeanName;
+
+    private ClientClock(int blockSize) {
+        this.blockSize = blockSize;
+    }
 
     /**
      * Get a new instance of the client clock.
-     * 
+     *
      * @param ip   address of the server
      * @param port port of the server
      * @return a new instance of the client clock (null if an error occurred)
-     * @throws IOException 
+     * @throws IOException
      */
     public static ClientClock getInstance(String ip, int port) throws IOException {
-        ClientClock clientClock = new ClientClock();
+        return getInstance(ip, port, 1);
+    }
+
+    /**
+     * Get a new instance of the client clock reserving blocks of times.
+     *
+     * @param ip        address of the server
+     * @param port      port of the server
+     * @param blockSize number of times reserved with one round trip (1 to
+     *                  {@value ServerClock#MAX_BLOCK_SIZE})
+     * @return a new instance of the client clock
+     * @throws IOException
+     */
+    public static ClientClock getInstance(String ip, int port, int blockSize) throws IOException {
+        if (blockSize < 1 || blockSize > ServerClock.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + ServerClock.MAX_BLOCK_SIZE);
+        }
+        ClientClock clientClock = new ClientClock(blockSize);
         clientClock.startConnection(ip, port);
         return clientClock;
     }
 
     @Override
-    public long getNextTime(long clock) {
+    public synchronized long getNextTime(long clock) {
+        times.increment();
+        if (blockSize > 1) {
+            // the current block can be used if its next time is after the clock
+            if (next < end && next > clock) {
+                return next++;
+            }
+            final long first = request(clock, blockSize);
+            if (first < 0) {
+                return first;
+            }
+            next = first + 1;
+            end = first + blockSize;
+            return first;
+        }
         // request the next time from the server w.r.t. the current clock
-        out.println(clock + "");
+        return request(clock, 1);
+    }
+
+    /**
+     * Get the next times for several clocks with a single round trip to the
+     * server: the requests are pipelined and the times are computed in turn, as
+     * with successive calls to {@link #getNextTime(long)} without block
+     * reservation.
+     *
+     * @param clocks current times of the process
+     * @return the next times, -1 for each time if an error occurred
+     */
+    public synchronized long[] getNextTimes(long... clocks) {
+        final long[] values = new long[clocks.length];
+        try {
+            // pipeline by chunks so that the answers waiting to be read stay
+            // within the socket buffers
+            times.add(clocks.length);
+            for (int start = 0; start < clocks.length; start += PIPELINE_CHUNK) {
+                final int end = Math.min(start + PIPELINE_CHUNK, clocks.length);
+                final long begin = System.nanoTime();
+                for (int i = start; i < end; i++) {
+                    out.writeLong(clocks[i]);
+                    out.writeLong(1);
+                }
+                out.flush();
+                for (int i = start; i < end; i++) {
+                    values[i] = in.readLong();
+                }
+                roundTrips.recordSince(begin);
+            }
+        } catch (IOException e) {
+            System.out.println("Error while getting next times: " + e.getMessage());
+            Arrays.fill(values, -1);
+        }
+        return values;
+    }
+
+    /**
+     * Reserves a block of times from the server.
+     *
+     * @return the first time of the block, -1 if an error occurred
+     */
+    private long request(long clock, long count) {
         long newValue = -1;
         try {
-            newValue = Long.parseLong(in.readLine());
-        } catch (NumberFormatException | IOException e) {
+            final long begin = System.nanoTime();
+            out.writeLong(clock);
+            out.writeLong(count);
+            out.flush();
+            newValue = in.readLong();
+            roundTrips.recordSince(begin);
+        } catch (IOException e) {
             System.out.println("Error while getting next time: " + e.getMessage());
         }
         return newValue;
@@ -41,11 +156,63 @@ public class ClientClock implements InstrumentationClock {
 
     private void startConnection(String ip, int port) throws IOException {
         clientSocket = new Socket(ip, port);
-        out = new PrintWriter(clientSocket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        clientSocket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+    }
+
+    /**
+     * @return the durations of the round trips to the server
+     */
+    public LatencySnapshot getRoundTripLatency() {
+        return roundTrips.snapshot();
+    }
+
+    @Override
+    public long getTimes() {
+        return times.sum();
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return roundTrips.snapshot().count();
+    }
+
+    @Override
+    public long getRoundTripTotalNanos() {
+        return roundTrips.snapshot().totalNanos();
+    }
+
+    @Override
+    public long getRoundTripP50Nanos() {
+        return roundTrips.snapshot().percentileNanos(50);
+    }
+
+    @Override
+    public long getRoundTripP99Nanos() {
+        return roundTrips.snapshot().percentileNanos(99);
+    }
+
+    @Override
+    public long getRoundTripMaxNanos() {
+        return roundTrips.snapshot().maxNanos();
+    }
+
+    /**
+     * Register the metrics of the clock in the platform MBean server, under the
+     * name <code>org.lbee.instrumentation:type=ClientClock,name=&lt;name&gt;</code>.
+     * The MXBean is unregistered when the connection is stopped.
+     *
+     * @param name name of the clock
+     * @return the name of the MXBean, null if it could not be registered
+     */
+    public ObjectName registerMBean(String name) {
+        this.mbeanName = MBeans.register("ClientClock", name, this);
+        return this.mbeanName;
     }
 
     public void stopConnection() throws IOException {
+        MBeans.unregister(this.mbeanName);
         in.close();
         out.close();
         clientSocket.close();
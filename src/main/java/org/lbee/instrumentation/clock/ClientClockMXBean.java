@@ -0,0 +1,27 @@
+package org.lbee.instrumentation.clock;
+
+/**
+ * JMX view of the metrics of a {@link ClientClock}. The durations are in
+ * nanoseconds; the percentiles are upper bounds (at most twice the actual
+ * value).
+ */
+public interface ClientClockMXBean {
+    /**
+     * @return the number of times given by the clock
+     */
+    long getTimes();
+
+    /**
+     * @return the number of round trips to the server (fewer than the times
+     *         with block reservation or pipelining)
+     */
+    long getRoundTrips();
+
+    long getRoundTripTotalNanos();
+
+    long getRoundTripP50Nanos();
+
+    long getRoundTripP99Nanos();
+
+    long getRoundTripMaxNanos();
+}
@@ -2,11 +2,21 @@ package org.lbee.instrumentation.clock;
 
 import java.io.IOException;
 
+/**
+ * Creates the clocks used by the tracers. The optional names depend on the
+ * type of clock: the name of the shared file for a FILE clock, and the address
+ * of the server, its port and the number of times reserved with one request
+ * (1 by default, see {@link ClientClock}) for a SERVER clock. A HYBRID clock
+ * ({@link HybridClock}) needs no name, and the name of a VECTOR clock
+ * ({@link VectorClock}) is the id of the process (random by default).
+ */
 public class ClockFactory {
     public final static int LOCAL = 0;
     public final static int MEMORY = 1;
     public final static int FILE = 2;
     public final static int SERVER = 3;
+    public final static int HYBRID = 4;
+    public final static int VECTOR = 5;
 
     public static InstrumentationClock getClock(int type, String... name) throws ClockException {
         switch (type) {
@@ -23,12 +33,17 @@ public class ClockFactory {
                 }
             case SERVER:
                 String ip = name.length >= 1 ? name[0] : "localhost";
-                int port = name.length == 2 ? Integer.parseInt(name[1]) : 6666;
+                int port = name.length >= 2 ? Integer.parseInt(name[1]) : 6666;
+                int blockSize = name.length >= 3 ? Integer.parseInt(name[2]) : 1;
                 try {
-                    return ClientClock.getInstance(ip, port);
+                    return ClientClock.getInstance(ip, port, blockSize);
                 } catch (IOException e) {
                     throw new ClockException("Can't create clock: " + e.getMessage());
                 }
+            case HYBRID:
+                return new HybridClock();
+            case VECTOR:
+                return name.length == 1 ? new VectorClock(name[0]) : new VectorClock();
             default:
                 return new MemoryClock();
         }
@@ -2,7 +2,9 @@ package org.lbee.instrumentation.clock;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.LongBuffer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
@@ -10,11 +12,18 @@ import java.nio.file.StandardOpenOption;
 /**
  * A named clock that can be shared through multiple processes. Clock value is
  * stored as a memory file map and can be accessed by different processes on the
- * same hardware.
+ * same hardware. The value is advanced with an atomic compare-and-set on the
+ * mapped memory, so the clock is lock-free and never gives the same time twice,
+ * whatever the number of threads and processes sharing it.
  */
 class FileClock implements InstrumentationClock {
+    // Atomic access to the long at offset 0 of the buffer (big-endian, as the
+    // value was written by previous versions)
+    private static final VarHandle VALUE = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+
     // Buffer storing the clock value
-    private final LongBuffer buffer;
+    private final MappedByteBuffer buffer;
 
     /**
      * Build a shared clock given a name
@@ -23,30 +32,13 @@ class FileClock implements InstrumentationClock {
      * @throws IOException
      */
     public FileClock(String name) throws IOException {
-        // Create memory mapped file
+        // Create memory mapped file (the mapping stays valid once the channel
+        // is closed)
         final File f = new File(name);
-        final FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE);
-        final MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
-        buffer = b.asLongBuffer();
-    }
-   
-    /**
-     * Get clock value
-     * 
-     * @return Clock value
-     */
-    private long getValue() {
-        return buffer.get(0);
-    }
-
-    /**
-     * Set clock value
-     * 
-     * @param value Value
-     */
-    private void setValue(long value) {
-        buffer.put(0, value);
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        }
     }
 
     /**
@@ -56,10 +48,13 @@ class FileClock implements InstrumentationClock {
      * @return clock value
      */
     @Override
-    public synchronized long getNextTime(long clock) {
-        final long value = this.getValue();
-        final long newValue = Math.max(value, clock) + 1;
-        this.setValue(newValue);
+    public long getNextTime(long clock) {
+        long value;
+        long newValue;
+        do {
+            value = (long) VALUE.getVolatile(buffer, 0);
+            newValue = Math.max(value, clock) + 1;
+        } while (!VALUE.compareAndSet(buffer, 0, value, newValue));
         return newValue;
     }
 }
@@ -0,0 +1,97 @@
+package org.lbee.instrumentation.clock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A hybrid logical clock: the time combines the wall clock of the process
+ * (milliseconds) with a logical counter, and needs no coordinator. The times
+ * given by the clock are increasing, and are greater than the wall clock and
+ * than the time given as parameter. Processes exchanging messages piggyback
+ * the clock value returned by
+ * {@link org.lbee.instrumentation.trace.TLATracer#log(String, Object[], long, String)}
+ * on the messages they send, and give the (maximum of their clock and the)
+ * clock of the messages they receive when logging the reception: a reception
+ * is thus always after the corresponding sending, whatever the skew of the
+ * wall clocks.
+ *
+ * A time is encoded in a single <code>long</code>: the wall clock in the
+ * {@value #PHYSICAL_BITS} high bits and the counter in the
+ * {@value #LOGICAL_BITS} low bits, so that the times are ordered as numbers
+ * and merged traces still sort by clock (see {@link #physicalTime(long)} and
+ * {@link #logicalCount(long)}). When more than 2^{@value #LOGICAL_BITS} times
+ * are taken in the same millisecond, the counter overflows into the wall
+ * clock, which stays ordered but runs ahead of the real time.
+ *
+ * The clock can be shared by the threads of a process.
+ */
+public class HybridClock implements InstrumentationClock {
+    // number of bits of the logical counter
+    public static final int LOGICAL_BITS = 16;
+    // number of bits of the wall clock
+    public static final int PHYSICAL_BITS = Long.SIZE - 1 - LOGICAL_BITS;
+    private static final long LOGICAL_MASK = (1L << LOGICAL_BITS) - 1;
+
+    // wall clock of the process (milliseconds)
+    private final LongSupplier wallClock;
+    // last time given by the clock
+    private final AtomicLong value;
+
+    /**
+     * Create a hybrid clock on the wall clock of the process.
+     */
+    public HybridClock() {
+        this(System::currentTimeMillis);
+    }
+
+    /**
+     * Create a hybrid clock on a given wall clock (e.g. a skewed clock in a
+     * simulation).
+     *
+     * @param wallClock The wall clock, in milliseconds.
+     */
+    public HybridClock(LongSupplier wallClock) {
+        this.wallClock = wallClock;
+        this.value = new AtomicLong();
+    }
+
+    @Override
+    public long getNextTime(long clock) {
+        final long now = of(this.wallClock.getAsLong(), 0);
+        long current;
+        long next;
+        do {
+            current = this.value.get();
+            // the counter is reset when the wall clock is ahead of both times
+            next = Math.max(Math.max(current, clock) + 1, now);
+        } while (!this.value.compareAndSet(current, next));
+        return next;
+    }
+
+    /**
+     * Encode a time.
+     *
+     * @param physicalTime The wall clock, in milliseconds.
+     * @param logicalCount The logical counter.
+     * @return the time
+     */
+    public static long of(long physicalTime, long logicalCount) {
+        return (physicalTime << LOGICAL_BITS) | (logicalCount & LOGICAL_MASK);
+    }
+
+    /**
+     * @param time A time given by a hybrid clock.
+     * @return the wall clock part of the time, in milliseconds
+     */
+    public static long physicalTime(long time) {
+        return time >>> LOGICAL_BITS;
+    }
+
+    /**
+     * @param time A time given by a hybrid clock.
+     * @return the logical counter part of the time
+     */
+    public static long logicalCount(long time) {
+        return time & LOGICAL_MASK;
+    }
+}
@@ -1,20 +1,27 @@
 package org.lbee.instrumentation.clock;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A memory clock that can be shared through multiple threads of the same
- * process.
+ * process. The clock is advanced with a lock-free compare-and-set loop.
  */
 class MemoryClock implements InstrumentationClock {
     // Current value of logical clock
-    private long value;
+    private final AtomicLong value;
 
     public MemoryClock() {
-        this.value = 0;
+        this.value = new AtomicLong();
     }
 
     @Override
-    public synchronized long getNextTime(long clock) {
-        this.value = Math.max(value, clock) + 1;
-        return this.value;
+    public long getNextTime(long clock) {
+        long current;
+        long next;
+        do {
+            current = this.value.get();
+            next = Math.max(current, clock) + 1;
+        } while (!this.value.compareAndSet(current, next));
+        return next;
     }
 }
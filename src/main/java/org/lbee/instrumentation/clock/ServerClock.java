@@ -1,84 +1,263 @@
 package org.lbee.instrumentation.clock;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A server clock that can be shared through multiple processes.
+ * A server clock that can be shared through multiple processes. All the
+ * clients are served by a single thread multiplexing their connections with a
+ * selector. The protocol uses fixed-width binary frames (big-endian):
+ * <ul>
+ * <li>request ({@value #REQUEST_SIZE} bytes): the clock of the client and the
+ * number of consecutive times it wants to reserve (1 to simply get the next
+ * time, at most {@value #MAX_BLOCK_SIZE});</li>
+ * <li>answer ({@value #ANSWER_SIZE} bytes): the first reserved time, greater
+ * than the clock of the client and than all the times given so far, or -1 if
+ * the request is invalid (number of times out of range, or times beyond
+ * {@link Long#MAX_VALUE}).</li>
+ * </ul>
+ * A client can send several requests without waiting for the answers; the
+ * answers are sent in the order of the requests.
  */
 public class ServerClock {
-    private ServerSocket serverSocket;
-    private long clockValue;
+    static final int REQUEST_SIZE = 16;
+    static final int ANSWER_SIZE = 8;
+    /**
+     * Maximum number of times reserved by a request, so that a single request
+     * cannot make the clock jump for all the clients.
+     */
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+    // maximum number of requests read at once on a connection
+    private static final int MAX_PIPELINED = 256;
 
-    public synchronized long getNextTime(long clock) {
-        this.clockValue = Math.max(this.clockValue, clock) + 1;
-        return this.clockValue;
+    private final AtomicLong clockValue = new AtomicLong();
+    private volatile ServerSocketChannel serverChannel;
+    private volatile Selector selector;
+    private volatile boolean running;
+    // released when the event loop has closed all the connections
+    private volatile CountDownLatch stopped;
+
+    public long getNextTime(long clock) {
+        return reserve(clock, 1);
     }
 
     /**
-     * Starts the server clock on the given port.
-     * 
+     * Reserves a block of consecutive times, all greater than the given clock
+     * and than all the times given so far.
+     *
+     * @param clock current time of the process asking for the block
+     * @param count number of times in the block (1 to {@value #MAX_BLOCK_SIZE})
+     * @return the first time of the block
+     * @throws IllegalArgumentException if the number of times is out of range
+     * @throws ArithmeticException      if the block would go beyond
+     *                                  {@link Long#MAX_VALUE}
+     */
+    public long reserve(long clock, long count) {
+        if (count < 1 || count > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid number of times " + count);
+        }
+        long current;
+        long first;
+        long last;
+        do {
+            current = this.clockValue.get();
+            first = Math.addExact(Math.max(current, clock), 1);
+            last = Math.addExact(first, count - 1);
+        } while (!this.clockValue.compareAndSet(current, last));
+        return first;
+    }
+
+    /**
+     * Starts the server clock on the given port and serves the clients until
+     * the server is stopped.
+     *
      * @param port the port to listen on
      * @throws IOException if the server can't listen on the port
      */
     public void start(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        while (true) {
-            new RequestHandler(serverSocket.accept()).start();
-        }
+        bind(port);
+        serve();
     }
 
     /**
-     * Stops the server clock.
-     * 
-     * @throws IOException if the server can't be stopped
+     * Starts the server clock on the given port and serves the clients in a
+     * background (daemon) thread until the server is stopped.
+     *
+     * @param port the port to listen on (0 for any free port, see
+     *             {@link #getLocalPort()})
+     * @throws IOException if the server can't listen on the port
      */
-    public void stop() throws IOException {
-        serverSocket.close();
+    public void startInBackground(int port) throws IOException {
+        bind(port);
+        final Thread thread = new Thread(() -> {
+            try {
+                serve();
+            } catch (IOException e) {
+                System.out.println("Server clock stopped: " + e.getMessage());
+            }
+        }, "server-clock");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * A request handler for the server clock. It listens for incoming messages
-     * on the socket representing a clock value and sends back the next time value.
-     * It sends back -1 if the received value is invalid.
+     * Returns the port the server listens on.
+     *
+     * @return the port, -1 if the server is not started
      */
-    private class RequestHandler extends Thread {
-        private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
+    public int getLocalPort() {
+        final ServerSocketChannel channel = this.serverChannel;
+        return channel == null ? -1 : channel.socket().getLocalPort();
+    }
 
-        public RequestHandler(Socket socket) {
-            this.clientSocket = socket;
+    /**
+     * Stops the server clock: the server stops accepting connections and all
+     * the client connections are closed before this method returns.
+     *
+     * @throws IOException if the server can't be stopped
+     */
+    public void stop() throws IOException {
+        running = false;
+        final Selector s = this.selector;
+        if (s != null) {
+            s.wakeup();
         }
-
-        public void run() {
-            System.out.println("New client connected");
+        final CountDownLatch latch = this.stopped;
+        if (latch != null) {
             try {
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping the server clock");
+            }
+        }
+    }
 
-                String inputLine;
-                long newValue = -1;
-                while ((inputLine = in.readLine()) != null) {
+    private void bind(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        stopped = new CountDownLatch(1);
+        running = true;
+    }
+
+    /**
+     * Event loop: accept connections, read the requests and write the answers.
+     */
+    private void serve() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
                     try {
-                        long clock = Long.parseLong(inputLine);
-                        newValue = getNextTime(clock);
-                    } catch (NumberFormatException e) {
-                        System.out.println("Received an invalid clock value");
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            final Connection connection = (Connection) key.attachment();
+                            if (key.isWritable()) {
+                                connection.write(key);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the client left or misbehaved: drop its connection
+                        key.cancel();
+                        key.channel().close();
                     }
-                    out.println(newValue + "");
                 }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            stopped.countDown();
+        }
+    }
 
-                in.close();
-                out.close();
-                clientSocket.close();
-            } catch (IOException e) {
-                System.out.println("Can't listen on port");
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    /**
+     * State of a client connection: the partially received requests and the
+     * answers not yet sent.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer requests = ByteBuffer.allocate(REQUEST_SIZE * MAX_PIPELINED);
+        private final ByteBuffer answers = ByteBuffer.allocate(ANSWER_SIZE * MAX_PIPELINED);
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            // nothing to send yet
+            this.answers.flip();
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            if (channel.read(requests) < 0) {
+                throw new IOException("Connection closed by the client");
+            }
+            process(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            channel.write(answers);
+            if (!answers.hasRemaining()) {
+                // answer the requests received while the answers were pending
+                process(key);
+            }
+        }
+
+        /**
+         * Answers all the complete requests received (as long as there is room
+         * for the answers) and sends the answers.
+         */
+        private void process(SelectionKey key) throws IOException {
+            requests.flip();
+            answers.compact();
+            while (requests.remaining() >= REQUEST_SIZE && answers.remaining() >= ANSWER_SIZE) {
+                final long clock = requests.getLong();
+                final long count = requests.getLong();
+                long first;
+                try {
+                    first = reserve(clock, count);
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    first = -1;
+                }
+                answers.putLong(first);
             }
+            requests.compact();
+            answers.flip();
+            channel.write(answers);
+            // stop reading while answers are pending, so that a client that
+            // does not read its answers cannot make the server buffer them
+            key.interestOps(answers.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
         }
     }
 
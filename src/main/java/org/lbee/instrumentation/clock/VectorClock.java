@@ -0,0 +1,248 @@
+package org.lbee.instrumentation.clock;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A vector clock: for each process, the number of events of the process that
+ * happened before the current time, without central server. The clock is
+ * shared by the threads of a process and used by a single tracer, whose id
+ * (the <code>logger</code> of its events) is the id of the clock.
+ *
+ * The times returned by {@link #getNextTime(long)} are Lamport clocks, which
+ * order the events in a way consistent with causality. Each tick also
+ * increments the entry of the process and records the entries changed since
+ * the previous tick ({@link #takeDelta()}), which the tracer writes with the
+ * event: most events only change the entry of their process, so the vector
+ * written stays small with many processes. The full vectors are rebuilt from
+ * the successive deltas of each process by
+ * {@link org.lbee.instrumentation.tools.CausalMerger}, which outputs a
+ * linearization of the events respecting causality.
+ *
+ * The processes piggyback the clock on the messages they send
+ * ({@link #stamp()}) and merge the clock of the messages they receive
+ * ({@link #receive(String)}) before logging the reception. As for any vector
+ * clock, the clock piggybacked on the messages grows with the number of
+ * processes (about 16 bytes per process with the default ids).
+ */
+public class VectorClock implements InstrumentationClock {
+    // id of the process
+    private final String id;
+    // ids of the processes (the dictionary)
+    private final List<String> ids = new ArrayList<>();
+    // open addressing table of the indexes of the ids (index + 1, 0 if
+    // empty), to find the ids of the stamps without extracting them
+    private int[] table = new int[16];
+    // entries of the vector, by index
+    private long[] values = new long[8];
+    // entries changed since the previous tick
+    private boolean[] changed = new boolean[8];
+    private int[] changedIndexes = new int[8];
+    private int changes;
+    // number of ids of the dictionary given in the previous deltas
+    private int announced = 1;
+    // Lamport clock
+    private long scalar;
+    // length of the last stamp
+    private int stampLength = 64;
+    // delta of the last tick of each thread
+    private final ThreadLocal<VectorDelta> deltas = new ThreadLocal<>();
+
+    /**
+     * Create a vector clock for a process with a random id (64 random bits in
+     * base 36, shorter than a UUID since the ids of all the processes are
+     * piggybacked on the messages).
+     */
+    public VectorClock() {
+        this(Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, Character.MAX_RADIX));
+    }
+
+    /**
+     * Create a vector clock.
+     *
+     * @param id Id of the process.
+     */
+    public VectorClock(String id) {
+        this.id = id;
+        index(id);
+    }
+
+    /**
+     * @return the id of the process
+     */
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public synchronized long getNextTime(long clock) {
+        scalar = Math.max(scalar, clock) + 1;
+        values[0]++;
+        change(0);
+        final List<String> added = announced == ids.size() ? List.of()
+                : List.copyOf(ids.subList(announced, ids.size()));
+        announced = ids.size();
+        final long[] entries = new long[2 * changes];
+        for (int c = 0; c < changes; c++) {
+            entries[2 * c] = changedIndexes[c];
+            entries[2 * c + 1] = values[changedIndexes[c]];
+            changed[changedIndexes[c]] = false;
+        }
+        changes = 0;
+        deltas.set(new VectorDelta(added, entries));
+        return scalar;
+    }
+
+    /**
+     * Take the entries changed by the last tick of the calling thread.
+     *
+     * @return the delta of the last tick of the thread (null if already taken)
+     */
+    public VectorDelta takeDelta() {
+        final VectorDelta delta = deltas.get();
+        deltas.remove();
+        return delta;
+    }
+
+    /**
+     * Get the clock to piggyback on a message: the Lamport clock followed by
+     * the non-zero entries, e.g. <code>12;p1=3;p2=5</code>.
+     *
+     * @return the clock of the process
+     */
+    public synchronized String stamp() {
+        final StringBuilder stamp = new StringBuilder(stampLength + 16).append(scalar);
+        for (int i = 0; i < ids.size(); i++) {
+            if (values[i] > 0) {
+                stamp.append(';').append(ids.get(i)).append('=').append(values[i]);
+            }
+        }
+        stampLength = stamp.length();
+        return stamp.toString();
+    }
+
+    /**
+     * Merge the clock of a received message (see {@link #stamp()}); the next
+     * tick is after the sending of the message.
+     *
+     * @param stamp The clock piggybacked on the message.
+     */
+    public synchronized void receive(String stamp) {
+        int end = stamp.indexOf(';');
+        if (end < 0) {
+            end = stamp.length();
+        }
+        scalar = Math.max(scalar, parse(stamp, 0, end));
+        while (end < stamp.length()) {
+            final int start = end + 1;
+            end = stamp.indexOf(';', start);
+            if (end < 0) {
+                end = stamp.length();
+            }
+            final int equals = stamp.lastIndexOf('=', end - 1);
+            if (equals < start) {
+                throw new NumberFormatException("Invalid vector clock entry: " + stamp.substring(start, end));
+            }
+            final int i = index(stamp, start, equals);
+            final long value = parse(stamp, equals + 1, end);
+            if (value > values[i]) {
+                values[i] = value;
+                change(i);
+            }
+        }
+    }
+
+    /**
+     * @return the current vector, by process id
+     */
+    public synchronized Map<String, Long> getVector() {
+        final Map<String, Long> vector = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            vector.put(ids.get(i), values[i]);
+        }
+        return vector;
+    }
+
+    private void change(int i) {
+        if (!changed[i]) {
+            changed[i] = true;
+            changedIndexes[changes++] = i;
+        }
+    }
+
+    private int index(String process) {
+        return index(process, 0, process.length());
+    }
+
+    /**
+     * Get the index of the id of a process, adding it to the dictionary if
+     * needed.
+     *
+     * @param s     String containing the id.
+     * @param start Start of the id in the string.
+     * @param end   End of the id in the string.
+     * @return the index of the id
+     */
+    private int index(String s, int start, int end) {
+        int hash = 0;
+        for (int c = start; c < end; c++) {
+            hash = 31 * hash + s.charAt(c);
+        }
+        final int mask = table.length - 1;
+        int slot = mix(hash) & mask;
+        while (table[slot] != 0) {
+            final String id = ids.get(table[slot] - 1);
+            if (id.length() == end - start && s.regionMatches(start, id, 0, id.length())) {
+                return table[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        final int i = ids.size();
+        ids.add(s.substring(start, end));
+        table[slot] = i + 1;
+        if (2 * ids.size() > table.length) {
+            rehash();
+        }
+        if (i == values.length) {
+            values = Arrays.copyOf(values, 2 * i);
+            changed = Arrays.copyOf(changed, 2 * i);
+            changedIndexes = Arrays.copyOf(changedIndexes, 2 * i);
+        }
+        return i;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        final int mask = table.length - 1;
+        for (int i = 0; i < ids.size(); i++) {
+            int slot = mix(ids.get(i).hashCode()) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static long parse(String s, int start, int end) {
+        if (start == end) {
+            throw new NumberFormatException("Empty vector clock value");
+        }
+        long value = 0;
+        for (int c = start; c < end; c++) {
+            final int digit = s.charAt(c) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid vector clock value: " + s.substring(start, end));
+            }
+            value = 10 * value + digit;
+        }
+        return value;
+    }
+}
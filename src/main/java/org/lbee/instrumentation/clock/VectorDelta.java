@@ -0,0 +1,16 @@
+package org.lbee.instrumentation.clock;
+
+import java.util.List;
+
+/**
+ * The entries of a {@link VectorClock} changed by a tick, as written in the
+ * events. The processes are designated by their index in the dictionary of the
+ * clock (0 is the process of the clock); the ids of the processes added to the
+ * dictionary since the previous tick are given with the entries.
+ *
+ * @param ids     Ids of the processes added to the dictionary (in the order
+ *                of their indexes).
+ * @param entries Changed entries: index of the process followed by its value.
+ */
+public record VectorDelta(List<String> ids, long[] entries) {
+}
@@ -0,0 +1,61 @@
+package org.lbee.instrumentation.helper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with one bucket per power
+ * of two: recording a duration costs a couple of atomic increments, and the
+ * percentiles are known within a factor of two.
+ */
+public final class LatencyHistogram {
+    // bucket i counts the durations d such that 2^(i-1) <= d < 2^i (bucket 0
+    // counts the null durations)
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds (negative durations count as 0)
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.getAndIncrement(64 - Long.numberOfLeadingZeros(nanos) & (BUCKETS - 1));
+        totalNanos.getAndAdd(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    /**
+     * Records the time elapsed since a time given by {@link System#nanoTime()}.
+     *
+     * @param startNanos the start of the duration
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the durations recorded so far. The snapshot is not atomic: a
+     * duration recorded concurrently may be partially counted.
+     *
+     * @return the durations recorded so far
+     */
+    public LatencySnapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new LatencySnapshot(count, totalNanos.get(), maxNanos.get(), counts);
+    }
+}
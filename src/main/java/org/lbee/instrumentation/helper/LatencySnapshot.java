@@ -0,0 +1,48 @@
+package org.lbee.instrumentation.helper;
+
+/**
+ * Durations recorded by a {@link LatencyHistogram}.
+ *
+ * @param count      number of durations
+ * @param totalNanos sum of the durations
+ * @param maxNanos   largest duration
+ * @param buckets    number of durations per bucket (bucket i counts the
+ *                   durations d such that 2^(i-1) <= d < 2^i)
+ */
+public record LatencySnapshot(long count, long totalNanos, long maxNanos, long[] buckets) {
+    /**
+     * @return the mean duration (0 if there is none)
+     */
+    public double meanNanos() {
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    /**
+     * Returns an upper bound of a percentile of the durations (at most twice
+     * the actual percentile).
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket containing the percentile (0 if
+     *         there is no duration)
+     */
+    public long percentileNanos(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+            }
+        }
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.0fns p50=%dns p99=%dns max=%dns", count, meanNanos(),
+                percentileNanos(50), percentileNanos(99), maxNanos);
+    }
+}
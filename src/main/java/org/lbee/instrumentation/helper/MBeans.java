@@ -0,0 +1,62 @@
+package org.lbee.instrumentation.helper;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registration of the MXBeans of the instrumentation in the platform MBean
+ * server, under the domain {@value #DOMAIN}.
+ */
+public final class MBeans {
+    public static final String DOMAIN = "org.lbee.instrumentation";
+
+    private MBeans() {
+    }
+
+    /**
+     * Registers an MXBean (replacing the one registered with the same name, if
+     * any).
+     *
+     * @param type   the type of the MXBean (e.g. TLATracer)
+     * @param name   the name of the instance
+     * @param mxbean the object implementing an MXBean interface
+     * @return the name of the MXBean, null if it could not be registered
+     */
+    public static ObjectName register(String type, String name, Object mxbean) {
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":type=" + ObjectName.quote(type) + ",name="
+                    + ObjectName.quote(name));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mxbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            System.out.println("Error while registering MXBean: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters an MXBean (nothing is done if it is not registered).
+     *
+     * @param objectName the name of the MXBean (may be null)
+     */
+    public static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            System.out.println("Error while unregistering MXBean: " + e.getMessage());
+        }
+    }
+}
@@ -4,7 +4,10 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -13,8 +16,43 @@ import java.util.Map;
  * A helper class for serializing objects to NDJSON. The class provides methods
  * for serializing values of basic types, arrays, and maps to JSON elements. It
  * also accepts objects that implement the {@link TLASerializer} interface.
+ * The <code>write</code> methods produce the same JSON directly on a
+ * {@link JsonWriter}, without building the intermediate JSON elements.
+ *
+ * The serializers dispatch on the {@link ValueType} of the class of a value,
+ * computed once per class. Besides the types above, any collection is
+ * serialized as an array, a record as an object (one field per component) and
+ * an array of primitives as an array. Values of other classes can be
+ * serialized by registering an encoder with
+ * {@link #registerEncoder(Class, ValueEncoder)}.
  */
 public class NDJsonSerializer {
+    /**
+     * Registers an encoder converting the values of a class (and of its
+     * subclasses) into values that can be serialized. The encoder also applies
+     * to classes otherwise supported (e.g. to change the serialization of a
+     * map), except strings, booleans, numbers and characters, which are always
+     * written as such.
+     *
+     * @param <T>     the class of the values
+     * @param type    the class of the values
+     * @param encoder the encoder
+     */
+    public static <T> void registerEncoder(Class<T> type, ValueEncoder<? super T> encoder) {
+        ValueType.register(type, encoder);
+    }
+
+    /**
+     * Removes the encoder registered for a class: its values are serialized
+     * as if no encoder had been registered (or with the encoder of a
+     * superclass).
+     *
+     * @param type the class of the values
+     */
+    public static void unregisterEncoder(Class<?> type) {
+        ValueType.unregister(type);
+    }
+
     /**
      * Serializes the given values to a JSON array.
      */
@@ -30,32 +68,66 @@ public class NDJsonSerializer {
      * Serializes the given value to a JSON element.
      */
     static JsonElement serializeValue(Object propertyValue) throws IllegalAccessException {
-        final JsonElement jsonValue;
         if (propertyValue == null)
             return null;
-        else if (propertyValue instanceof String)
-            jsonValue = new JsonPrimitive((String) propertyValue);
-        else if (propertyValue instanceof Boolean)
-            jsonValue = new JsonPrimitive((Boolean) propertyValue);
-        else if (propertyValue instanceof Number)
-            jsonValue = new JsonPrimitive((Number) propertyValue);
-        else if (propertyValue instanceof Character)
-            jsonValue = new JsonPrimitive((Character) propertyValue);
-        else if (propertyValue instanceof Enum<?>)
-            jsonValue = new JsonPrimitive(((Enum<?>) propertyValue).ordinal());
-        else if (propertyValue instanceof Object[])
-            jsonValue = jsonArrayOf((Object[]) propertyValue);
-        else if (propertyValue instanceof List<?>)
-            jsonValue = jsonArrayOf((List<?>) propertyValue);
-        else if (propertyValue instanceof HashSet<?>)
-            jsonValue = jsonArrayOf((HashSet<?>) propertyValue);
-        else if (propertyValue instanceof Map<?, ?>)
-            jsonValue = jsonObjectOfMap((Map<?, ?>) propertyValue);
-        else if (propertyValue instanceof TLASerializer)
-            jsonValue = ((TLASerializer) propertyValue).tlaSerialize();
-        else
-            throw new IllegalAccessException("Unknown");
-        return jsonValue;
+        final ValueType type = ValueType.of(propertyValue.getClass());
+        switch (type.kind()) {
+            case STRING:
+                return new JsonPrimitive((String) propertyValue);
+            case BOOLEAN:
+                return new JsonPrimitive((Boolean) propertyValue);
+            case NUMBER:
+                return new JsonPrimitive((Number) propertyValue);
+            case CHARACTER:
+                return new JsonPrimitive((Character) propertyValue);
+            case ENUM:
+                return new JsonPrimitive(((Enum<?>) propertyValue).ordinal());
+            case OBJECT_ARRAY:
+                return jsonArrayOf((Object[]) propertyValue);
+            case COLLECTION: {
+                final JsonArray jsonArray = new JsonArray();
+                for (Object e : (Iterable<?>) propertyValue) {
+                    jsonArray.add(serializeValue(e));
+                }
+                return jsonArray;
+            }
+            case MAP:
+                return jsonObjectOfMap((Map<?, ?>) propertyValue);
+            case SERIALIZER:
+                return ((TLASerializer) propertyValue).tlaSerialize();
+            case RECORD: {
+                final JsonObject jsonObject = new JsonObject();
+                for (int i = 0; i < type.componentCount(); i++) {
+                    jsonObject.add(type.componentName(i), serializeValue(type.componentValue(propertyValue, i)));
+                }
+                return jsonObject;
+            }
+            case INT_ARRAY: {
+                final JsonArray jsonArray = new JsonArray();
+                for (int e : (int[]) propertyValue) {
+                    jsonArray.add(e);
+                }
+                return jsonArray;
+            }
+            case LONG_ARRAY: {
+                final JsonArray jsonArray = new JsonArray();
+                for (long e : (long[]) propertyValue) {
+                    jsonArray.add(e);
+                }
+                return jsonArray;
+            }
+            case PRIMITIVE_ARRAY: {
+                final JsonArray jsonArray = new JsonArray();
+                for (int i = 0; i < Array.getLength(propertyValue); i++) {
+                    jsonArray.add(serializeValue(Array.get(propertyValue, i)));
+                }
+                return jsonArray;
+            }
+            case CUSTOM:
+                return serializeValue(type.encode(propertyValue));
+            default:
+                throw new IllegalAccessException("Unknown");
+        }
     }
 
     /**
@@ -101,4 +173,143 @@ public class NDJsonSerializer {
         }
         return jsonObject;
     }
+
+    /**
+     * Writes the given value to a JSON writer (same output as
+     * {@link #serializeValue(Object)}).
+     */
+    public static void writeValue(JsonWriter out, Object propertyValue) throws IllegalAccessException, IOException {
+        if (propertyValue == null) {
+            out.nullValue();
+            return;
+        }
+        final ValueType type = ValueType.of(propertyValue.getClass());
+        switch (type.kind()) {
+            case STRING:
+                out.value((String) propertyValue);
+                break;
+            case BOOLEAN:
+                out.value((Boolean) propertyValue);
+                break;
+            case NUMBER:
+                out.value((Number) propertyValue);
+                break;
+            case CHARACTER:
+                out.value(propertyValue.toString());
+                break;
+            case ENUM:
+                out.value(((Enum<?>) propertyValue).ordinal());
+                break;
+            case OBJECT_ARRAY:
+                writeArray(out, (Object[]) propertyValue);
+                break;
+            case COLLECTION:
+                writeArray(out, (Iterable<?>) propertyValue);
+                break;
+            case MAP:
+                writeObject(out, (Map<?, ?>) propertyValue);
+                break;
+            case SERIALIZER:
+                writeElement(out, ((TLASerializer) propertyValue).tlaSerialize());
+                break;
+            case RECORD:
+                out.beginObject();
+                for (int i = 0; i < type.componentCount(); i++) {
+                    out.name(type.componentName(i));
+                    writeValue(out, type.componentValue(propertyValue, i));
+                }
+                out.endObject();
+                break;
+            case INT_ARRAY:
+                out.beginArray();
+                for (int e : (int[]) propertyValue) {
+                    out.value(e);
+                }
+                out.endArray();
+                break;
+            case LONG_ARRAY:
+                out.beginArray();
+                for (long e : (long[]) propertyValue) {
+                    out.value(e);
+                }
+                out.endArray();
+                break;
+            case PRIMITIVE_ARRAY:
+                out.beginArray();
+                for (int i = 0; i < Array.getLength(propertyValue); i++) {
+                    writeValue(out, Array.get(propertyValue, i));
+                }
+                out.endArray();
+                break;
+            case CUSTOM:
+                writeValue(out, type.encode(propertyValue));
+                break;
+            default:
+                throw new IllegalAccessException("Unknown");
+        }
+    }
+
+    /**
+     * Writes the given collection as a JSON array.
+     */
+    public static void writeArray(JsonWriter out, Iterable<?> list) throws IllegalAccessException, IOException {
+        out.beginArray();
+        for (Object e : list) {
+            writeValue(out, e);
+        }
+        out.endArray();
+    }
+
+    /**
+     * Writes the given array as a JSON array.
+     */
+    public static void writeArray(JsonWriter out, Object[] array) throws IllegalAccessException, IOException {
+        out.beginArray();
+        for (Object e : array) {
+            writeValue(out, e);
+        }
+        out.endArray();
+    }
+
+    /**
+     * Writes the given map as a JSON object.
+     */
+    static void writeObject(JsonWriter out, Map<?, ?> map) throws IllegalAccessException, IOException {
+        out.beginObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            out.name(entry.getKey().toString());
+            writeValue(out, entry.getValue());
+        }
+        out.endObject();
+    }
+
+    /**
+     * Writes an already built JSON element.
+     */
+    public static void writeElement(JsonWriter out, JsonElement element) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            out.nullValue();
+        } else if (element.isJsonPrimitive()) {
+            final JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean())
+                out.value(primitive.getAsBoolean());
+            else if (primitive.isNumber())
+                out.value(primitive.getAsNumber());
+            else
+                out.value(primitive.getAsString());
+        } else if (element.isJsonArray()) {
+            out.beginArray();
+            for (JsonElement e : element.getAsJsonArray()) {
+                writeElement(out, e);
+            }
+            out.endArray();
+        } else {
+            out.beginObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                out.name(entry.getKey());
+                writeElement(out, entry.getValue());
+            }
+            out.endObject();
+        }
+    }
 }
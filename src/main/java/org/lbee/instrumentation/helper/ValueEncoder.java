@@ -0,0 +1,17 @@
+package org.lbee.instrumentation.helper;
+
+/**
+ * Converts the values of a class that the serializers do not support into
+ * values they support (e.g. a map, a list, a string...). Registered with
+ * {@link NDJsonSerializer#registerEncoder(Class, ValueEncoder)}.
+ *
+ * @param <T> the class of the values
+ */
+@FunctionalInterface
+public interface ValueEncoder<T> {
+    /**
+     * @param value the value to convert
+     * @return the value serialized instead
+     */
+    Object encode(T value);
+}
@@ -0,0 +1,236 @@
+package org.lbee.instrumentation.helper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How the values of a class are serialized in a trace. The type of a class is
+ * computed once and cached (with a {@link ClassValue}), so that the
+ * serializers dispatch on the kind of a value with a single lookup instead of
+ * a chain of <code>instanceof</code> checks.
+ *
+ * The types are resolved in the following order: strings, booleans, numbers
+ * and characters, which are always written as such, then a custom encoder
+ * registered for the class or one of its supertypes, then the other types
+ * historically supported by the serializer (enums, arrays of objects, lists,
+ * hash sets, maps and {@link TLASerializer}s), then any other collection,
+ * records and arrays of primitives.
+ */
+public final class ValueType {
+    /**
+     * Kind of the values of a class.
+     */
+    public enum Kind {
+        STRING, BOOLEAN, NUMBER, CHARACTER, ENUM, OBJECT_ARRAY, COLLECTION, MAP, SERIALIZER, RECORD, INT_ARRAY,
+        LONG_ARRAY, PRIMITIVE_ARRAY, CUSTOM, UNKNOWN
+    }
+
+    // custom encoders, by class
+    private static final Map<Class<?>, ValueEncoder<?>> encoders = new ConcurrentHashMap<>();
+    // types computed with the current encoders (replaced when an encoder is
+    // registered)
+    private static volatile ClassValue<ValueType> types = newTypes();
+
+    private final Kind kind;
+    // custom encoder (CUSTOM kind)
+    private final ValueEncoder<Object> encoder;
+    // names and accessors of the components (RECORD kind)
+    private final String[] componentNames;
+    private final Method[] accessors;
+
+    private ValueType(Kind kind, ValueEncoder<Object> encoder, String[] componentNames, Method[] accessors) {
+        this.kind = kind;
+        this.encoder = encoder;
+        this.componentNames = componentNames;
+        this.accessors = accessors;
+    }
+
+    /**
+     * Returns the type of the values of a class.
+     *
+     * @param type the class
+     * @return how the values of the class are serialized
+     */
+    public static ValueType of(Class<?> type) {
+        return types.get(type);
+    }
+
+    /**
+     * Registers an encoder for the values of a class (and of its subclasses,
+     * unless they have their own encoder). The encoder converts a value into a
+     * value that can be serialized (e.g. a map, a list, a string...).
+     *
+     * @param <T>     the class of the values
+     * @param type    the class of the values
+     * @param encoder the encoder
+     */
+    public static <T> void register(Class<T> type, ValueEncoder<? super T> encoder) {
+        encoders.put(type, encoder);
+        types = newTypes();
+    }
+
+    /**
+     * Removes the encoder registered for a class.
+     *
+     * @param type the class
+     */
+    public static void unregister(Class<?> type) {
+        if (encoders.remove(type) != null) {
+            types = newTypes();
+        }
+    }
+
+    private static ClassValue<ValueType> newTypes() {
+        return new ClassValue<>() {
+            @Override
+            protected ValueType computeValue(Class<?> type) {
+                return resolve(type);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ValueType resolve(Class<?> type) {
+        // the values an encoder converts to are never encoded again
+        if (type == String.class) {
+            return new ValueType(Kind.STRING, null, null, null);
+        } else if (type == Boolean.class) {
+            return new ValueType(Kind.BOOLEAN, null, null, null);
+        } else if (Number.class.isAssignableFrom(type)) {
+            return new ValueType(Kind.NUMBER, null, null, null);
+        } else if (type == Character.class) {
+            return new ValueType(Kind.CHARACTER, null, null, null);
+        }
+        final ValueEncoder<?> custom = encoderOf(type);
+        if (custom != null) {
+            return new ValueType(Kind.CUSTOM, (ValueEncoder<Object>) custom, null, null);
+        }
+        final Kind kind;
+        if (Enum.class.isAssignableFrom(type)) {
+            kind = Kind.ENUM;
+        } else if (type.isArray() && !type.getComponentType().isPrimitive()) {
+            kind = Kind.OBJECT_ARRAY;
+        } else if (List.class.isAssignableFrom(type) || HashSet.class.isAssignableFrom(type)) {
+            kind = Kind.COLLECTION;
+        } else if (Map.class.isAssignableFrom(type)) {
+            kind = Kind.MAP;
+        } else if (TLASerializer.class.isAssignableFrom(type)) {
+            kind = Kind.SERIALIZER;
+        } else if (Collection.class.isAssignableFrom(type)) {
+            kind = Kind.COLLECTION;
+        } else if (type.isRecord()) {
+            return record(type);
+        } else if (type == int[].class) {
+            kind = Kind.INT_ARRAY;
+        } else if (type == long[].class) {
+            kind = Kind.LONG_ARRAY;
+        } else if (type.isArray()) {
+            kind = Kind.PRIMITIVE_ARRAY;
+        } else {
+            kind = Kind.UNKNOWN;
+        }
+        return new ValueType(kind, null, null, null);
+    }
+
+    /**
+     * Returns the encoder registered for the class or for its nearest supertype
+     * (superclasses first, then interfaces).
+     */
+    private static ValueEncoder<?> encoderOf(Class<?> type) {
+        if (encoders.isEmpty()) {
+            return null;
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            final ValueEncoder<?> encoder = encoders.get(c);
+            if (encoder != null) {
+                return encoder;
+            }
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                final ValueEncoder<?> encoder = encoderOf(i);
+                if (encoder != null) {
+                    return encoder;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static ValueType record(Class<?> type) {
+        final RecordComponent[] components = type.getRecordComponents();
+        final String[] names = new String[components.length];
+        final Method[] accessors = new Method[components.length];
+        for (int i = 0; i < components.length; i++) {
+            names[i] = components[i].getName();
+            accessors[i] = components[i].getAccessor();
+            try {
+                accessors[i].setAccessible(true);
+            } catch (RuntimeException e) {
+                // not accessible: the record is serialized if its accessors are public
+            }
+        }
+        return new ValueType(Kind.RECORD, null, names, accessors);
+    }
+
+    /**
+     * @return the kind of the values of the class
+     */
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Converts a value with the custom encoder (CUSTOM kind).
+     *
+     * @param value the value
+     * @return the value to serialize instead
+     * @throws IllegalAccessException if the encoder returns a value it would
+     *                                encode again
+     */
+    public Object encode(Object value) throws IllegalAccessException {
+        final Object encoded = encoder.encode(value);
+        if (encoded != null && of(encoded.getClass()).encoder == encoder) {
+            throw new IllegalAccessException("Encoder of " + value.getClass().getName()
+                    + " returned a value it encodes again: " + encoded.getClass().getName());
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the number of components (RECORD kind)
+     */
+    public int componentCount() {
+        return componentNames.length;
+    }
+
+    /**
+     * @param index index of a component (RECORD kind)
+     * @return the name of the component
+     */
+    public String componentName(int index) {
+        return componentNames[index];
+    }
+
+    /**
+     * Returns the value of a component of a record (RECORD kind).
+     *
+     * @param record the record
+     * @param index  index of the component
+     * @return the value of the component
+     * @throws IllegalAccessException if the component is not accessible
+     */
+    public Object componentValue(Object record, int index) throws IllegalAccessException {
+        try {
+            return accessors[index].invoke(record);
+        } catch (InvocationTargetException e) {
+            throw new IllegalAccessException("Error in accessor " + componentNames[index] + ": " + e.getCause());
+        }
+    }
+}
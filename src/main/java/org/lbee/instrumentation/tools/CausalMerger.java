@@ -0,0 +1,482 @@
+package org.lbee.instrumentation.tools;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Merges the trace files written by tracers using a
+ * {@link org.lbee.instrumentation.clock.VectorClock} into a single trace whose
+ * order respects causality: an event is written only once all the events that
+ * happened before it (according to its vector clock) are written. Among the
+ * events that can be written, the merger picks the one with the smallest
+ * clock (<code>--order clock</code>, the closest to the order of the Lamport
+ * clocks), or a random one (<code>--order random</code>, with a seed, to get
+ * another linearization of the concurrent events).
+ *
+ * Each file is expected to contain the events of a single tracer. The vector
+ * of an event is rebuilt from the entries changed by the event and the
+ * vectors of the previous events of its tracer, which are read in the order
+ * of their ticks (a window of the next events of each file absorbs the events
+ * written slightly out of order). The memory used is bounded by the number of
+ * files times the window. When no event can be written (e.g. an event of a
+ * tracer is missing), the event with the smallest clock is written and
+ * counted as unresolved.
+ *
+ * Usage: <code>CausalMerger [files...] [--order clock|random] [--seed 0]
+ * [--remove_meta true] [--vectors false] [--out trace.ndjson]
+ * [--window 1024]</code>. The entries of the vector clocks are removed from
+ * the merged events; with <code>--vectors true</code>, the full vector of each
+ * event is written instead (<code>vclock</code>, by logger).
+ */
+public class CausalMerger {
+    /**
+     * How the next event is chosen among the events whose causes are written.
+     */
+    public enum Order {
+        // smallest clock first
+        CLOCK,
+        // random choice
+        RANDOM
+    }
+
+    /**
+     * An event waiting to be merged.
+     */
+    private static final class Event {
+        private final long clock;
+        // number of the event in its tracer (line of the event if it has no vector
+        // clock)
+        private final long tick;
+        private final String logger;
+        private final Input input;
+        private final long line;
+        private final String json;
+        // ids added to the dictionary and changed entries of the vector clock
+        private final List<String> ids;
+        private final long[] entries;
+        // full vector (by logger), if requested
+        private Map<String, Long> vector;
+        // rank among the events that can be written
+        private long rank;
+        // whether the event waits for some of its causes to be written
+        private boolean waiting;
+
+        private Event(long clock, long tick, String logger, Input input, long line, String json, List<String> ids,
+                long[] entries) {
+            this.clock = clock;
+            this.tick = tick;
+            this.logger = logger;
+            this.input = input;
+            this.line = line;
+            this.json = json;
+            this.ids = ids;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * An event waiting for the given number of events of a tracer to be
+     * written.
+     */
+    private record Waiter(long needed, Event event) {
+    }
+
+    /**
+     * A trace file being merged, with a window of its next events sorted by
+     * tick, and the vector clock of its tracer.
+     */
+    private static final class Input {
+        private final int index;
+        private final String path;
+        private final BufferedReader reader;
+        private final PriorityQueue<Event> window = new PriorityQueue<>(
+                Comparator.<Event>comparingLong(e -> e.tick).thenComparingLong(e -> e.line));
+        // dictionary and entries of the vector clock of each tracer
+        private final Map<String, List<String>> dictionaries = new HashMap<>();
+        private final Map<String, long[]> vectors = new HashMap<>();
+        private long lines;
+
+        private Input(int index, String path) throws IOException {
+            this.index = index;
+            this.path = path;
+            this.reader = TraceMerger.open(path);
+        }
+
+        /**
+         * Fills the window, then returns its first event (null at the end of
+         * the file) after applying its entries to the vector clock.
+         */
+        private Event next(int size) throws IOException {
+            String line;
+            while (window.size() < size && (line = reader.readLine()) != null) {
+                lines++;
+                if (!line.isBlank()) {
+                    window.add(parse(line, this, lines));
+                }
+            }
+            final Event event = window.poll();
+            if (event != null && event.entries != null) {
+                final List<String> dictionary = dictionaries.computeIfAbsent(event.logger, l -> {
+                    final List<String> d = new ArrayList<>();
+                    d.add(l);
+                    return d;
+                });
+                dictionary.addAll(event.ids);
+                long[] vector = vectors.getOrDefault(event.logger, new long[0]);
+                if (vector.length < dictionary.size()) {
+                    vector = Arrays.copyOf(vector, dictionary.size());
+                }
+                for (int e = 0; e < event.entries.length; e += 2) {
+                    final int i = (int) event.entries[e];
+                    if (i >= vector.length) {
+                        throw new IOException("Unknown vector clock entry at " + path + ":" + event.line);
+                    }
+                    vector[i] = Math.max(vector[i], event.entries[e + 1]);
+                }
+                vectors.put(event.logger, vector);
+            }
+            return event;
+        }
+
+        /**
+         * @return the id of the tracer of an entry of the vector clock of the
+         *         tracer of an event
+         */
+        private String process(Event event, int i) {
+            return dictionaries.get(event.logger).get(i);
+        }
+    }
+
+    private final Order order;
+    private final Random random;
+    private final boolean removeMeta;
+    private final boolean vectors;
+    private final int window;
+    // number of events written before some of their causes
+    private long unresolved;
+    // number of events of each tracer written
+    private final Map<String, Long> written = new HashMap<>();
+    // events waiting for the events of each tracer to be written
+    private final Map<String, PriorityQueue<Waiter>> waiting = new HashMap<>();
+
+    /**
+     * Create a merger.
+     *
+     * @param order      How the next event is chosen among the events whose
+     *                   causes are written.
+     * @param seed       Seed of the random choices.
+     * @param removeMeta Remove the clock and sender of the events.
+     * @param vectors    Write the full vector clock of the events.
+     * @param window     Number of events of each file kept sorted (at least 1).
+     */
+    public CausalMerger(Order order, long seed, boolean removeMeta, boolean vectors, int window) {
+        this.order = order;
+        this.random = new Random(seed);
+        this.removeMeta = removeMeta;
+        this.vectors = vectors;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Merge trace files.
+     *
+     * @param files Trace files (possibly gzipped), or directories whose
+     *              <code>.ndjson</code> and <code>.ndjson.gz</code> files are
+     *              merged.
+     * @param out   The file the merged trace is written to.
+     * @return the number of events merged
+     * @throws IOException Thrown when unable to read or write a trace.
+     */
+    public long merge(List<String> files, String out) throws IOException {
+        final List<Input> inputs = new ArrayList<>();
+        written.clear();
+        waiting.clear();
+        unresolved = 0;
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8),
+                1 << 16)) {
+            for (String path : TraceMerger.expand(files)) {
+                inputs.add(new Input(inputs.size(), path));
+            }
+            // events whose causes are written, by rank
+            final PriorityQueue<Event> ready = new PriorityQueue<>(Comparator.<Event>comparingLong(e -> e.rank)
+                    .thenComparingInt(e -> e.input.index).thenComparingLong(e -> e.line));
+            // first event of each input, by clock (to resolve blocked merges)
+            final PriorityQueue<Event> heads = new PriorityQueue<>(Comparator.<Event>comparingLong(e -> e.clock)
+                    .thenComparingInt(e -> e.input.index).thenComparingLong(e -> e.line));
+            for (Input input : inputs) {
+                head(input.next(window), ready, heads);
+            }
+            long events = 0;
+            while (!heads.isEmpty()) {
+                Event event = ready.poll();
+                if (event == null) {
+                    // no event can be written: the causes of the events are
+                    // missing, write the first one by clock
+                    event = heads.peek();
+                    event.waiting = false;
+                    unresolved++;
+                }
+                heads.remove(event);
+                write(event, writer);
+                events++;
+                if (event.entries != null) {
+                    written.merge(event.logger, event.tick, Math::max);
+                    wakeUp(event.logger, ready);
+                }
+                head(event.input.next(window), ready, heads);
+            }
+            return events;
+        } finally {
+            for (Input input : inputs) {
+                input.reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of events written before some of their causes by the
+     *         last merge
+     */
+    public long getUnresolved() {
+        return unresolved;
+    }
+
+    private void head(Event event, PriorityQueue<Event> ready, PriorityQueue<Event> heads) {
+        if (event == null) {
+            return;
+        }
+        heads.add(event);
+        if (vectors && event.entries != null) {
+            final long[] vector = event.input.vectors.get(event.logger);
+            event.vector = new HashMap<>();
+            for (int i = 0; i < vector.length; i++) {
+                if (vector[i] > 0) {
+                    event.vector.put(event.input.process(event, i), vector[i]);
+                }
+            }
+        }
+        check(event, ready);
+    }
+
+    /**
+     * Makes an event ready if the events that happened before it are written,
+     * otherwise makes it wait for the first missing one. Only the entries
+     * changed by the event are checked: the other ones were checked for the
+     * previous events of its tracer.
+     */
+    private void check(Event event, PriorityQueue<Event> ready) {
+        if (event.entries != null) {
+            for (int e = 0; e < event.entries.length; e += 2) {
+                final String process = event.input.process(event, (int) event.entries[e]);
+                // the entry of the tracer of the event counts the event itself
+                final long needed = process.equals(event.logger) ? event.entries[e + 1] - 1 : event.entries[e + 1];
+                if (written.getOrDefault(process, 0L) < needed) {
+                    event.waiting = true;
+                    waiting.computeIfAbsent(process, p -> new PriorityQueue<>(Comparator.comparingLong(Waiter::needed)))
+                            .add(new Waiter(needed, event));
+                    return;
+                }
+            }
+        }
+        event.rank = order == Order.CLOCK ? event.clock : random.nextLong();
+        ready.add(event);
+    }
+
+    /**
+     * Checks again the events waiting for the events of a tracer.
+     */
+    private void wakeUp(String logger, PriorityQueue<Event> ready) {
+        final PriorityQueue<Waiter> waiters = waiting.get(logger);
+        final long count = written.get(logger);
+        while (waiters != null && !waiters.isEmpty() && waiters.peek().needed() <= count) {
+            final Event waiter = waiters.poll().event();
+            // (events written before their causes no longer wait)
+            if (waiter.waiting) {
+                waiter.waiting = false;
+                check(waiter, ready);
+            }
+        }
+    }
+
+    private void write(Event event, Writer writer) throws IOException {
+        String json = event.json;
+        if (event.entries != null) {
+            json = event.vector == null ? removeVector(json) : null;
+            if (json == null) {
+                json = withVector(event);
+            }
+        }
+        writer.write(removeMeta ? TraceMerger.removeMeta(json) : json);
+        writer.write('\n');
+    }
+
+    /**
+     * Removes the vector clock of an event written by the tracer (just before
+     * its logger), without parsing it.
+     *
+     * @return the event, or null if the vector clock is not where the tracer
+     *         writes it
+     */
+    static String removeVector(String json) {
+        final int vclock = json.lastIndexOf(",\"vclock\":[");
+        if (vclock < 0) {
+            return null;
+        }
+        final int end = json.indexOf(']', vclock) + 1;
+        if (end == 0 || !json.startsWith(",\"logger\":", end)) {
+            return null;
+        }
+        int start = vclock;
+        final int ids = json.lastIndexOf(",\"vclock_ids\":[", vclock);
+        if (ids >= 0 && json.indexOf(']', ids) == vclock - 1) {
+            start = ids;
+        }
+        return json.substring(0, start) + json.substring(end);
+    }
+
+    /**
+     * Replaces the entries of the vector clock of an event by its full vector
+     * (if requested).
+     */
+    private static String withVector(Event event) {
+        final JsonObject json = JsonParser.parseString(event.json).getAsJsonObject();
+        json.remove("vclock_ids");
+        json.remove("vclock");
+        if (event.vector != null) {
+            final JsonObject vector = new JsonObject();
+            for (Map.Entry<String, Long> entry : event.vector.entrySet()) {
+                vector.addProperty(entry.getKey(), entry.getValue());
+            }
+            // keep the logger last
+            final String logger = json.remove("logger").getAsString();
+            json.add("vclock", vector);
+            json.addProperty("logger", logger);
+        }
+        return json.toString();
+    }
+
+    /**
+     * Reads the clock, the logger and the vector clock of an event.
+     */
+    private static Event parse(String json, Input input, long line) throws IOException {
+        long clock = 0;
+        String logger = null;
+        List<String> ids = List.of();
+        long[] entries = null;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "clock":
+                        clock = reader.nextLong();
+                        break;
+                    case "logger":
+                        logger = reader.nextString();
+                        break;
+                    case "vclock_ids":
+                        ids = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            ids.add(reader.nextString());
+                        }
+                        reader.endArray();
+                        break;
+                    case "vclock":
+                        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                            throw new IOException("Full vector clock (already merged trace) at " + input.path + ":"
+                                    + line);
+                        }
+                        final List<Long> values = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            values.add(reader.nextLong());
+                        }
+                        reader.endArray();
+                        entries = values.stream().mapToLong(Long::longValue).toArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid event at " + input.path + ":" + line + ": " + e.getMessage());
+        }
+        long tick = 0;
+        if (entries != null) {
+            if (logger == null) {
+                throw new IOException("Vector clock without logger at " + input.path + ":" + line);
+            }
+            // the entry of the tracer (index 0) is changed by each event
+            for (int e = 0; e < entries.length; e += 2) {
+                if (entries[e] == 0) {
+                    tick = entries[e + 1];
+                }
+            }
+        } else {
+            // events without vector clock are kept in the order of the file
+            tick = line;
+        }
+        return new Event(clock, tick, logger, input, line, json, ids, entries);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final List<String> files = new ArrayList<>();
+        Order order = Order.CLOCK;
+        long seed = 0;
+        boolean removeMeta = true;
+        boolean vectors = false;
+        String out = "trace.ndjson";
+        int window = TraceMerger.DEFAULT_WINDOW;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--order":
+                    order = Order.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--remove_meta":
+                    removeMeta = TraceMerger.parseBoolean(args[++i]);
+                    break;
+                case "--vectors":
+                    vectors = TraceMerger.parseBoolean(args[++i]);
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                case "--window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    files.add(args[i]);
+            }
+        }
+        System.out.println("Traces merged: " + files);
+        final CausalMerger merger = new CausalMerger(order, seed, removeMeta, vectors, window);
+        merger.merge(files, out);
+        if (merger.getUnresolved() > 0) {
+            System.out.println("Warning: " + merger.getUnresolved()
+                    + " events written before some of their causes (missing events, or several tracers per file)");
+        }
+    }
+}
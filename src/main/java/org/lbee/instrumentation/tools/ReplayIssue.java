@@ -0,0 +1,15 @@
+package org.lbee.instrumentation.tools;
+
+/**
+ * A problem found by a {@link TraceReplayer} in a trace.
+ *
+ * @param line    line of the event in the trace (starting at 1)
+ * @param clock   clock of the event (-1 if the event has no clock)
+ * @param message description of the problem
+ */
+public record ReplayIssue(long line, long clock, String message) {
+    @Override
+    public String toString() {
+        return "line " + line + (clock >= 0 ? " (clock " + clock + ")" : "") + ": " + message;
+    }
+}
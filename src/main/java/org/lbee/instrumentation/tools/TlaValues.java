@@ -0,0 +1,151 @@
+package org.lbee.instrumentation.tools;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory model of the TLA+ values read from a trace, as
+ * <code>ndJsonDeserialize</code> builds them: JSON objects are records
+ * ({@link Map}, also used for functions and bags), JSON arrays are sequences
+ * ({@link List}), integers are {@link Long}s (other numbers
+ * {@link BigDecimal}s) and <code>null</code> is <code>Nil</code>. Sets,
+ * built by the set operators, are {@link Set}s. All the containers are
+ * mutable and compared structurally.
+ */
+final class TlaValues {
+    private TlaValues() {
+    }
+
+    /**
+     * Reads the next JSON value.
+     */
+    static Object read(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case BEGIN_OBJECT: {
+                final Map<Object, Object> record = new LinkedHashMap<>();
+                in.beginObject();
+                while (in.hasNext()) {
+                    record.put(in.nextName(), read(in));
+                }
+                in.endObject();
+                return record;
+            }
+            case BEGIN_ARRAY: {
+                final List<Object> sequence = new ArrayList<>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    sequence.add(read(in));
+                }
+                in.endArray();
+                return sequence;
+            }
+            case STRING:
+                return in.nextString();
+            case NUMBER:
+                return number(in.nextString());
+            case BOOLEAN:
+                return in.nextBoolean();
+            case NULL:
+                in.nextNull();
+                return null;
+            default:
+                throw new IllegalStateException("Unexpected " + in.peek());
+        }
+    }
+
+    private static Object number(String literal) {
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            // not a long, e.g. 1.5, 1e3 or a big integer
+        }
+        final BigDecimal value = new BigDecimal(literal);
+        try {
+            return value.longValueExact();
+        } catch (ArithmeticException e) {
+            return value;
+        }
+    }
+
+    /**
+     * Writes a value as JSON (sets as arrays).
+     */
+    static void write(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof Map<?, ?>) {
+            out.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                out.name(entry.getKey().toString());
+                write(out, entry.getValue());
+            }
+            out.endObject();
+        } else if (value instanceof Collection<?>) {
+            out.beginArray();
+            for (Object element : (Collection<?>) value) {
+                write(out, element);
+            }
+            out.endArray();
+        } else if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Boolean) {
+            out.value((Boolean) value);
+        } else {
+            out.value((Number) value);
+        }
+    }
+
+    /**
+     * Returns a deep copy of a value (the copy can be modified without
+     * modifying the value).
+     */
+    static Object copy(Object value) {
+        if (value instanceof Map<?, ?>) {
+            final Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copy(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof List<?>) {
+            final List<Object> copy = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                copy.add(copy(element));
+            }
+            return copy;
+        } else if (value instanceof Set<?>) {
+            // elements of a set are never modified in place
+            return new LinkedHashSet<>((Set<?>) value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns a short description of the kind of a value, for error messages.
+     */
+    static String kind(Object value) {
+        if (value == null) {
+            return "Nil";
+        } else if (value instanceof Map<?, ?>) {
+            return "a function";
+        } else if (value instanceof List<?>) {
+            return "a sequence";
+        } else if (value instanceof Set<?>) {
+            return "a set";
+        } else if (value instanceof String) {
+            return "a string";
+        } else if (value instanceof Boolean) {
+            return "a boolean";
+        }
+        return "a number";
+    }
+}
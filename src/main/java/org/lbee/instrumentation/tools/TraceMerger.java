@@ -0,0 +1,361 @@
+package org.lbee.instrumentation.tools;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Merges the trace files written by several processes into a single trace,
+ * as <code>scripts/trace_merger.py</code> does, but streaming: the files are
+ * read line by line and, when sorting, merged with a k-way heap merge on the
+ * clock of the events. The memory used is bounded by the number of files
+ * (times the reordering window), not by the size of the traces.
+ *
+ * Each file written by a tracer is sorted by clock, except for events logged
+ * concurrently by several threads that may be slightly out of order; a window
+ * of the next events of each file is kept sorted to absorb such local
+ * disorder. Events out of order by more than the window are reported.
+ *
+ * Usage: <code>TraceMerger [files...] [--config conf.ndjson] [--sort true]
+ * [--remove_meta true] [--out trace.ndjson] [--window 1024]</code>, with the
+ * same meaning and defaults as the Python script.
+ */
+public class TraceMerger {
+    // default number of events of each file kept sorted
+    public static final int DEFAULT_WINDOW = 1024;
+
+    /**
+     * An event waiting to be merged.
+     */
+    private static final class Event implements Comparable<Event> {
+        private final long clock;
+        // position of the event: file and line in the file
+        private final int file;
+        private final long line;
+        private final String json;
+
+        private Event(long clock, int file, long line, String json) {
+            this.clock = clock;
+            this.file = file;
+            this.line = line;
+            this.json = json;
+        }
+
+        /**
+         * Events are ordered by clock, then by position (as the stable sort of
+         * the concatenated files done by the Python script).
+         */
+        @Override
+        public int compareTo(Event other) {
+            int c = Long.compare(clock, other.clock);
+            if (c == 0) {
+                c = Integer.compare(file, other.file);
+            }
+            if (c == 0) {
+                c = Long.compare(line, other.line);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * A trace file being merged, with a sorted window of its next events.
+     */
+    private static final class Input {
+        private final int index;
+        private final String path;
+        private final BufferedReader reader;
+        private final PriorityQueue<Event> window = new PriorityQueue<>();
+        private long lines;
+
+        private Input(int index, String path) throws IOException {
+            this.index = index;
+            this.path = path;
+            this.reader = open(path);
+        }
+
+        /**
+         * Fills the window, then returns its first event (null at the end of
+         * the file).
+         */
+        private Event next(int size) throws IOException {
+            String line;
+            while (window.size() < size && (line = reader.readLine()) != null) {
+                lines++;
+                if (!line.isBlank()) {
+                    window.add(new Event(clockOf(line, path, lines), index, lines, line));
+                }
+            }
+            return window.poll();
+        }
+    }
+
+    private final boolean sort;
+    private final boolean removeMeta;
+    private final int window;
+    // number of events written out of clock order
+    private long outOfOrder;
+
+    /**
+     * Create a merger.
+     *
+     * @param sort       Sort the events by clock.
+     * @param removeMeta Remove the clock and sender of the events.
+     * @param window     Number of events of each file kept sorted (at least 1).
+     */
+    public TraceMerger(boolean sort, boolean removeMeta, int window) {
+        this.sort = sort;
+        this.removeMeta = removeMeta;
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Merge trace files.
+     *
+     * @param files Trace files (possibly gzipped), or directories whose
+     *              <code>.ndjson</code> and <code>.ndjson.gz</code> files are
+     *              merged.
+     * @param out   The file the merged trace is written to.
+     * @return the number of events merged
+     * @throws IOException Thrown when unable to read or write a trace.
+     */
+    public long merge(List<String> files, String out) throws IOException {
+        final List<String> paths = expand(files);
+        final List<Input> inputs = new ArrayList<>();
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8),
+                1 << 16)) {
+            for (String path : paths) {
+                inputs.add(new Input(inputs.size(), path));
+            }
+            return sort ? mergeSorted(inputs, writer) : concatenate(inputs, writer);
+        } finally {
+            for (Input input : inputs) {
+                input.reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of events written out of clock order by the last
+     *         sorted merge (events displaced by more than the window)
+     */
+    public long getOutOfOrder() {
+        return outOfOrder;
+    }
+
+    private long mergeSorted(List<Input> inputs, Writer writer) throws IOException {
+        // heap of the first event of each input
+        final PriorityQueue<Event> heads = new PriorityQueue<>();
+        for (Input input : inputs) {
+            final Event first = input.next(window);
+            if (first != null) {
+                heads.add(first);
+            }
+        }
+        long events = 0;
+        long lastClock = Long.MIN_VALUE;
+        outOfOrder = 0;
+        while (!heads.isEmpty()) {
+            final Event event = heads.poll();
+            if (event.clock < lastClock) {
+                outOfOrder++;
+            }
+            lastClock = Math.max(lastClock, event.clock);
+            write(event.json, writer);
+            events++;
+            final Event next = inputs.get(event.file).next(window);
+            if (next != null) {
+                heads.add(next);
+            }
+        }
+        return events;
+    }
+
+    private long concatenate(List<Input> inputs, Writer writer) throws IOException {
+        long events = 0;
+        for (Input input : inputs) {
+            String line;
+            while ((line = input.reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    write(line, writer);
+                    events++;
+                }
+            }
+        }
+        return events;
+    }
+
+    private void write(String json, Writer writer) throws IOException {
+        if (removeMeta) {
+            writer.write(removeMeta(json));
+        } else {
+            writer.write(json);
+        }
+        writer.write('\n');
+    }
+
+    /**
+     * Removes the clock, the sender and the vector clock of an event. The
+     * events written by the tracer start with their clock, which is simply
+     * cut; other events are parsed.
+     */
+    static String removeMeta(String json) {
+        final String prefix = "{\"clock\":";
+        if (json.startsWith(prefix) && !json.contains("\"sender\"") && !json.contains("\"vclock\"")) {
+            int end = prefix.length();
+            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) {
+                end++;
+            }
+            if (end > prefix.length() && end < json.length()) {
+                if (json.charAt(end) == ',') {
+                    return "{" + json.substring(end + 1);
+                } else if (json.charAt(end) == '}') {
+                    return "{" + json.substring(end);
+                }
+            }
+        }
+        final JsonObject event = JsonParser.parseString(json).getAsJsonObject();
+        event.remove("clock");
+        event.remove("sender");
+        event.remove("vclock");
+        event.remove("vclock_ids");
+        return event.toString();
+    }
+
+    /**
+     * Reads the clock of an event, without parsing more than needed (the clock
+     * is the first field of the events written by the tracer).
+     */
+    static long clockOf(String json, String path, long line) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("clock") && reader.peek() == JsonToken.NUMBER) {
+                    return reader.nextLong();
+                }
+                reader.skipValue();
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid event at " + path + ":" + line + ": " + e.getMessage());
+        }
+        throw new IOException("Event without clock at " + path + ":" + line);
+    }
+
+    /**
+     * Opens a trace file, decompressing it if it is gzipped (its name ends with
+     * <code>.gz</code>).
+     */
+    static BufferedReader open(String path) throws IOException {
+        if (path.endsWith(".gz")) {
+            return new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(Files.newInputStream(Paths.get(path)), 1 << 16), StandardCharsets.UTF_8),
+                    1 << 16);
+        }
+        return new BufferedReader(Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    /**
+     * Replaces the directories by the <code>.ndjson</code> (and
+     * <code>.ndjson.gz</code>) files they contain.
+     */
+    static List<String> expand(List<String> files) {
+        final List<String> paths = new ArrayList<>();
+        for (String f : files) {
+            final File file = new File(f);
+            if (file.isFile()) {
+                paths.add(f);
+            } else {
+                final String[] names = file
+                        .list((dir, name) -> name.endsWith(".ndjson") || name.endsWith(".ndjson.gz"));
+                if (names != null) {
+                    Arrays.sort(names);
+                    for (String name : names) {
+                        paths.add(new File(file, name).getPath());
+                    }
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Get the files to be merged from the config file: for each line, each
+     * value is a list of trace names (without the <code>.ndjson</code>
+     * extension). Should be adapted to the specific format of the config file.
+     */
+    static List<String> filesOfConfig(String config) throws IOException {
+        final List<String> files = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(config), StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            for (JsonElement value : JsonParser.parseString(line).getAsJsonObject().asMap().values()) {
+                for (JsonElement f : value.getAsJsonArray()) {
+                    files.add(f.getAsString() + ".ndjson");
+                }
+            }
+        }
+        return files;
+    }
+
+    static boolean parseBoolean(String value) {
+        return !(value.isEmpty() || value.equalsIgnoreCase("false") || value.equals("0"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        final List<String> files = new ArrayList<>();
+        String config = "conf.ndjson";
+        boolean sort = true;
+        boolean removeMeta = true;
+        String out = "trace.ndjson";
+        int window = DEFAULT_WINDOW;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--config":
+                    config = args[++i];
+                    break;
+                case "--sort":
+                    sort = parseBoolean(args[++i]);
+                    break;
+                case "--remove_meta":
+                    removeMeta = parseBoolean(args[++i]);
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                case "--window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    files.add(args[i]);
+            }
+        }
+        final List<String> toMerge = files.isEmpty() ? filesOfConfig(config) : files;
+        System.out.println("Traces merged: " + toMerge);
+        final TraceMerger merger = new TraceMerger(sort, removeMeta, window);
+        merger.merge(toMerge, out);
+        if (merger.getOutOfOrder() > 0) {
+            System.out.println("Warning: " + merger.getOutOfOrder()
+                    + " events out of clock order by more than the window, use a larger --window");
+        }
+    }
+}
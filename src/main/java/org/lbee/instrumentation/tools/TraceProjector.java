@@ -0,0 +1,394 @@
+package org.lbee.instrumentation.tools;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Projects a (merged) trace onto a subset of its variables and events, and
+ * slices it to a range of clocks or to a subset of the loggers, so that TLC
+ * only deserializes and checks what a validation run needs. The trace is
+ * streamed line by line: the memory used does not depend on its size.
+ *
+ * <ul>
+ * <li>the changes of the variables that are not selected are removed;</li>
+ * <li>the events whose name is not selected lose their name, arguments and
+ * description (their changes, if any remain, are still applied by the trace
+ * specification, as for events without name);</li>
+ * <li>the events out of the range of clocks, or logged by a logger that is not
+ * selected, are removed (events without clock or without logger, such as the
+ * initial event, are kept);</li>
+ * <li>the events left without changes and without name are either removed or
+ * replaced by a <code>Stuttering</code> event (see
+ * <code>IsStuttering</code> in <code>TraceSpec.tla</code>), which keeps the
+ * number of steps of the trace.</li>
+ * </ul>
+ * Logged exceptions and checkpoints are always kept (the checkpoints keep the
+ * values of the selected variables).
+ *
+ * Usage: <code>TraceProjector [files...] [--variables v1,v2]
+ * [--events e1,e2] [--loggers l1,l2] [--from clock] [--to clock]
+ * [--empty drop|stutter] [--out projection.ndjson]</code>. Without
+ * <code>--variables</code> (resp. <code>--events</code>,
+ * <code>--loggers</code>), all variables (resp. events, loggers) are kept.
+ */
+public class TraceProjector {
+    /**
+     * What becomes of the events left without content by the projection.
+     */
+    public enum EmptyEvents {
+        // the events are removed
+        DROP,
+        // the events are replaced by stuttering steps
+        STUTTER
+    }
+
+    // name of the events logged for exceptions
+    private static final String EXCEPTION = "__exception";
+    // name of the checkpoint events
+    private static final String CHECKPOINT = "__checkpoint";
+
+    // selected variables, events and loggers (null for all)
+    private final Set<String> variables;
+    private final Set<String> events;
+    private final Set<String> loggers;
+    // range of clocks (inclusive)
+    private final long from;
+    private final long to;
+    private final EmptyEvents empty;
+    // events read, written, and replaced by stuttering steps by the last projection
+    private long read;
+    private long written;
+    private long stuttering;
+    // buffer of the projected event
+    private final StringWriter buffer = new StringWriter(1 << 10);
+    // names and values of the fields read before the name of the event
+    private final List<String> pending = new ArrayList<>();
+
+    /**
+     * Create a projector.
+     *
+     * @param variables Variables kept (null for all).
+     * @param events    Events whose name is kept (null for all).
+     * @param loggers   Loggers whose events are kept (null for all).
+     * @param from      First clock kept.
+     * @param to        Last clock kept.
+     * @param empty     What becomes of the events left without content.
+     */
+    public TraceProjector(Set<String> variables, Set<String> events, Set<String> loggers, long from, long to,
+            EmptyEvents empty) {
+        this.variables = variables;
+        this.events = events;
+        this.loggers = loggers;
+        this.from = from;
+        this.to = to;
+        this.empty = empty;
+    }
+
+    /**
+     * Project trace files (concatenated in the given order).
+     *
+     * @param files Trace files (possibly gzipped), or directories whose
+     *              <code>.ndjson</code> and <code>.ndjson.gz</code> files are
+     *              projected.
+     * @param out   The file the projected trace is written to.
+     * @return the number of events written
+     * @throws IOException Thrown when unable to read or write a trace.
+     */
+    public long project(List<String> files, String out) throws IOException {
+        read = 0;
+        written = 0;
+        stuttering = 0;
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(Paths.get(out), StandardCharsets.UTF_8),
+                1 << 16)) {
+            for (String path : TraceMerger.expand(files)) {
+                try (BufferedReader reader = TraceMerger.open(path)) {
+                    long lines = 0;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lines++;
+                        if (line.isBlank()) {
+                            continue;
+                        }
+                        read++;
+                        final String projected = project(line, path, lines);
+                        if (projected != null) {
+                            writer.write(projected);
+                            writer.write('\n');
+                            written++;
+                        }
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Project an event.
+     *
+     * @param json The event.
+     * @param path The file of the event (reported on error).
+     * @param line The line of the event (reported on error).
+     * @return the projected event, or null if it is removed
+     * @throws IOException Thrown when the event is malformed.
+     */
+    String project(String json, String path, long line) throws IOException {
+        buffer.getBuffer().setLength(0);
+        // clock and logger of the event, kept by stuttering steps
+        String clock = null;
+        String logger = null;
+        String sender = null;
+        boolean named = false;
+        boolean changes = false;
+        pending.clear();
+        // not closed: the event may be removed before it is complete
+        final JsonWriter writer = new JsonWriter(buffer);
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            writer.beginObject();
+            // name of the event, known before its arguments and description
+            // for the events written by the tracer
+            Boolean eventKept = null;
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                switch (name) {
+                    case "clock": {
+                        clock = reader.nextString();
+                        final long c = Long.parseLong(clock);
+                        if (c < from || c > to) {
+                            return null;
+                        }
+                        writer.name(name).jsonValue(clock);
+                        break;
+                    }
+                    case "logger":
+                        logger = reader.nextString();
+                        if (loggers != null && !loggers.contains(logger)) {
+                            return null;
+                        }
+                        writer.name(name).value(logger);
+                        break;
+                    case "sender":
+                        sender = reader.nextString();
+                        writer.name(name).value(sender);
+                        break;
+                    case "vclock":
+                    case "vclock_ids":
+                        copyOrSkip(reader, writer.name(name));
+                        break;
+                    case "event": {
+                        final String event = reader.nextString();
+                        eventKept = events == null || events.contains(event) || event.equals(EXCEPTION)
+                                || event.equals(CHECKPOINT);
+                        if (eventKept) {
+                            writer.name(name).value(event);
+                            named = true;
+                            writePending(pending, writer);
+                        }
+                        pending.clear();
+                        break;
+                    }
+                    case "event_args":
+                    case "desc":
+                        if (eventKept == null) {
+                            // field before the name of the event: kept until the name is read
+                            pending.add(name);
+                            pending.add(toJson(reader));
+                        } else {
+                            copyOrSkip(reader, eventKept ? writer.name(name) : null);
+                        }
+                        break;
+                    default:
+                        if (variables == null || variables.contains(name)) {
+                            copyOrSkip(reader, writer.name(name));
+                            changes = true;
+                        } else {
+                            reader.skipValue();
+                        }
+                }
+            }
+            reader.endObject();
+            // arguments or description of an event without name
+            writePending(pending, writer);
+            writer.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid event at " + path + ":" + line + ": " + e.getMessage());
+        }
+        if (named || changes) {
+            return buffer.toString();
+        }
+        if (empty == EmptyEvents.DROP) {
+            return null;
+        }
+        stuttering++;
+        return stuttering(clock, logger, sender);
+    }
+
+    private String stuttering(String clock, String logger, String sender) throws IOException {
+        buffer.getBuffer().setLength(0);
+        try (JsonWriter writer = new JsonWriter(buffer)) {
+            writer.beginObject();
+            if (clock != null) {
+                writer.name("clock").jsonValue(clock);
+            }
+            writer.name("event").value("Stuttering");
+            if (logger != null) {
+                writer.name("logger").value(logger);
+            }
+            if (sender != null) {
+                writer.name("sender").value(sender);
+            }
+            writer.endObject();
+        }
+        return buffer.toString();
+    }
+
+    private static String toJson(JsonReader reader) throws IOException {
+        final StringWriter value = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(value)) {
+            copyOrSkip(reader, writer);
+        }
+        return value.toString();
+    }
+
+    private static void writePending(List<String> pending, JsonWriter writer) throws IOException {
+        for (int i = 0; i < pending.size(); i += 2) {
+            writer.name(pending.get(i)).jsonValue(pending.get(i + 1));
+        }
+        pending.clear();
+    }
+
+    /**
+     * Copies the next value of the reader to the writer, token by token (the
+     * numbers are copied as written), or skips it if the writer is null.
+     */
+    private static void copyOrSkip(JsonReader reader, JsonWriter writer) throws IOException {
+        if (writer == null) {
+            reader.skipValue();
+            return;
+        }
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyOrSkip(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyOrSkip(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected " + reader.peek() + " at " + reader.getPath());
+        }
+    }
+
+    /**
+     * @return the number of events read by the last projection
+     */
+    public long getRead() {
+        return read;
+    }
+
+    /**
+     * @return the number of events written by the last projection
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return the number of events replaced by stuttering steps by the last
+     *         projection
+     */
+    public long getStuttering() {
+        return stuttering;
+    }
+
+    private static Set<String> names(String value) {
+        return new HashSet<>(Arrays.asList(value.split(",")));
+    }
+
+    public static void main(String[] args) throws IOException {
+        final List<String> files = new ArrayList<>();
+        Set<String> variables = null;
+        Set<String> events = null;
+        Set<String> loggers = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        EmptyEvents empty = EmptyEvents.DROP;
+        String out = "projection.ndjson";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--variables":
+                    variables = names(args[++i]);
+                    break;
+                case "--events":
+                    events = names(args[++i]);
+                    break;
+                case "--loggers":
+                    loggers = names(args[++i]);
+                    break;
+                case "--from":
+                    from = Long.parseLong(args[++i]);
+                    break;
+                case "--to":
+                    to = Long.parseLong(args[++i]);
+                    break;
+                case "--empty":
+                    empty = EmptyEvents.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                default:
+                    files.add(args[i]);
+            }
+        }
+        if (files.isEmpty()) {
+            files.add("trace.ndjson");
+        }
+        final TraceProjector projector = new TraceProjector(variables, events, loggers, from, to, empty);
+        projector.project(files, out);
+        System.out.println("Events read: " + projector.getRead() + ", written: " + projector.getWritten()
+                + " (stuttering: " + projector.getStuttering() + ")");
+    }
+}
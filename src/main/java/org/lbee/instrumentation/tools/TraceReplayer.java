@@ -0,0 +1,796 @@
+package org.lbee.instrumentation.tools;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays a trace on an in-memory model of the variables: the changes of each
+ * event are applied with the semantics of the operators of
+ * <code>TVOperators.tla</code> (<code>Update</code>, <code>AddElement</code>,
+ * <code>SetKey</code>, <code>UpdateRec</code>, the bag operators, ...), as
+ * the trace specification does. This quickly finds the traces that cannot be
+ * validated, before running TLC:
+ * <ul>
+ * <li>malformed events (invalid JSON, changes without operator or path,
+ * unknown operators, missing arguments);</li>
+ * <li>events out of clock order, or with the same clock, when asked for (the
+ * events of a trace written with per-thread changes, or merged from local or
+ * hybrid clocks, are not in clock order);</li>
+ * <li>changes that cannot be applied (field not in the domain of a function,
+ * set operator on a number, variable not initialized, ...);</li>
+ * <li>exceptions logged by the implementation;</li>
+ * <li>checkpoints (<code>__checkpoint</code> events, see
+ * {@link org.lbee.instrumentation.trace.TLATracer#setCheckpointInterval(long, long)})
+ * whose values differ from the replayed state.</li>
+ * </ul>
+ * Changes that cannot be applied are skipped and the replay goes on. The
+ * replay can start from the last checkpoint before a given clock instead of
+ * the first event.
+ *
+ * The values are modeled as <code>ndJsonDeserialize</code> reads them (see
+ * {@link TlaValues}), except that sequences are converted to sets by the set
+ * operators (the specifications usually convert them when mapping the
+ * arguments). The default values of the variables, used by <code>Init</code>
+ * and <code>InitRec</code>, are given as a JSON object mapping each variable
+ * to its default value.
+ *
+ * Usage: <code>TraceReplayer trace.ndjson [--defaults defaults.json]
+ * [--max_issues 100] [--from clock] [--check_order]</code>. Exits with status
+ * 1 if problems are found.
+ */
+public class TraceReplayer {
+    // default maximum number of problems kept (all of them are counted)
+    public static final int DEFAULT_MAX_ISSUES = 100;
+
+    // value of a variable that has not been initialized yet
+    private static final Object UNDEFINED = new Object();
+    // default value of a field for which no default value is known
+    private static final Object NO_DEFAULT = new Object();
+    // name of the checkpoint events
+    private static final String CHECKPOINT = "__checkpoint";
+    private static final String CHECKPOINT_EVENT = "\"event\":\"" + CHECKPOINT + "\"";
+
+    /**
+     * A change that cannot be applied.
+     */
+    private static final class ReplayException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private ReplayException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * A change of a variable, as read from an event.
+     */
+    private static final class Change {
+        private final String variable;
+        private final String op;
+        private final List<Object> path;
+        private final List<Object> args;
+
+        private Change(String variable, String op, List<Object> path, List<Object> args) {
+            this.variable = variable;
+            this.op = op;
+            this.path = path;
+            this.args = args;
+        }
+    }
+
+    private final Map<String, Object> defaults = new HashMap<>();
+    private final Map<String, Object> state = new LinkedHashMap<>();
+    private final List<ReplayIssue> issues = new ArrayList<>();
+    private int maxIssues = DEFAULT_MAX_ISSUES;
+    // report the events out of clock order
+    private boolean checkOrder;
+    private long issueCount;
+    private long events;
+    private long lastClock = -1;
+    // line and clock of the event being replayed
+    private long line;
+    private long clock;
+
+    /**
+     * Set the default value of a variable (used by the <code>Init</code> and
+     * <code>InitRec</code> operators).
+     *
+     * @param variable The variable.
+     * @param json     The default value, as JSON.
+     * @throws IOException Thrown when the value is not valid JSON.
+     */
+    public void setDefault(String variable, String json) throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            defaults.put(variable, TlaValues.read(reader));
+        }
+    }
+
+    /**
+     * Read the default values of the variables from a file containing a JSON
+     * object that maps each variable to its default value.
+     *
+     * @param path The file.
+     * @throws IOException Thrown when unable to read the file.
+     */
+    public void loadDefaults(String path) throws IOException {
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            final Object values = TlaValues.read(reader);
+            if (!(values instanceof Map<?, ?>)) {
+                throw new IOException("The defaults should be a JSON object: " + path);
+            }
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) values).entrySet()) {
+                defaults.put(entry.getKey().toString(), entry.getValue());
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid defaults " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Set the maximum number of problems kept (all of them are counted).
+     *
+     * @param maxIssues Maximum number of problems kept.
+     */
+    public void setMaxIssues(int maxIssues) {
+        this.maxIssues = maxIssues;
+    }
+
+    /**
+     * Report the events out of clock order and the events with the same clock
+     * (not reported by default).
+     *
+     * @param checkOrder Whether the order of the clocks is checked.
+     */
+    public void setCheckOrder(boolean checkOrder) {
+        this.checkOrder = checkOrder;
+    }
+
+    /**
+     * Replay a trace file.
+     *
+     * @param path The trace (NDJSON, possibly gzipped).
+     * @return the number of events replayed
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public long replay(String path) throws IOException {
+        try (BufferedReader reader = TraceMerger.open(path)) {
+            return replay(reader);
+        }
+    }
+
+    /**
+     * Replay a trace file from the last checkpoint whose clock is at most the
+     * given clock (from the first event if there is no such checkpoint).
+     *
+     * @param path The trace (NDJSON, possibly gzipped).
+     * @param from Clock of the first event to replay.
+     * @return the number of events replayed
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public long replayFrom(String path, long from) throws IOException {
+        final long start = findCheckpoint(path, from);
+        try (BufferedReader reader = TraceMerger.open(path)) {
+            final long before = events;
+            String json;
+            long lines = 0;
+            while ((json = reader.readLine()) != null) {
+                lines++;
+                if (lines >= start && !json.isBlank()) {
+                    replayEvent(json, lines);
+                }
+            }
+            return events - before;
+        }
+    }
+
+    /**
+     * Find the last checkpoint whose clock is at most the given clock (the
+     * checkpoints of a trace are in clock order).
+     *
+     * @param path The trace.
+     * @param from The clock.
+     * @return the line of the checkpoint (1 if there is no such checkpoint)
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public static long findCheckpoint(String path, long from) throws IOException {
+        long found = 1;
+        try (BufferedReader reader = TraceMerger.open(path)) {
+            String json;
+            long lines = 0;
+            while ((json = reader.readLine()) != null) {
+                lines++;
+                // only read the clock of the checkpoints (their values are
+                // the largest part of the trace)
+                if (!json.contains(CHECKPOINT_EVENT)) {
+                    continue;
+                }
+                final long clock = readClock(json);
+                if (clock > from) {
+                    break;
+                }
+                if (clock >= 0) {
+                    found = lines;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the clock of an event (-1 if it has none or is malformed)
+     */
+    private static long readClock(String json) {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("clock")) {
+                    return reader.nextLong();
+                }
+                reader.skipValue();
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // not an event
+        }
+        return -1;
+    }
+
+    /**
+     * Replay a trace, one event per line.
+     *
+     * @param reader The trace.
+     * @return the number of events replayed
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public long replay(BufferedReader reader) throws IOException {
+        final long before = events;
+        String json;
+        long lines = 0;
+        while ((json = reader.readLine()) != null) {
+            lines++;
+            if (!json.isBlank()) {
+                replayEvent(json, lines);
+            }
+        }
+        return events - before;
+    }
+
+    /**
+     * Replay an event.
+     *
+     * @param json       The event (a JSON object).
+     * @param lineNumber Line of the event in the trace (for the problems
+     *                   reported).
+     * @return true if the event was replayed without problem
+     */
+    public boolean replayEvent(String json, long lineNumber) {
+        final long issuesBefore = issueCount;
+        this.line = lineNumber;
+        this.clock = -1;
+        this.events++;
+        final List<Change> changes = new ArrayList<>();
+        String event = null;
+        String desc = null;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                switch (name) {
+                    case "clock":
+                        clock = reader.nextLong();
+                        break;
+                    case "event":
+                        event = reader.nextString();
+                        break;
+                    case "desc":
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                        } else {
+                            desc = reader.nextString();
+                        }
+                        break;
+                    case "event_args":
+                    case "logger":
+                    case "sender":
+                    case "vclock":
+                    case "vclock_ids":
+                        reader.skipValue();
+                        break;
+                    default:
+                        readChanges(name, reader, changes);
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            issue("malformed event: " + e.getMessage());
+            return false;
+        }
+        final boolean checkpoint = CHECKPOINT.equals(event);
+        if (checkpoint) {
+            // written with the clock of the previous event of its tracer
+            checkpoint(changes);
+            return issueCount == issuesBefore;
+        }
+        if (checkOrder && clock >= 0) {
+            if (clock < lastClock) {
+                issue("out of order: clock " + clock + " after clock " + lastClock);
+            } else if (clock == lastClock) {
+                issue("duplicate clock " + clock);
+            }
+            lastClock = Math.max(lastClock, clock);
+        }
+        if ("__exception".equals(event)) {
+            issue("exception logged by the implementation: " + desc);
+        }
+        for (Change change : changes) {
+            if (change.op == null || change.path == null || change.args == null) {
+                issue("malformed change of " + change.variable + ": op, path and args are required");
+                continue;
+            }
+            try {
+                apply(change);
+            } catch (ReplayException e) {
+                issue(change.op + " " + change.variable + change.path + ": " + e.getMessage());
+            }
+        }
+        return issueCount == issuesBefore;
+    }
+
+    /**
+     * Check the values of a checkpoint against the replayed state (if the
+     * variables are initialized), then set the state to them.
+     */
+    private void checkpoint(List<Change> changes) {
+        for (Change change : changes) {
+            if (!"Update".equals(change.op) || change.path == null || !change.path.isEmpty() || change.args == null
+                    || change.args.size() != 1) {
+                issue("malformed checkpoint of " + change.variable + ": a root Update is expected");
+                continue;
+            }
+            final Object value = change.args.get(0);
+            if (state.containsKey(change.variable) && !sameValue(state.get(change.variable), value)) {
+                issue("checkpoint of " + change.variable + " differs from the replayed state: " + value
+                        + " instead of " + state.get(change.variable));
+            }
+            state.put(change.variable, value);
+        }
+    }
+
+    /**
+     * Compare a replayed value with a value read from a trace, where sets are
+     * written as sequences.
+     */
+    private static boolean sameValue(Object replayed, Object read) {
+        if (replayed instanceof Set<?> && read instanceof List<?>) {
+            return replayed.equals(new LinkedHashSet<>((List<?>) read));
+        }
+        if (replayed instanceof Map<?, ?> && read instanceof Map<?, ?>) {
+            final Map<?, ?> replayedMap = (Map<?, ?>) replayed;
+            final Map<?, ?> readMap = (Map<?, ?>) read;
+            if (!replayedMap.keySet().equals(readMap.keySet())) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : replayedMap.entrySet()) {
+                if (!sameValue(entry.getValue(), readMap.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (replayed instanceof List<?> && read instanceof List<?>) {
+            final List<?> replayedList = (List<?>) replayed;
+            final List<?> readList = (List<?>) read;
+            if (replayedList.size() != readList.size()) {
+                return false;
+            }
+            for (int i = 0; i < replayedList.size(); i++) {
+                if (!sameValue(replayedList.get(i), readList.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return replayed == null ? read == null : replayed.equals(read);
+    }
+
+    private void readChanges(String variable, JsonReader reader, List<Change> changes) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String op = null;
+            List<Object> path = null;
+            List<Object> args = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "op":
+                        op = reader.nextString();
+                        break;
+                    case "path":
+                        path = sequence(TlaValues.read(reader));
+                        break;
+                    case "args":
+                        args = sequence(TlaValues.read(reader));
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            changes.add(new Change(variable, op, path, args));
+        }
+        reader.endArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> sequence(Object value) {
+        return value instanceof List<?> ? (List<Object>) value : null;
+    }
+
+    private void issue(String message) {
+        issueCount++;
+        if (issues.size() < maxIssues) {
+            issues.add(new ReplayIssue(line, clock, message));
+        }
+    }
+
+    /**
+     * Apply a change to the state (ExceptAtPath).
+     */
+    private void apply(Change change) throws ReplayException {
+        final Object current = state.containsKey(change.variable) ? state.get(change.variable) : UNDEFINED;
+        final Object defaultValue = defaults.containsKey(change.variable) ? defaults.get(change.variable)
+                : NO_DEFAULT;
+        final Object updated = applyAt(change, current, defaultValue, 0);
+        if (updated != UNDEFINED) {
+            state.put(change.variable, updated);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object applyAt(Change change, Object current, Object defaultValue, int depth) throws ReplayException {
+        if (depth == change.path.size()) {
+            return apply(change.op, current, defaultValue, change.args);
+        }
+        if (current == UNDEFINED) {
+            throw new ReplayException("variable not initialized");
+        }
+        final Object field = change.path.get(depth);
+        final Object fieldDefault = field(defaultValue, field);
+        if (current instanceof Map<?, ?>) {
+            final Map<Object, Object> function = (Map<Object, Object>) current;
+            if (!function.containsKey(field)) {
+                throw new ReplayException(field + " not in the domain of the function at depth " + depth);
+            }
+            function.put(field, applyAt(change, function.get(field), fieldDefault, depth + 1));
+        } else if (current instanceof List<?>) {
+            final List<Object> sequence = (List<Object>) current;
+            final int index = index(field, sequence.size());
+            if (index < 0) {
+                throw new ReplayException(field + " not in the domain of the sequence at depth " + depth);
+            }
+            sequence.set(index, applyAt(change, sequence.get(index), fieldDefault, depth + 1));
+        } else {
+            throw new ReplayException("cannot access field " + field + " of " + TlaValues.kind(current));
+        }
+        return current;
+    }
+
+    /**
+     * Returns the default value of a field (default[h]).
+     */
+    private static Object field(Object value, Object field) {
+        if (value instanceof Map<?, ?> && ((Map<?, ?>) value).containsKey(field)) {
+            return ((Map<?, ?>) value).get(field);
+        } else if (value instanceof List<?>) {
+            final int index = index(field, ((List<?>) value).size());
+            if (index >= 0) {
+                return ((List<?>) value).get(index);
+            }
+        }
+        return NO_DEFAULT;
+    }
+
+    /**
+     * Returns the index (from 0) of a field of a sequence, -1 if the field is not
+     * in the domain of the sequence.
+     */
+    private static int index(Object field, int size) {
+        if (field instanceof Long && (Long) field >= 1 && (Long) field <= size) {
+            return (int) (long) (Long) field - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Apply an operator (Apply).
+     */
+    private Object apply(String op, Object current, Object defaultValue, List<Object> args)
+            throws ReplayException {
+        switch (op) {
+            case "Init":
+                if (defaultValue == NO_DEFAULT) {
+                    throw new ReplayException("no default value");
+                }
+                return TlaValues.copy(defaultValue);
+            case "Update":
+                return arg(args, 0);
+            case "AddElement": {
+                final Set<Object> set = asSet(current);
+                set.add(arg(args, 0));
+                return set;
+            }
+            case "AddElements": {
+                final Set<Object> set = asSet(current);
+                set.addAll(asCollection(arg(args, 0)));
+                return set;
+            }
+            case "RemoveElement": {
+                final Set<Object> set = asSet(current);
+                set.remove(arg(args, 0));
+                return set;
+            }
+            case "Clear":
+                return new LinkedHashSet<>();
+            case "AddElementToBag":
+            case "AddToBag": {
+                final Map<Object, Object> bag = asFunction(current);
+                final Object element = arg(args, 0);
+                bag.put(element, bag.containsKey(element) ? count(bag.get(element)) + 1 : 1L);
+                return bag;
+            }
+            case "RemoveElementFromBag":
+            case "RemoveFromBag": {
+                final Map<Object, Object> bag = asFunction(current);
+                final Object element = arg(args, 0);
+                if (bag.containsKey(element)) {
+                    final long count = count(bag.get(element)) - 1;
+                    if (count <= 0 && op.equals("RemoveFromBag")) {
+                        bag.remove(element);
+                    } else {
+                        bag.put(element, count);
+                    }
+                }
+                return bag;
+            }
+            case "ClearBag":
+                // Clear(var, <<>>) in ApplyOp
+                return new LinkedHashSet<>();
+            case "AppendElement": {
+                final List<Object> sequence = asSequence(current);
+                sequence.add(arg(args, 0));
+                return sequence;
+            }
+            case "ResetKey":
+            case "SetKey": {
+                defined(current);
+                final Object key = arg(args, 0);
+                final Object value = op.equals("SetKey") ? arg(args, 1) : null;
+                if (current instanceof List<?>) {
+                    // still a sequence (its domain is unchanged)
+                    final List<Object> sequence = asSequence(current);
+                    final int index = index(key, sequence.size());
+                    if (index >= 0) {
+                        sequence.set(index, value);
+                    }
+                    return sequence;
+                }
+                final Map<Object, Object> function = asFunction(current);
+                if (function.containsKey(key)) {
+                    function.put(key, value);
+                }
+                return function;
+            }
+            case "UpdateRec":
+                return updateRecord(current, arg(args, 0));
+            case "InitRec":
+                if (defaultValue == NO_DEFAULT) {
+                    throw new ReplayException("no default value");
+                }
+                return updateRecord(current, TlaValues.copy(defaultValue));
+            case "Add":
+                return add(current, arg(args, 0), false);
+            case "Sub":
+                return add(current, arg(args, 0), true);
+            case "Unchanged":
+                return current;
+            default:
+                throw new ReplayException("unknown operator");
+        }
+    }
+
+    private static Object arg(List<Object> args, int index) throws ReplayException {
+        if (args.size() <= index) {
+            throw new ReplayException("missing argument " + (index + 1));
+        }
+        return args.get(index);
+    }
+
+    private static void defined(Object current) throws ReplayException {
+        if (current == UNDEFINED) {
+            throw new ReplayException("variable not initialized");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Object> asSet(Object current) throws ReplayException {
+        defined(current);
+        if (current instanceof Set<?>) {
+            return (Set<Object>) current;
+        } else if (current instanceof List<?>) {
+            return new LinkedHashSet<>((List<?>) current);
+        }
+        throw new ReplayException(TlaValues.kind(current) + " is not a set");
+    }
+
+    private static Collection<?> asCollection(Object value) throws ReplayException {
+        if (value instanceof Collection<?>) {
+            return (Collection<?>) value;
+        }
+        throw new ReplayException(TlaValues.kind(value) + " is not a sequence");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Object, Object> asFunction(Object current) throws ReplayException {
+        defined(current);
+        if (current instanceof Map<?, ?>) {
+            return (Map<Object, Object>) current;
+        } else if (current instanceof Set<?> && ((Set<?>) current).isEmpty()) {
+            // e.g. a cleared bag
+            return new LinkedHashMap<>();
+        } else if (current instanceof List<?>) {
+            // a sequence is a function of domain 1..Len(s)
+            final Map<Object, Object> function = new LinkedHashMap<>();
+            long index = 1;
+            for (Object element : (List<?>) current) {
+                function.put(index++, element);
+            }
+            return function;
+        }
+        throw new ReplayException(TlaValues.kind(current) + " is not a function");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asSequence(Object current) throws ReplayException {
+        defined(current);
+        if (current instanceof List<?>) {
+            return (List<Object>) current;
+        } else if (current instanceof Map<?, ?> && ((Map<?, ?>) current).isEmpty()) {
+            return new ArrayList<>();
+        }
+        throw new ReplayException(TlaValues.kind(current) + " is not a sequence");
+    }
+
+    private static long count(Object value) throws ReplayException {
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        throw new ReplayException("count " + value + " is not an integer");
+    }
+
+    private static Object updateRecord(Object current, Object value) throws ReplayException {
+        final Map<Object, Object> record = asFunction(current);
+        final Map<Object, Object> fields = asFunction(value);
+        for (Map.Entry<Object, Object> entry : record.entrySet()) {
+            if (fields.containsKey(entry.getKey())) {
+                entry.setValue(fields.get(entry.getKey()));
+            }
+        }
+        return record;
+    }
+
+    private static Object add(Object current, Object value, boolean subtract) throws ReplayException {
+        defined(current);
+        if (current instanceof Long && value instanceof Long) {
+            try {
+                return subtract ? Math.subtractExact((Long) current, (Long) value)
+                        : Math.addExact((Long) current, (Long) value);
+            } catch (ArithmeticException e) {
+                // out of the range of long, keep the exact value
+            }
+        }
+        if (!(current instanceof Number) || !(value instanceof Number)) {
+            throw new ReplayException("cannot add " + TlaValues.kind(value) + " to " + TlaValues.kind(current));
+        }
+        final BigDecimal a = new BigDecimal(current.toString());
+        final BigDecimal b = new BigDecimal(value.toString());
+        return subtract ? a.subtract(b) : a.add(b);
+    }
+
+    /**
+     * @return the values of the variables after the events replayed so far
+     *         (variables not initialized yet are absent)
+     */
+    public Map<String, Object> getState() {
+        return Collections.unmodifiableMap(state);
+    }
+
+    /**
+     * @return the problems found so far (at most the maximum number of problems
+     *         kept)
+     */
+    public List<ReplayIssue> getIssues() {
+        return Collections.unmodifiableList(issues);
+    }
+
+    /**
+     * @return the number of problems found so far
+     */
+    public long getIssueCount() {
+        return issueCount;
+    }
+
+    /**
+     * @return the number of events replayed so far
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String trace = null;
+        String defaults = null;
+        int maxIssues = DEFAULT_MAX_ISSUES;
+        long from = -1;
+        boolean checkOrder = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--defaults":
+                    defaults = args[++i];
+                    break;
+                case "--max_issues":
+                    maxIssues = Integer.parseInt(args[++i]);
+                    break;
+                case "--from":
+                    from = Long.parseLong(args[++i]);
+                    break;
+                case "--check_order":
+                    checkOrder = true;
+                    break;
+                default:
+                    trace = args[i];
+            }
+        }
+        if (trace == null) {
+            System.out.println("Usage: TraceReplayer trace.ndjson [--defaults defaults.json] [--max_issues 100]"
+                    + " [--from clock] [--check_order]");
+            return;
+        }
+        final TraceReplayer replayer = new TraceReplayer();
+        replayer.setMaxIssues(maxIssues);
+        replayer.setCheckOrder(checkOrder);
+        if (defaults != null) {
+            replayer.loadDefaults(defaults);
+        }
+        final long begin = System.nanoTime();
+        final long events = from < 0 ? replayer.replay(trace) : replayer.replayFrom(trace, from);
+        final double seconds = (System.nanoTime() - begin) / 1e9;
+        for (ReplayIssue issue : replayer.getIssues()) {
+            System.out.println(issue);
+        }
+        System.out.printf("%d events replayed in %.1f s (%.0f events/s, %.1f MB/s), %d problems%n", events, seconds,
+                events / seconds, Files.size(Paths.get(trace)) / seconds / 1e6, replayer.getIssueCount());
+        if (replayer.getIssueCount() > 0) {
+            System.exit(1);
+        }
+    }
+}
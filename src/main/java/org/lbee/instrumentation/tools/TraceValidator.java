@@ -0,0 +1,477 @@
+package org.lbee.instrumentation.tools;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Validates a long (merged) trace by windows, in parallel: the trace is cut
+ * into windows of a given number of events, each window overlapping the
+ * previous one by a few events, and a validation command (TLC by default) is
+ * run on each window by a pool of workers. The state of the variables at the
+ * start of a window is computed by replaying the previous events (see
+ * {@link TraceReplayer}) and written as the first line of the window, a
+ * <code>__checkpoint</code> event (see <code>IsCheckpoint</code> in
+ * <code>TraceSpec.tla</code>, which starts from it). The trace is streamed:
+ * the windows are validated while the next ones are cut.
+ *
+ * The command is given as a list of arguments, where <code>{trace}</code> is
+ * replaced by the window and <code>{dir}</code> by a directory private to the
+ * window; the window is also given in the <code>TRACE_PATH</code> environment
+ * variable. A window is validated if the command exits with status 0 and its
+ * output does not give a failing line: the line of the window at which the
+ * validation failed is read from the output with a regular expression (by
+ * default the hit count printed by <code>TraceAccepted</code>, one more than
+ * the failing line) and mapped back to the trace.
+ *
+ * Usage: <code>TraceValidator spec.tla [--trace trace.ndjson]
+ * [--config conf.ndjson] [--window 10000] [--overlap 100] [--workers n]
+ * [--defaults defaults.json] [--dfs false] [--tla_cp tla2tools.jar:...]
+ * [--command "cmd {trace}"] [--line_pattern regex] [--dir directory]</code>.
+ * <code>--command</code> replaces the TLC command (its arguments are separated
+ * by spaces, <code>{spec}</code> and <code>{config}</code> are also replaced).
+ * Exits with status 1 if a window is not validated.
+ */
+public class TraceValidator {
+    // default number of events per window
+    public static final int DEFAULT_WINDOW = 10000;
+    // default number of events shared by two consecutive windows
+    public static final int DEFAULT_OVERLAP = 100;
+    // failing line printed by TraceAccepted (Trace[d] with hit count d + 1)
+    public static final Pattern TLC_FAILING_LINE = Pattern.compile("hit count (\\d+)");
+
+    // name of the checkpoint events
+    private static final String CHECKPOINT = "__checkpoint";
+    // default class path of TLC (as in scripts/tla_trace_validation.py)
+    private static final String DEFAULT_TLA_CP = "/opt/TLAToolbox-1.8.0-nightly/toolbox/tla2tools.jar"
+            + File.pathSeparator + "/opt/TLAToolbox-1.8.0-nightly/toolbox/CommunityModules-deps.jar";
+
+    /**
+     * A window being cut.
+     */
+    private static final class Window {
+        private final int index;
+        private final File directory;
+        private final File file;
+        private final BufferedWriter writer;
+        // number of events of the trace before the end of the window
+        private final long end;
+        // lines of the events in the trace
+        private long[] lines = new long[64];
+        private int size;
+
+        private Window(int index, File directory, long end) throws IOException {
+            this.index = index;
+            this.directory = directory;
+            this.file = new File(directory, "trace.ndjson");
+            this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+            this.end = end;
+        }
+
+        private void write(String json, long line) throws IOException {
+            writer.write(json);
+            writer.newLine();
+            if (size == lines.length) {
+                lines = Arrays.copyOf(lines, 2 * size);
+            }
+            lines[size++] = line;
+        }
+    }
+
+    private final List<String> command;
+    private final int window;
+    private final int overlap;
+    private final int workers;
+    private final Map<String, String> environment = new LinkedHashMap<>();
+    private Pattern linePattern = TLC_FAILING_LINE;
+    private int lineOffset = -1;
+    private String defaults;
+    private File directory;
+    private long replayIssues;
+    private long windowsNanos;
+
+    /**
+     * Create a validator.
+     *
+     * @param command Validation command run for each window.
+     * @param window  Number of events per window.
+     * @param overlap Number of events shared by two consecutive windows (less
+     *                than the window).
+     * @param workers Number of windows validated concurrently.
+     */
+    public TraceValidator(List<String> command, int window, int overlap, int workers) {
+        if (window <= 0 || overlap < 0 || overlap >= window || workers <= 0) {
+            throw new IllegalArgumentException("Invalid window " + window + ", overlap " + overlap
+                    + " or workers " + workers);
+        }
+        this.command = List.copyOf(command);
+        this.window = window;
+        this.overlap = overlap;
+        this.workers = workers;
+    }
+
+    /**
+     * Set an environment variable of the validation command (e.g.
+     * <code>CONFIG_PATH</code>).
+     *
+     * @param name  Name of the variable.
+     * @param value Value of the variable.
+     */
+    public void setEnvironment(String name, String value) {
+        environment.put(name, value);
+    }
+
+    /**
+     * Set how the failing line is read from the output of the validation
+     * command.
+     *
+     * @param pattern Pattern whose first group is a line of the window.
+     * @param offset  Offset added to the group to get the failing line of the
+     *                window (starting at 1, the first line being the state).
+     */
+    public void setLinePattern(Pattern pattern, int offset) {
+        this.linePattern = pattern;
+        this.lineOffset = offset;
+    }
+
+    /**
+     * Set the default values of the variables used to replay the trace (see
+     * {@link TraceReplayer#loadDefaults(String)}).
+     *
+     * @param path File of the default values.
+     */
+    public void setDefaults(String path) {
+        this.defaults = path;
+    }
+
+    /**
+     * Set the directory of the windows (a temporary directory by default). The
+     * windows validated are removed, the others are kept with the output of
+     * the command.
+     *
+     * @param directory The directory.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Validate a trace.
+     *
+     * @param trace The trace (NDJSON, possibly gzipped).
+     * @return the verdicts of the windows, in the order of the trace
+     * @throws IOException          Thrown when unable to read the trace or to
+     *                              write the windows.
+     * @throws InterruptedException Thrown when interrupted while waiting for the
+     *                              validations.
+     */
+    public List<WindowVerdict> validate(String trace) throws IOException, InterruptedException {
+        final boolean temporary = directory == null;
+        final File root = temporary ? Files.createTempDirectory("trace-validation").toFile() : directory;
+        final TraceReplayer replayer = new TraceReplayer();
+        if (defaults != null) {
+            replayer.loadDefaults(defaults);
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(workers);
+        final List<Future<WindowVerdict>> verdicts = new ArrayList<>();
+        final List<Window> open = new ArrayList<>();
+        long events = 0;
+        int next = 0;
+        try (BufferedReader reader = TraceMerger.open(trace)) {
+            String json;
+            long line = 0;
+            while ((json = reader.readLine()) != null) {
+                line++;
+                if (json.isBlank()) {
+                    continue;
+                }
+                if (events == Math.max(0, (long) next * window - overlap)) {
+                    open.add(open(root, next, (long) (next + 1) * window, replayer.getState()));
+                    next++;
+                }
+                for (Window w : open) {
+                    w.write(json, line);
+                }
+                replayer.replayEvent(json, line);
+                events++;
+                if (open.get(0).end == events) {
+                    verdicts.add(submit(pool, open.remove(0)));
+                }
+            }
+            for (Window w : open) {
+                if (w.index > 0 && (long) w.index * window >= events) {
+                    // only events of the previous window
+                    w.writer.close();
+                    delete(w.directory);
+                } else {
+                    verdicts.add(submit(pool, w));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        replayIssues = replayer.getIssueCount();
+        final List<WindowVerdict> results = new ArrayList<>();
+        windowsNanos = 0;
+        for (Future<WindowVerdict> verdict : verdicts) {
+            try {
+                results.add(verdict.get());
+            } catch (ExecutionException e) {
+                throw new IOException("Validation of a window failed", e.getCause());
+            }
+            windowsNanos += results.get(results.size() - 1).nanos();
+        }
+        if (temporary && results.stream().allMatch(WindowVerdict::accepted)) {
+            delete(root);
+        }
+        return results;
+    }
+
+    /**
+     * Open a window, starting with the state of the variables.
+     */
+    private static Window open(File root, int index, long end, Map<String, Object> state) throws IOException {
+        final File directory = new File(root, String.format("window-%05d", index));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        final Window w = new Window(index, directory, end);
+        final StringWriter checkpoint = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(checkpoint)) {
+            writer.beginObject();
+            for (Map.Entry<String, Object> variable : state.entrySet()) {
+                writer.name(variable.getKey()).beginArray().beginObject();
+                writer.name("op").value("Update");
+                writer.name("path").beginArray().endArray();
+                writer.name("args").beginArray();
+                TlaValues.write(writer, variable.getValue());
+                writer.endArray();
+                writer.endObject().endArray();
+            }
+            writer.name("event").value(CHECKPOINT);
+            writer.endObject();
+        }
+        w.writer.write(checkpoint.toString());
+        w.writer.newLine();
+        return w;
+    }
+
+    private Future<WindowVerdict> submit(ExecutorService pool, Window w) throws IOException {
+        w.writer.close();
+        return pool.submit(() -> run(w));
+    }
+
+    /**
+     * Run the validation command on a window.
+     */
+    private WindowVerdict run(Window w) throws IOException, InterruptedException {
+        final List<String> arguments = new ArrayList<>(command.size());
+        for (String argument : command) {
+            arguments.add(argument.replace("{trace}", w.file.getAbsolutePath())
+                    .replace("{dir}", w.directory.getAbsolutePath()));
+        }
+        final File log = new File(w.directory, "validation.log");
+        final ProcessBuilder builder = new ProcessBuilder(arguments).redirectErrorStream(true)
+                .redirectOutput(log);
+        builder.environment().putAll(environment);
+        builder.environment().put("TRACE_PATH", w.file.getAbsolutePath());
+        final long begin = System.nanoTime();
+        final int exitCode = builder.start().waitFor();
+        final long nanos = System.nanoTime() - begin;
+        long failingLine = -1;
+        try (Stream<String> lines = Files.lines(log.toPath(), StandardCharsets.UTF_8)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                final Matcher matcher = linePattern.matcher(line);
+                if (matcher.find()) {
+                    failingLine = traceLine(w, Long.parseLong(matcher.group(1)) + lineOffset);
+                    break;
+                }
+            }
+        }
+        final boolean accepted = exitCode == 0 && failingLine < 0;
+        if (accepted) {
+            delete(w.directory);
+        }
+        return new WindowVerdict(w.index, w.lines[0], w.lines[w.size - 1], accepted, failingLine, exitCode, nanos,
+                accepted ? null : log.getPath());
+    }
+
+    /**
+     * @return the line of the trace of a line of a window (the first line of
+     *         the window for its state)
+     */
+    private static long traceLine(Window w, long line) {
+        return w.lines[(int) Math.max(0, Math.min(line - 2, w.size - 1))];
+    }
+
+    private static void delete(File directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Returns the first line of the trace at which the validation failed: the
+     * smallest failing line of the windows not validated (a failure found in
+     * the overlap of two windows is found by both).
+     *
+     * @param verdicts The verdicts of the windows.
+     * @return the first failing line (-1 if no window gives one)
+     */
+    public static long firstFailingLine(List<WindowVerdict> verdicts) {
+        long failingLine = -1;
+        for (WindowVerdict verdict : verdicts) {
+            if (!verdict.accepted() && verdict.failingLine() >= 0
+                    && (failingLine < 0 || verdict.failingLine() < failingLine)) {
+                failingLine = verdict.failingLine();
+            }
+        }
+        return failingLine;
+    }
+
+    /**
+     * @return the number of problems found while replaying the trace to
+     *         compute the states at the start of the windows
+     */
+    public long getReplayIssues() {
+        return replayIssues;
+    }
+
+    /**
+     * @return the sum of the durations of the validations of the windows of
+     *         the last trace (the time of a sequential validation)
+     */
+    public long getWindowsNanos() {
+        return windowsNanos;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String spec = null;
+        String trace = "trace.ndjson";
+        String config = "conf.ndjson";
+        int window = DEFAULT_WINDOW;
+        int overlap = DEFAULT_OVERLAP;
+        int workers = Runtime.getRuntime().availableProcessors();
+        String defaults = null;
+        boolean dfs = false;
+        String tlaCp = DEFAULT_TLA_CP;
+        String command = null;
+        String linePattern = null;
+        String directory = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--trace":
+                    trace = args[++i];
+                    break;
+                case "--config":
+                    config = args[++i];
+                    break;
+                case "--window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "--overlap":
+                    overlap = Integer.parseInt(args[++i]);
+                    break;
+                case "--workers":
+                    workers = Integer.parseInt(args[++i]);
+                    break;
+                case "--defaults":
+                    defaults = args[++i];
+                    break;
+                case "--dfs":
+                    dfs = TraceMerger.parseBoolean(args[++i]);
+                    break;
+                case "--tla_cp":
+                    tlaCp = args[++i];
+                    break;
+                case "--command":
+                    command = args[++i];
+                    break;
+                case "--line_pattern":
+                    linePattern = args[++i];
+                    break;
+                case "--dir":
+                    directory = args[++i];
+                    break;
+                default:
+                    spec = args[i];
+            }
+        }
+        if (spec == null && command == null) {
+            System.out.println("Usage: TraceValidator spec.tla [--trace trace.ndjson] [--config conf.ndjson]"
+                    + " [--window 10000] [--overlap 100] [--workers n] [--defaults defaults.json] [--dfs false]"
+                    + " [--tla_cp tla2tools.jar:...] [--command \"cmd {trace}\"] [--line_pattern regex]"
+                    + " [--dir directory]");
+            return;
+        }
+        final List<String> arguments = new ArrayList<>();
+        if (command == null) {
+            arguments.addAll(List.of("java", "-XX:+UseParallelGC"));
+            if (dfs) {
+                arguments.add("-Dtlc2.tool.queue.IStateQueue=StateDeque");
+            }
+            arguments.addAll(List.of("-cp", tlaCp, "tlc2.TLC", "-note", "-metadir", "{dir}", "{spec}"));
+        } else {
+            arguments.addAll(Arrays.asList(command.trim().split("\\s+")));
+        }
+        final String specPath = spec == null ? "" : new File(spec).getAbsolutePath();
+        final String configPath = new File(config).getAbsolutePath();
+        arguments.replaceAll(argument -> argument.replace("{spec}", specPath).replace("{config}", configPath));
+
+        final TraceValidator validator = new TraceValidator(arguments, window, overlap, workers);
+        validator.setEnvironment("CONFIG_PATH", configPath);
+        if (linePattern != null) {
+            validator.setLinePattern(Pattern.compile(linePattern), 0);
+        }
+        if (defaults != null) {
+            validator.setDefaults(defaults);
+        }
+        if (directory != null) {
+            validator.setDirectory(new File(directory));
+        }
+        final long begin = System.nanoTime();
+        final List<WindowVerdict> verdicts = validator.validate(trace);
+        final long elapsed = System.nanoTime() - begin;
+        long failed = 0;
+        for (WindowVerdict verdict : verdicts) {
+            System.out.println(verdict);
+            if (!verdict.accepted()) {
+                failed++;
+            }
+        }
+        final long failingLine = firstFailingLine(verdicts);
+        if (validator.getReplayIssues() > 0) {
+            System.out.println("Warning: " + validator.getReplayIssues()
+                    + " problems while replaying the trace, the states of the windows may be wrong"
+                    + " (see TraceReplayer)");
+        }
+        System.out.printf("%d windows, %d not validated%s, in %.1f s with %d workers (validations: %.1f s in total)%n",
+                verdicts.size(), failed, failingLine >= 0 ? ", first failing line " + failingLine : "",
+                elapsed / 1e9, workers, validator.getWindowsNanos() / 1e9);
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.lbee.instrumentation.tools;
+
+/**
+ * The result of the validation of a window of a trace by a
+ * {@link TraceValidator}.
+ *
+ * @param index       index of the window (starting at 0)
+ * @param firstLine   first line of the window in the trace (starting at 1)
+ * @param lastLine    last line of the window in the trace
+ * @param accepted    whether the window was validated
+ * @param failingLine line of the trace at which the validation failed (-1 if
+ *                    accepted or unknown)
+ * @param exitCode    exit status of the validation command
+ * @param nanos       duration of the validation command
+ * @param log         output of the validation command (kept for the windows
+ *                    not validated, null otherwise)
+ */
+public record WindowVerdict(int index, long firstLine, long lastLine, boolean accepted, long failingLine,
+        int exitCode, long nanos, String log) {
+    @Override
+    public String toString() {
+        return "window " + index + " (lines " + firstLine + "-" + lastLine + "): "
+                + (accepted ? "accepted" : "FAILED" + (failingLine >= 0 ? " at line " + failingLine : "")
+                        + " (exit " + exitCode + ", log " + log + ")")
+                + String.format(" in %.1f s", nanos / 1e9);
+    }
+}
@@ -0,0 +1,348 @@
+package org.lbee.instrumentation.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A sink that hands the events to a background thread instead of writing them
+ * in the thread that logs. Events are stored in a bounded queue that the
+ * background thread drains in batches; a batch is written with a single
+ * buffered write and the file is flushed according to the flush policy (group
+ * commit):
+ * <ul>
+ * <li>every <code>flushEvery</code> events (0 to disable),</li>
+ * <li>every <code>flushIntervalMillis</code> milliseconds (0 to disable),</li>
+ * <li>on {@link #flush()}, on {@link #close()} and when the JVM shuts down.</li>
+ * </ul>
+ * When the queue is full, logging threads either block until there is room
+ * ({@link OverflowPolicy#BLOCK}) or the event is dropped and counted
+ * ({@link OverflowPolicy#DROP}).
+ */
+public class AsyncTraceSink implements TraceSink {
+    /**
+     * What to do when an event is written while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait until the background thread makes room for the event. */
+        BLOCK,
+        /** Drop the event and increment the dropped events counter. */
+        DROP
+    }
+
+    // default capacity of the queue (in events)
+    public static final int DEFAULT_CAPACITY = 8192;
+    // default number of events after which the file is flushed
+    public static final int DEFAULT_FLUSH_EVERY = 1024;
+    // default delay after which the file is flushed
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+    // maximum number of events written in one batch
+    private static final int MAX_BATCH = 1024;
+    // marker asking the background thread to terminate
+    private static final Object CLOSE = new Object();
+
+    // stream used to write the trace (only accessed by the background thread)
+    private final OutputStream out;
+    // events (byte arrays) and flush requests (latches) waiting to be handled
+    private final BlockingQueue<Object> queue;
+    private final int flushEvery;
+    private final long flushIntervalNanos;
+    private final OverflowPolicy policy;
+    // number of events dropped because the queue was full
+    private final LongAdder dropped;
+    // thread draining the queue
+    private final Thread writerThread;
+    // flush and close the sink if the JVM exits before close is called
+    private final Thread shutdownHook;
+    // first error raised by the background thread (reported to the loggers)
+    private volatile IOException failure;
+    // held (read) while an item is enqueued and (write) while the sink is
+    // closed, so that nothing is enqueued after the close marker
+    private final ReentrantReadWriteLock state = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    /**
+     * Create an asynchronous sink writing to the given file with the default
+     * queue capacity and flush policy, blocking when the queue is full.
+     *
+     * @param tracePath The path of the trace file.
+     * @throws IOException Thrown when unable to create trace file.
+     */
+    public AsyncTraceSink(String tracePath) throws IOException {
+        this(tracePath, DEFAULT_CAPACITY, DEFAULT_FLUSH_EVERY, DEFAULT_FLUSH_INTERVAL_MILLIS, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Create an asynchronous sink writing to the given file.
+     *
+     * @param tracePath           The path of the trace file.
+     * @param capacity            Maximum number of events waiting in the queue.
+     * @param flushEvery          Flush after this number of events (0 to
+     *                            disable).
+     * @param flushIntervalMillis Flush when this delay elapsed since the last
+     *                            flush (0 to disable).
+     * @param policy              What to do when the queue is full.
+     * @throws IOException Thrown when unable to create trace file.
+     */
+    public AsyncTraceSink(String tracePath, int capacity, int flushEvery, long flushIntervalMillis,
+            OverflowPolicy policy) throws IOException {
+        this(new FileOutputStream(tracePath), capacity, flushEvery, flushIntervalMillis, policy);
+    }
+
+    /**
+     * Create an asynchronous sink writing to the given stream. The stream is
+     * closed when the sink is closed.
+     *
+     * @param out                 The stream the events are written to.
+     * @param capacity            Maximum number of events waiting in the queue.
+     * @param flushEvery          Flush after this number of events (0 to
+     *                            disable).
+     * @param flushIntervalMillis Flush when this delay elapsed since the last
+     *                            flush (0 to disable).
+     * @param policy              What to do when the queue is full.
+     */
+    public AsyncTraceSink(OutputStream out, int capacity, int flushEvery, long flushIntervalMillis,
+            OverflowPolicy policy) {
+        if (capacity <= 0 || flushEvery < 0 || flushIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid asynchronous sink configuration");
+        }
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flushEvery = flushEvery;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.policy = policy;
+        this.dropped = new LongAdder();
+        this.writerThread = new Thread(this::drain, "trace-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        this.shutdownHook = new Thread(() -> {
+            try {
+                this.close();
+            } catch (IOException e) {
+                System.err.println("Error while closing trace: " + e.getMessage());
+            }
+        }, "trace-writer-shutdown");
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+    }
+
+    /**
+     * Returns the number of events dropped because the queue was full (always 0
+     * with the {@link OverflowPolicy#BLOCK} policy).
+     *
+     * @return the number of dropped events
+     */
+    public long getDroppedEvents() {
+        return dropped.sum();
+    }
+
+    @Override
+    public void write(byte[] event, int offset, int length) throws IOException {
+        // the caller may reuse the buffer
+        final byte[] copy = Arrays.copyOfRange(event, offset, offset + length);
+        state.readLock().lock();
+        try {
+            checkState();
+            if (policy == OverflowPolicy.DROP) {
+                if (!queue.offer(copy)) {
+                    dropped.increment();
+                }
+            } else {
+                enqueue(copy);
+            }
+        } finally {
+            state.readLock().unlock();
+        }
+    }
+
+    /**
+     * Events are dropped with the {@link OverflowPolicy#DROP} policy.
+     */
+    @Override
+    public boolean isContiguous() {
+        return policy == OverflowPolicy.BLOCK;
+    }
+
+    /**
+     * Wait until all the events written so far are flushed to the file.
+     *
+     * @throws IOException Thrown when the background thread failed to write.
+     */
+    @Override
+    public void flush() throws IOException {
+        final CountDownLatch done = new CountDownLatch(1);
+        state.readLock().lock();
+        try {
+            checkState();
+            enqueue(done);
+        } finally {
+            state.readLock().unlock();
+        }
+        await(done);
+        checkState();
+    }
+
+    /**
+     * Flush all the pending events, stop the background thread and close the
+     * file. Closing an already closed sink has no effect.
+     *
+     * @throws IOException Thrown when the background thread failed to write.
+     */
+    @Override
+    public void close() throws IOException {
+        // wait for the items being enqueued (the writer is still draining), then
+        // put the close marker behind them
+        state.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            enqueue(CLOSE);
+            closed = true;
+        } finally {
+            state.writeLock().unlock();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is already shutting down (we are probably in the hook)
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing trace");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Trace sink is closed");
+        }
+    }
+
+    private void enqueue(Object item) throws InterruptedIOException {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing trace");
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedIOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing trace");
+        }
+    }
+
+    /**
+     * Body of the background thread: take the events from the queue by batches,
+     * write them and flush according to the flush policy.
+     */
+    private void drain() {
+        final List<Object> batch = new ArrayList<>(MAX_BATCH);
+        long lastFlush = System.nanoTime();
+        int unflushed = 0;
+        boolean running = true;
+        while (running) {
+            try {
+                // wait for the next item, or for the next periodic flush
+                final Object first;
+                if (flushIntervalNanos > 0 && unflushed > 0) {
+                    long remaining = flushIntervalNanos - (System.nanoTime() - lastFlush);
+                    first = queue.poll(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+                } else {
+                    first = queue.take();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+                boolean flushNow = false;
+                for (Object item : batch) {
+                    if (item instanceof byte[]) {
+                        writeIfHealthy((byte[]) item);
+                        unflushed++;
+                    } else if (item instanceof CountDownLatch) {
+                        flushIfHealthy();
+                        unflushed = 0;
+                        lastFlush = System.nanoTime();
+                        ((CountDownLatch) item).countDown();
+                    } else if (item == CLOSE) {
+                        flushNow = true;
+                        running = false;
+                    }
+                }
+                batch.clear();
+                if (flushEvery > 0 && unflushed >= flushEvery) {
+                    flushNow = true;
+                }
+                if (flushIntervalNanos > 0 && unflushed > 0 && System.nanoTime() - lastFlush >= flushIntervalNanos) {
+                    flushNow = true;
+                }
+                if (flushNow) {
+                    flushIfHealthy();
+                    unflushed = 0;
+                    lastFlush = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                // only close stops the writer
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Write an event unless a previous write failed; errors are recorded and
+     * reported to the logging threads.
+     */
+    private void writeIfHealthy(byte[] event) {
+        if (failure == null) {
+            try {
+                out.write(event);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Flush the file unless a previous write failed; errors are recorded and
+     * reported to the logging threads.
+     */
+    private void flushIfHealthy() {
+        if (failure == null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
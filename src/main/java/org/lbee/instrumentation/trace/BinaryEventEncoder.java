@@ -0,0 +1,426 @@
+package org.lbee.instrumentation.trace;
+
+import static org.lbee.instrumentation.trace.BinaryTraceFormat.*;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import org.lbee.instrumentation.clock.VectorDelta;
+import org.lbee.instrumentation.helper.TLASerializer;
+import org.lbee.instrumentation.helper.ValueType;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes events in the binary trace format ({@link BinaryTraceFormat}).
+ * The encoder keeps the string dictionary of the trace; the dictionary
+ * definitions needed by an event are emitted just before it, so the events
+ * must be written in the order in which they are encoded.
+ */
+class BinaryEventEncoder implements EventEncoder {
+    // buffers larger than this are not kept between two events
+    private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    /**
+     * A growable byte buffer with the primitive encodings of the format.
+     */
+    private static final class Bytes {
+        private byte[] buf = new byte[1024];
+        private int count;
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+
+        private void reset() {
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[1024];
+            }
+            count = 0;
+        }
+
+        private void put(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        private void put(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, count, length);
+            count += length;
+        }
+
+        private void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        private void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        private void fixed(long value, int length) {
+            ensure(length);
+            for (int i = length - 1; i >= 0; i--) {
+                buf[count++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        private void string(String s) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            put(bytes, 0, bytes.length);
+        }
+    }
+
+    // dictionary definitions emitted by the current event, then the event
+    private final Bytes out = new Bytes();
+    // the current event record
+    private final Bytes event = new Bytes();
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    // strings of the dictionary, by id
+    private final List<String> definitions = new ArrayList<>();
+    private boolean headerWritten;
+
+    @Override
+    public void encode(long clockValue, Map<String, List<TraceItem>> changes, String eventName, Object[] args,
+            String desc, String logger, VectorDelta vector) throws IOException {
+        out.reset();
+        if (!headerWritten) {
+            out.put(MAGIC, 0, MAGIC.length);
+            out.put(VERSION);
+        }
+        final int defined = definitions.size();
+        try {
+            encodeEvent(clockValue, changes, eventName, args, desc, logger, vector);
+        } catch (IllegalAccessException e) {
+            // replace the event by an exception event, with the exception
+            // message as description (definitions already emitted are kept)
+            encodeException(clockValue, e.toString(), logger, vector);
+        } catch (RuntimeException | Error e) {
+            // the event is not written: neither are the header and the
+            // definitions it emitted
+            while (definitions.size() > defined) {
+                dictionary.remove(definitions.remove(definitions.size() - 1));
+            }
+            out.reset();
+            throw e;
+        }
+        out.put(event.buf, 0, event.count);
+        headerWritten = true;
+    }
+
+    private void encodeEvent(long clockValue, Map<String, List<TraceItem>> changes, String eventName, Object[] args,
+            String desc, String logger, VectorDelta vector) throws IllegalAccessException {
+        event.reset();
+        event.put(EVENT);
+        event.zigzag(clockValue);
+        event.varint(changes.size());
+        for (Map.Entry<String, List<TraceItem>> change : changes.entrySet()) {
+            ref(change.getKey());
+            event.varint(change.getValue().size());
+            for (TraceItem action : change.getValue()) {
+                ref(action.action());
+                // path segments are field names (stored in the dictionary),
+                // indexes or booleans
+                event.varint(action.path().size());
+                for (Object segment : action.path()) {
+                    if (segment instanceof String) {
+                        ref((String) segment);
+                    } else {
+                        value(segment);
+                    }
+                }
+                if (action.isUnboxed()) {
+                    unboxed(action);
+                    continue;
+                }
+                event.varint(action.args().size());
+                for (Object arg : action.args()) {
+                    value(arg);
+                }
+            }
+        }
+        final boolean hasEvent = eventName != null && !eventName.equals("");
+        final boolean hasArgs = args != null && args.length > 0;
+        final boolean hasDesc = desc != null && !desc.equals("");
+        event.put((hasEvent ? HAS_EVENT : 0) | (hasArgs ? HAS_ARGS : 0) | (hasDesc ? HAS_DESC : 0)
+                | vectorFlags(vector));
+        if (hasEvent) {
+            ref(eventName);
+        }
+        if (hasArgs) {
+            event.varint(args.length);
+            for (Object arg : args) {
+                value(arg);
+            }
+        }
+        if (hasDesc) {
+            event.string(desc);
+        }
+        vector(vector);
+        ref(logger);
+    }
+
+    private void encodeException(long clockValue, String desc, String logger, VectorDelta vector) {
+        event.reset();
+        event.put(EVENT);
+        event.zigzag(clockValue);
+        event.varint(0);
+        event.put(HAS_EVENT | HAS_DESC | vectorFlags(vector));
+        ref("__exception");
+        event.string(desc);
+        vector(vector);
+        ref(logger);
+    }
+
+    private static int vectorFlags(VectorDelta vector) {
+        if (vector == null) {
+            return 0;
+        }
+        return (vector.ids().isEmpty() ? 0 : HAS_VCLOCK_IDS) | HAS_VCLOCK;
+    }
+
+    /**
+     * Writes the changed entries of the vector clock, if any.
+     */
+    private void vector(VectorDelta vector) {
+        if (vector == null) {
+            return;
+        }
+        if (!vector.ids().isEmpty()) {
+            event.varint(vector.ids().size());
+            for (String id : vector.ids()) {
+                ref(id);
+            }
+        }
+        event.varint(vector.entries().length);
+        for (long entry : vector.entries()) {
+            event.put(INT);
+            event.zigzag(entry);
+        }
+    }
+
+    /**
+     * Writes a reference to a string of the dictionary, defining it if needed.
+     */
+    private void ref(String s) {
+        Integer id = dictionary.get(s);
+        if (id == null) {
+            if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                event.put(STRING);
+                event.string(s);
+                return;
+            }
+            id = dictionary.size();
+            dictionary.put(s, id);
+            definitions.add(s);
+            out.put(DEFINE);
+            out.varint(id);
+            out.string(s);
+        }
+        event.put(STRING_REF);
+        event.varint(id);
+    }
+
+    /**
+     * Writes the arguments of an item whose last argument is unboxed.
+     */
+    private void unboxed(TraceItem action) throws IllegalAccessException {
+        final boolean hasKey = action.key() != TraceItem.NO_KEY;
+        event.varint(hasKey ? 2 : 1);
+        if (hasKey) {
+            value(action.key());
+        }
+        if (action.kind() == TraceItem.BOOLEAN) {
+            event.put(action.value() != 0 ? TRUE : FALSE);
+        } else {
+            event.put(INT);
+            event.zigzag(action.value());
+        }
+    }
+
+    /**
+     * Writes a tagged value (same types as the NDJSON serializer).
+     */
+    private void value(Object value) throws IllegalAccessException {
+        if (value == null) {
+            event.put(NULL);
+            return;
+        }
+        final ValueType type = ValueType.of(value.getClass());
+        switch (type.kind()) {
+            case STRING:
+                event.put(STRING);
+                event.string((String) value);
+                break;
+            case BOOLEAN:
+                event.put((Boolean) value ? TRUE : FALSE);
+                break;
+            case NUMBER:
+                number((Number) value);
+                break;
+            case CHARACTER:
+                event.put(STRING);
+                event.string(value.toString());
+                break;
+            case ENUM:
+                event.put(INT);
+                event.zigzag(((Enum<?>) value).ordinal());
+                break;
+            case OBJECT_ARRAY: {
+                final Object[] array = (Object[]) value;
+                event.put(ARRAY);
+                event.varint(array.length);
+                for (Object e : array) {
+                    value(e);
+                }
+                break;
+            }
+            case COLLECTION: {
+                // the length is written first: take the elements at once, in
+                // case the collection is changed concurrently
+                final Object[] elements = ((Collection<?>) value).toArray();
+                event.put(ARRAY);
+                event.varint(elements.length);
+                for (Object e : elements) {
+                    value(e);
+                }
+                break;
+            }
+            case MAP: {
+                final Object[] entries = ((Map<?, ?>) value).entrySet().toArray();
+                event.put(OBJECT);
+                event.varint(entries.length);
+                for (Object e : entries) {
+                    final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+                    ref(entry.getKey().toString());
+                    value(entry.getValue());
+                }
+                break;
+            }
+            case SERIALIZER:
+                element(((TLASerializer) value).tlaSerialize());
+                break;
+            case RECORD:
+                event.put(OBJECT);
+                event.varint(type.componentCount());
+                for (int i = 0; i < type.componentCount(); i++) {
+                    ref(type.componentName(i));
+                    value(type.componentValue(value, i));
+                }
+                break;
+            case INT_ARRAY: {
+                final int[] array = (int[]) value;
+                event.put(ARRAY);
+                event.varint(array.length);
+                for (int e : array) {
+                    event.put(INT);
+                    event.zigzag(e);
+                }
+                break;
+            }
+            case LONG_ARRAY: {
+                final long[] array = (long[]) value;
+                event.put(ARRAY);
+                event.varint(array.length);
+                for (long e : array) {
+                    event.put(INT);
+                    event.zigzag(e);
+                }
+                break;
+            }
+            case PRIMITIVE_ARRAY: {
+                final int length = Array.getLength(value);
+                event.put(ARRAY);
+                event.varint(length);
+                for (int i = 0; i < length; i++) {
+                    value(Array.get(value, i));
+                }
+                break;
+            }
+            case CUSTOM:
+                value(type.encode(value));
+                break;
+            default:
+                throw new IllegalAccessException("Unknown");
+        }
+    }
+
+    private void number(Number n) {
+        if (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte) {
+            event.put(INT);
+            event.zigzag(n.longValue());
+        } else if (n instanceof Double) {
+            event.put(DOUBLE);
+            event.fixed(Double.doubleToRawLongBits(n.doubleValue()), 8);
+        } else if (n instanceof Float) {
+            event.put(FLOAT);
+            event.fixed(Float.floatToRawIntBits(n.floatValue()), 4);
+        } else if (n instanceof BigInteger && ((BigInteger) n).bitLength() < 64) {
+            event.put(INT);
+            event.zigzag(n.longValue());
+        } else {
+            // BigDecimal, atomic numbers, numbers parsed by Gson...
+            event.put(NUMBER);
+            event.string(n.toString());
+        }
+    }
+
+    /**
+     * Writes an already built JSON element.
+     */
+    private void element(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            event.put(NULL);
+        } else if (element.isJsonPrimitive()) {
+            final JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                event.put(primitive.getAsBoolean() ? TRUE : FALSE);
+            } else if (primitive.isNumber()) {
+                number(primitive.getAsNumber());
+            } else {
+                event.put(STRING);
+                event.string(primitive.getAsString());
+            }
+        } else if (element.isJsonArray()) {
+            event.put(ARRAY);
+            event.varint(element.getAsJsonArray().size());
+            for (JsonElement e : element.getAsJsonArray()) {
+                element(e);
+            }
+        } else {
+            event.put(OBJECT);
+            event.varint(element.getAsJsonObject().size());
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                ref(entry.getKey());
+                element(entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public byte[] array() {
+        return out.buf;
+    }
+
+    @Override
+    public int size() {
+        return out.count;
+    }
+}
@@ -0,0 +1,70 @@
+package org.lbee.instrumentation.trace;
+
+/**
+ * Constants of the binary trace format. A binary trace starts with the magic
+ * bytes <code>TLAB</code> followed by the version byte, and then contains a
+ * sequence of records, each starting with a record tag:
+ * <ul>
+ * <li>{@link #DEFINE}: <code>id</code>, <code>string</code> — adds a string to
+ * the dictionary. Ids are assigned in increasing order starting from 0 and a
+ * string is always defined before it is referenced.</li>
+ * <li>{@link #EVENT}: <code>clock</code> (zigzag varint), the number of
+ * modified variables and for each of them its name (reference) followed by the
+ * number of actions and, for each action, its operator (reference), its path
+ * (list) and its arguments (list); then <code>flags</code> (byte, see
+ * <code>HAS_*</code>), the event name (reference), the event arguments (list)
+ * and the description (string) if present according to the flags, the ids
+ * added to the dictionary of the vector clock (list) and the changed entries
+ * of the vector clock (list) if present according to the flags, and finally
+ * the <code>logger</code> (reference). The fields are in the order of the
+ * corresponding NDJSON event so that it can be transcoded on the fly.</li>
+ * </ul>
+ * Integers are unsigned LEB128 varints; a string is its UTF-8 length followed
+ * by its bytes; a reference is a tagged value ({@link #STRING} or
+ * {@link #STRING_REF}); a list is its length followed by tagged values. Tagged
+ * values start with one of the value tags below. Variable names, operators,
+ * event names, logger ids, path segments and map keys are stored in the
+ * dictionary, other strings are written inline.
+ */
+final class BinaryTraceFormat {
+    static final byte[] MAGIC = { 'T', 'L', 'A', 'B' };
+    static final int VERSION = 1;
+
+    // record tags
+    static final int DEFINE = 1;
+    static final int EVENT = 2;
+
+    // event flags
+    static final int HAS_EVENT = 1;
+    static final int HAS_ARGS = 2;
+    static final int HAS_DESC = 4;
+    static final int HAS_VCLOCK_IDS = 8;
+    static final int HAS_VCLOCK = 16;
+
+    // value tags
+    static final int NULL = 0;
+    static final int FALSE = 1;
+    static final int TRUE = 2;
+    // zigzag varint
+    static final int INT = 3;
+    // IEEE 754, big-endian
+    static final int DOUBLE = 4;
+    static final int FLOAT = 5;
+    // decimal representation of any other number (string)
+    static final int NUMBER = 6;
+    // inline string
+    static final int STRING = 7;
+    // dictionary id
+    static final int STRING_REF = 8;
+    // length followed by the values
+    static final int ARRAY = 9;
+    // length followed by the keys (references) and values
+    static final int OBJECT = 10;
+
+    // maximum number of strings in the dictionary (strings are written inline
+    // once it is full)
+    static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private BinaryTraceFormat() {
+    }
+}
@@ -0,0 +1,272 @@
+package org.lbee.instrumentation.trace;
+
+import static org.lbee.instrumentation.trace.BinaryTraceFormat.*;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a binary trace ({@link TraceFormat#BINARY}) to the NDJSON trace
+ * that the tracer would have written with {@link TraceFormat#NDJSON}. The
+ * conversion is streamed: only the string dictionary is kept in memory.
+ *
+ * Usage: <code>BinaryTraceTranscoder trace.bin [trace.ndjson]</code> (the
+ * NDJSON trace is written on the standard output if no output file is given).
+ */
+public class BinaryTraceTranscoder {
+    private final DataInputStream in;
+    private final Writer chars;
+    private final JsonWriter json;
+    private final List<String> dictionary;
+
+    private BinaryTraceTranscoder(InputStream in, Writer out) {
+        this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        this.chars = out;
+        this.json = new JsonWriter(out);
+        // several top-level values, NaN and infinite values
+        this.json.setLenient(true);
+        this.dictionary = new ArrayList<>();
+    }
+
+    /**
+     * Converts a binary trace to NDJSON.
+     *
+     * @param in  the binary trace
+     * @param out the writer the NDJSON trace is written to (flushed, not closed)
+     * @return the number of events converted
+     * @throws IOException Thrown when the binary trace is invalid or when unable
+     *                     to read or write.
+     */
+    public static long transcode(InputStream in, Writer out) throws IOException {
+        return new BinaryTraceTranscoder(in, out).run();
+    }
+
+    /**
+     * Converts a binary trace file to an NDJSON trace file.
+     *
+     * @param binaryPath path of the binary trace
+     * @param ndjsonPath path of the NDJSON trace
+     * @return the number of events converted
+     * @throws IOException Thrown when the binary trace is invalid or when unable
+     *                     to read or write.
+     */
+    public static long transcode(String binaryPath, String ndjsonPath) throws IOException {
+        try (InputStream in = new FileInputStream(binaryPath);
+                Writer out = new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(ndjsonPath), StandardCharsets.UTF_8), 1 << 16)) {
+            return transcode(in, out);
+        }
+    }
+
+    private long run() throws IOException {
+        final byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            // empty trace
+            return 0;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary trace");
+            }
+        }
+        final int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary trace version " + version);
+        }
+        long events = 0;
+        int tag;
+        while ((tag = in.read()) != -1) {
+            switch (tag) {
+                case DEFINE:
+                    final int id = (int) varint();
+                    if (id != dictionary.size()) {
+                        throw new IOException("Invalid dictionary id " + id);
+                    }
+                    dictionary.add(string());
+                    break;
+                case EVENT:
+                    event();
+                    events++;
+                    break;
+                default:
+                    throw new IOException("Invalid record tag " + tag);
+            }
+        }
+        json.flush();
+        return events;
+    }
+
+    private void event() throws IOException {
+        json.beginObject();
+        json.name("clock").value(zigzag());
+        final long variables = varint();
+        for (long v = 0; v < variables; v++) {
+            json.name(ref());
+            json.beginArray();
+            final long actions = varint();
+            for (long a = 0; a < actions; a++) {
+                json.beginObject();
+                json.name("op").value(ref());
+                json.name("path");
+                list();
+                json.name("args");
+                list();
+                json.endObject();
+            }
+            json.endArray();
+        }
+        final int flags = in.readUnsignedByte();
+        if ((flags & HAS_EVENT) != 0) {
+            json.name("event").value(ref());
+        }
+        if ((flags & HAS_ARGS) != 0) {
+            json.name("event_args");
+            list();
+        }
+        if ((flags & HAS_DESC) != 0) {
+            json.name("desc").value(string());
+        }
+        if ((flags & HAS_VCLOCK_IDS) != 0) {
+            json.name("vclock_ids");
+            list();
+        }
+        if ((flags & HAS_VCLOCK) != 0) {
+            json.name("vclock");
+            list();
+        }
+        json.name("logger").value(ref());
+        json.endObject();
+        json.flush();
+        chars.write('\n');
+    }
+
+    private void list() throws IOException {
+        final long length = varint();
+        json.beginArray();
+        for (long i = 0; i < length; i++) {
+            value(in.readUnsignedByte());
+        }
+        json.endArray();
+    }
+
+    private void value(int tag) throws IOException {
+        switch (tag) {
+            case NULL:
+                json.nullValue();
+                break;
+            case FALSE:
+                json.value(false);
+                break;
+            case TRUE:
+                json.value(true);
+                break;
+            case INT:
+                json.value(zigzag());
+                break;
+            case DOUBLE:
+                json.value((Double) Double.longBitsToDouble(in.readLong()));
+                break;
+            case FLOAT:
+                json.value((Float) Float.intBitsToFloat(in.readInt()));
+                break;
+            case NUMBER:
+                json.jsonValue(string());
+                break;
+            case STRING:
+                json.value(string());
+                break;
+            case STRING_REF:
+                json.value(dictionaryString());
+                break;
+            case ARRAY:
+                list();
+                break;
+            case OBJECT:
+                final long length = varint();
+                json.beginObject();
+                for (long i = 0; i < length; i++) {
+                    json.name(ref());
+                    value(in.readUnsignedByte());
+                }
+                json.endObject();
+                break;
+            default:
+                throw new IOException("Invalid value tag " + tag);
+        }
+    }
+
+    /**
+     * Reads a reference (a dictionary id or an inline string).
+     */
+    private String ref() throws IOException {
+        final int tag = in.readUnsignedByte();
+        if (tag == STRING_REF) {
+            return dictionaryString();
+        } else if (tag == STRING) {
+            return string();
+        }
+        throw new IOException("Invalid reference tag " + tag);
+    }
+
+    private String dictionaryString() throws IOException {
+        final long id = varint();
+        if (id >= dictionary.size()) {
+            throw new IOException("Undefined dictionary id " + id);
+        }
+        return dictionary.get((int) id);
+    }
+
+    private String string() throws IOException {
+        final byte[] bytes = new byte[(int) varint()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long varint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    private long zigzag() throws IOException {
+        final long value = varint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: BinaryTraceTranscoder trace.bin [trace.ndjson]");
+            return;
+        }
+        if (args.length >= 2) {
+            transcode(args[0], args[1]);
+        } else {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            try (InputStream in = new FileInputStream(args[0])) {
+                transcode(in, out);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Decides when a tracer writes a checkpoint, and takes the snapshots of the
+ * variables. A checkpoint is written right after an event, with the greatest
+ * clock of the events written before it, and contains an <code>Update</code> of each variable with a snapshot
+ * supplier at the root: replaying the trace from a checkpoint gives the same
+ * state as replaying it from the start.
+ *
+ * While checkpoints are enabled, the changes of an event are drained and
+ * written under a shared lock, and the checkpoints are taken and written under
+ * the exclusive lock: no event is half committed during a snapshot. The
+ * snapshot is dropped (and retried after the next event) if changes are
+ * notified and not logged yet when it is taken. It is consistent with the
+ * events around it when each supplier reads the state of its variable
+ * atomically with respect to the changes of the state and their notification
+ * (e.g. under the same lock).
+ */
+final class Checkpointer {
+    // name of the checkpoint events
+    static final String EVENT = "__checkpoint";
+
+    // snapshot suppliers, by variable (copied on write)
+    private volatile Map<String, Supplier<?>> snapshots = Map.of();
+    // events and time (ns) between two checkpoints (0: no checkpoint)
+    private volatile long events;
+    private volatile long nanos;
+    private volatile boolean requested;
+    // shared by the commits, exclusive for the checkpoints
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // events committed while checkpoints are enabled, and greatest clock of
+    // these events
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(Long.MIN_VALUE);
+    // events committed and time at the last checkpoint
+    private volatile long committedAtLast;
+    private volatile long lastTime = System.nanoTime();
+    // checkpoints written, and dropped because of pending changes
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    synchronized void register(String variable, Supplier<?> snapshot) {
+        final Map<String, Supplier<?>> copy = new LinkedHashMap<>(snapshots);
+        if (snapshot == null) {
+            copy.remove(variable);
+        } else {
+            copy.put(variable, snapshot);
+        }
+        snapshots = Collections.unmodifiableMap(copy);
+    }
+
+    void setInterval(long events, long millis) {
+        this.events = Math.max(0, events);
+        this.nanos = Math.max(0, millis) * 1_000_000;
+        this.lastTime = System.nanoTime();
+        this.committedAtLast = committed.get();
+    }
+
+    void request() {
+        requested = true;
+    }
+
+    /**
+     * Starts the commit of an event (a no-op when no checkpoint is enabled).
+     *
+     * @return whether the commit is counted (to be given to {@link #exit} and
+     *         {@link #due})
+     */
+    boolean enter() {
+        if (snapshots.isEmpty() || (events == 0 && nanos == 0 && !requested)) {
+            return false;
+        }
+        lock.readLock().lock();
+        return true;
+    }
+
+    /**
+     * Records the clock of an event written while its commit is counted (before
+     * {@link #exit}).
+     */
+    void written(boolean counted, long clockValue) {
+        if (counted && clock.get() < clockValue) {
+            clock.accumulateAndGet(clockValue, Math::max);
+        }
+    }
+
+    /**
+     * Ends the commit of an event.
+     */
+    void exit(boolean counted) {
+        if (counted) {
+            committed.incrementAndGet();
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether a checkpoint is due after the current event
+     */
+    boolean due(boolean counted) {
+        if (!counted) {
+            return false;
+        }
+        final long n = events;
+        final long t = nanos;
+        return requested || (n > 0 && committed.get() - committedAtLast >= n)
+                || (t > 0 && System.nanoTime() - lastTime >= t);
+    }
+
+    /**
+     * Takes the exclusive lock, to be held while the checkpoint is taken and
+     * written.
+     */
+    void lock() {
+        lock.writeLock().lock();
+    }
+
+    void unlock() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Takes the snapshots of the variables (with the exclusive lock held), if
+     * no change is pending.
+     *
+     * @param updates Changes notified and not yet logged.
+     * @param filter  Variables traced.
+     * @return the values of the variables as changes, or null if the snapshot
+     *         could not be taken consistently (or is not due anymore)
+     */
+    Map<String, List<TraceItem>> snapshot(UpdateBuffer updates, TraceFilter filter) {
+        if (!due(true)) {
+            // taken by another thread
+            return null;
+        }
+        if (!updates.pending().isEmpty()) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        final Map<String, List<TraceItem>> state = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<?>> snapshot : snapshots.entrySet()) {
+            if (filter.isTraced(snapshot.getKey(), List.of())) {
+                state.put(snapshot.getKey(), List.of(new TraceItem("Update", FieldPath.ROOT,
+                        Collections.singletonList(snapshot.getValue().get()))));
+            }
+        }
+        // changes notified while reading the state could be in the snapshot
+        // and logged after it
+        if (!updates.pending().isEmpty()) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        requested = false;
+        committedAtLast = committed.get();
+        lastTime = System.nanoTime();
+        written.incrementAndGet();
+        return state;
+    }
+
+    /**
+     * @return the greatest clock of the events written (to be read with the
+     *         exclusive lock held)
+     */
+    long clock() {
+        return clock.get();
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+}
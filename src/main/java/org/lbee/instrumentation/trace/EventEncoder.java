@@ -0,0 +1,41 @@
+package org.lbee.instrumentation.trace;
+
+import org.lbee.instrumentation.clock.VectorClock;
+import org.lbee.instrumentation.clock.VectorDelta;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the events of a tracer in a given {@link TraceFormat}. An encoder
+ * is not thread-safe.
+ */
+interface EventEncoder {
+    /**
+     * Serializes an event to the internal buffer; the result is available
+     * through {@link #array()} and {@link #size()} until the next call.
+     *
+     * @param clockValue Clock value of the event.
+     * @param changes    Changes committed by the event, grouped by variable.
+     * @param eventName  Name of the event (omitted when null or empty).
+     * @param args       Arguments of the event (omitted when null or empty).
+     * @param desc       Description of the event (omitted when null or empty).
+     * @param logger     Id of the tracer.
+     * @param vector     Entries of the vector clock changed by the event (null
+     *                   if the clock is not a {@link VectorClock}).
+     * @throws IOException Thrown when unable to encode the event.
+     */
+    void encode(long clockValue, Map<String, List<TraceItem>> changes, String eventName, Object[] args,
+            String desc, String logger, VectorDelta vector) throws IOException;
+
+    /**
+     * @return the buffer containing the last encoded event
+     */
+    byte[] array();
+
+    /**
+     * @return the length of the last encoded event
+     */
+    int size();
+}
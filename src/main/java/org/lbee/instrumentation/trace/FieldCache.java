@@ -0,0 +1,73 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bookkeeping of the {@link VirtualField} handles interned by a tracer. The
+ * handles themselves are stored in their parent handle (and in the tracer for
+ * the variables); this class bounds their number and counts the lookups.
+ *
+ * The cache is filled once: a cached handle is never evicted (it is reachable
+ * from its parent for the life of the tracer), so once the capacity is
+ * reached only the handles already cached are hits, and the lookups of any
+ * other path allocate a new handle.
+ */
+final class FieldCache {
+    // default maximum number of cached handles
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    // indexes in [0, SMALL_INDEXES) are cached in an array (no boxing)
+    static final int SMALL_INDEXES = 128;
+    // rough size of a handle with its path (object headers, fields, segments
+    // list, JSON representation and slot in the parent)
+    private static final long ESTIMATED_HANDLE_BYTES = 160;
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile int capacity;
+
+    FieldCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves room for a new handle.
+     * 
+     * @return false if the cache is full (the handle must not be cached)
+     */
+    boolean reserve() {
+        int current;
+        do {
+            current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Releases room reserved for a handle that was finally not cached.
+     */
+    void release() {
+        size.decrementAndGet();
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    FieldCacheStats stats() {
+        final int cached = size.get();
+        return new FieldCacheStats(hits.sum(), misses.sum(), cached, capacity, cached * ESTIMATED_HANDLE_BYTES);
+    }
+}
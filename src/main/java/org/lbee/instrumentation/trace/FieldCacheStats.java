@@ -0,0 +1,24 @@
+package org.lbee.instrumentation.trace;
+
+/**
+ * Statistics of the cache of {@link VirtualField} handles of a tracer. The
+ * cache never evicts a handle: when <code>size</code> reaches
+ * <code>capacity</code>, every new path looked up is a miss, and the misses
+ * keep growing even if these paths are hot.
+ *
+ * @param hits           number of lookups that returned a cached handle
+ * @param misses         number of lookups that created a new handle
+ * @param size           number of cached handles
+ * @param capacity       maximum number of cached handles
+ * @param estimatedBytes estimation of the memory used by the cached handles
+ */
+public record FieldCacheStats(long hits, long misses, int size, int capacity, long estimatedBytes) {
+    /**
+     * @return the proportion of lookups that returned a cached handle (0 if
+     *         there was no lookup)
+     */
+    public double hitRate() {
+        final long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,77 @@
+package org.lbee.instrumentation.trace;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable path from a variable to one of its fields. Each segment is a
+ * field name (String), an index in a sequence (Integer) or a boolean index
+ * (Boolean). The JSON array representing the path is computed once, when the
+ * path is built.
+ */
+final class FieldPath {
+    static final FieldPath ROOT = new FieldPath(Collections.emptyList());
+
+    private final List<Object> segments;
+    private final String json;
+
+    private FieldPath(List<Object> segments) {
+        this.segments = segments;
+        this.json = toJson(segments);
+    }
+
+    /**
+     * Returns the path of a field of the field designated by this path.
+     * 
+     * @param segment name, index or boolean index of the field
+     * @return the path of the field
+     */
+    FieldPath child(Object segment) {
+        final List<Object> childSegments = new ArrayList<>(segments.size() + 1);
+        childSegments.addAll(segments);
+        childSegments.add(segment);
+        return new FieldPath(Collections.unmodifiableList(childSegments));
+    }
+
+    /**
+     * @return the segments of the path (unmodifiable)
+     */
+    List<Object> segments() {
+        return segments;
+    }
+
+    /**
+     * @return the JSON array representing the path
+     */
+    String json() {
+        return json;
+    }
+
+    private static String toJson(List<Object> segments) {
+        final StringWriter chars = new StringWriter();
+        final JsonWriter writer = new JsonWriter(chars);
+        try {
+            writer.beginArray();
+            for (Object segment : segments) {
+                if (segment instanceof String) {
+                    writer.value((String) segment);
+                } else if (segment instanceof Boolean) {
+                    writer.value((Boolean) segment);
+                } else {
+                    writer.value((Number) segment);
+                }
+            }
+            writer.endArray();
+            writer.flush();
+        } catch (IOException e) {
+            // cannot happen with a StringWriter
+            throw new IllegalStateException(e);
+        }
+        return chars.toString();
+    }
+}
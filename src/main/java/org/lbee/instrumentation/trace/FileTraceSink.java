@@ -0,0 +1,49 @@
+package org.lbee.instrumentation.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A sink writing the events to a file and flushing the file after each event.
+ * This is the sink used by default by a {@link TLATracer}: every event is
+ * handed to the operating system as soon as it is logged, at the price of one
+ * system call per event.
+ */
+public class FileTraceSink implements TraceSink {
+    // stream used to write the trace
+    private final OutputStream out;
+
+    /**
+     * Create a sink writing to the given file (the file is truncated if it
+     * exists).
+     * 
+     * @param tracePath The path of the trace file.
+     * @throws IOException Thrown when unable to create trace file.
+     */
+    public FileTraceSink(String tracePath) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(tracePath));
+    }
+
+    @Override
+    public synchronized void write(byte[] event, int offset, int length) throws IOException {
+        out.write(event, offset, length);
+        out.flush();
+    }
+
+    @Override
+    public boolean isContiguous() {
+        return true;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
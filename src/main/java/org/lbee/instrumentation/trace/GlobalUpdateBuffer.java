@@ -0,0 +1,70 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A buffer shared by all the threads ({@link UpdateScope#GLOBAL}). Changes are
+ * pushed on a lock-free stack and the whole stack is detached atomically when
+ * the changes are drained, so that a change is either part of an event or of
+ * the next one, and the order of the notifications is preserved.
+ */
+class GlobalUpdateBuffer implements UpdateBuffer {
+    /**
+     * A change in the stack (the head is the most recent change).
+     */
+    private static final class Node {
+        private final String variable;
+        private final TraceItem item;
+        private final Node next;
+
+        private Node(String variable, TraceItem item, Node next) {
+            this.variable = variable;
+            this.item = item;
+            this.next = next;
+        }
+    }
+
+    private final AtomicReference<Node> head = new AtomicReference<>();
+
+    @Override
+    public void add(String variable, TraceItem item) {
+        Node current;
+        do {
+            current = head.get();
+        } while (!head.compareAndSet(current, new Node(variable, item, current)));
+    }
+
+    @Override
+    public Map<String, List<TraceItem>> drain() {
+        Node node = head.getAndSet(null);
+        if (node == null) {
+            return Collections.emptyMap();
+        }
+        // the stack is in reverse order of notification
+        final List<Node> nodes = new ArrayList<>();
+        for (; node != null; node = node.next) {
+            nodes.add(node);
+        }
+        final Map<String, List<TraceItem>> updates = new LinkedHashMap<>();
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            final Node n = nodes.get(i);
+            updates.computeIfAbsent(n.variable, k -> new ArrayList<>()).add(n.item);
+        }
+        return updates;
+    }
+
+    @Override
+    public Map<String, Integer> pending() {
+        final Map<String, Integer> counts = new TreeMap<>();
+        for (Node node = head.get(); node != null; node = node.next) {
+            counts.merge(node.variable, 1, Integer::sum);
+        }
+        return counts;
+    }
+}
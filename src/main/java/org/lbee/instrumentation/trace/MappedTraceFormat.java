@@ -0,0 +1,84 @@
+package org.lbee.instrumentation.trace;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the files written by a {@link MappedTraceSink}. A file starts
+ * with a header of {@value #HEADER_SIZE} bytes: the magic bytes
+ * <code>TLAM</code>, the version (int), the mode (int, the ordinal of
+ * {@link MappedTraceSink.Mode}), a reserved int and the size of the regions
+ * (long). The regions follow the header: a single region used as a ring in
+ * {@link MappedTraceSink.Mode#RING} mode, consecutive regions in
+ * {@link MappedTraceSink.Mode#APPEND} mode.
+ *
+ * A region contains records aligned on 8 bytes: the length of the event (int),
+ * the CRC32 of the sequence number and of the event (int), the sequence number
+ * (long, starting at 1) and the event. The length is written last, so a record
+ * is either complete or invalid (its length or CRC does not match). All the
+ * integers are big-endian.
+ */
+final class MappedTraceFormat {
+    static final byte[] MAGIC = { 'T', 'L', 'A', 'M' };
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 16;
+
+    // offsets in the header
+    static final int VERSION_OFFSET = 4;
+    static final int MODE_OFFSET = 8;
+    static final int REGION_SIZE_OFFSET = 16;
+
+    // ordered write of the length of a record (commits the record)
+    static final VarHandle LENGTH = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private MappedTraceFormat() {
+    }
+
+    /**
+     * Size of the record of an event (header, event and padding).
+     */
+    static long recordSize(int length) {
+        return (RECORD_HEADER_SIZE + (long) length + 7) & ~7L;
+    }
+
+    /**
+     * Checksum of a record.
+     */
+    static int checksum(CRC32 crc, long seq, byte[] event, int offset, int length) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (seq >>> shift));
+        }
+        crc.update(event, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Returns the length of the valid record at the given position of a region,
+     * -1 if there is no valid record at this position. The event of a valid
+     * record is copied in <code>event[0]</code> (replaced by a larger buffer if
+     * needed).
+     */
+    static int readRecord(ByteBuffer region, int position, CRC32 crc, byte[][] event) {
+        if (position + RECORD_HEADER_SIZE > region.limit()) {
+            return -1;
+        }
+        final int length = region.getInt(position);
+        if (length <= 0 || position + recordSize(length) > region.limit()) {
+            return -1;
+        }
+        if (event[0].length < length) {
+            event[0] = new byte[Math.max(length, event[0].length * 2)];
+        }
+        region.get(position + RECORD_HEADER_SIZE, event[0], 0, length);
+        final long seq = region.getLong(position + 8);
+        if (checksum(crc, seq, event[0], 0, length) != region.getInt(position + 4)) {
+            return -1;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,183 @@
+package org.lbee.instrumentation.trace;
+
+import static org.lbee.instrumentation.trace.MappedTraceFormat.*;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts the valid events of a file written by a {@link MappedTraceSink}
+ * (during or after the end of the process, e.g. after a crash) into an NDJSON
+ * trace. Records that were being written when the process stopped are
+ * invalid and ignored. In {@link MappedTraceSink.Mode#RING} mode, the events
+ * are sorted by sequence number and only the last consecutive ones are kept
+ * (older events may remain in the ring after gaps); when the process is still
+ * writing, the events overwritten while they are recovered are skipped and
+ * counted as discarded.
+ *
+ * Usage: <code>MappedTraceRecovery trace.mapped trace.ndjson</code>.
+ */
+public class MappedTraceRecovery {
+    private final CRC32 crc = new CRC32();
+    private final byte[][] event = { new byte[1 << 12] };
+    // number of valid events found, and number of events not recovered
+    private long found;
+    private long discarded;
+
+    /**
+     * Recover the events of a mapped trace.
+     *
+     * @param mappedPath The file written by a {@link MappedTraceSink}.
+     * @param out        The NDJSON trace the events are written to.
+     * @return the number of events recovered
+     * @throws IOException Thrown when unable to read the file or when it is not
+     *                     a mapped trace.
+     */
+    public long recover(String mappedPath, OutputStream out) throws IOException {
+        found = 0;
+        discarded = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(mappedPath), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("Not a mapped trace: " + mappedPath);
+            }
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            final byte[] magic = new byte[MAGIC.length];
+            header.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException("Not a mapped trace: " + mappedPath);
+            }
+            final int mode = header.getInt(MODE_OFFSET);
+            final long regionSize = header.getLong(REGION_SIZE_OFFSET);
+            if (mode == MappedTraceSink.Mode.RING.ordinal()) {
+                return recoverRing(channel, regionSize, out);
+            }
+            return recoverAppend(channel, regionSize, out);
+        }
+    }
+
+    /**
+     * @return the number of valid events found by the last recovery
+     */
+    public long getFound() {
+        return found;
+    }
+
+    /**
+     * @return the number of valid events not recovered by the last recovery
+     *         (older events of a ring separated from the last ones by a gap)
+     */
+    public long getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Regions are filled in order and the records of a region are consecutive:
+     * read them until the first invalid record of a region.
+     */
+    private long recoverAppend(FileChannel channel, long regionSize, OutputStream out) throws IOException {
+        long expected = 1;
+        for (long start = HEADER_SIZE; start + regionSize <= channel.size(); start += regionSize) {
+            final ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start, regionSize);
+            int position = 0;
+            int length;
+            boolean any = false;
+            while ((length = readRecord(region, position, crc, event)) > 0) {
+                if (region.getLong(position + 8) != expected) {
+                    // stale data (should not happen since the file is truncated)
+                    break;
+                }
+                out.write(event[0], 0, length);
+                expected++;
+                found++;
+                any = true;
+                position += (int) recordSize(length);
+            }
+            if (!any) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Look for the valid records at every aligned position of the ring, sort
+     * them by sequence number and write the last consecutive ones.
+     */
+    private long recoverRing(FileChannel channel, long regionSize, OutputStream out) throws IOException {
+        final ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                Math.min(regionSize, channel.size() - HEADER_SIZE));
+        long[] seqs = new long[1024];
+        int[] positions = new int[1024];
+        int count = 0;
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= region.limit()) {
+            final int length = readRecord(region, position, crc, event);
+            if (length > 0) {
+                if (count == seqs.length) {
+                    seqs = Arrays.copyOf(seqs, count * 2);
+                    positions = Arrays.copyOf(positions, count * 2);
+                }
+                seqs[count] = region.getLong(position + 8);
+                positions[count] = position;
+                count++;
+                position += (int) recordSize(length);
+            } else {
+                position += 8;
+            }
+        }
+        long minSeq = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            minSeq = Math.min(minSeq, seqs[i]);
+        }
+        // sequence number relative to the smallest one (high bits) and position
+        // (low 31 bits) of the records
+        final long[] records = new long[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = (seqs[i] - minSeq) << 31 | positions[i];
+        }
+        found = count;
+        Arrays.sort(records);
+        // the last consecutive sequence numbers
+        int first = count - 1;
+        while (first > 0 && (records[first - 1] >>> 31) == (records[first] >>> 31) - 1) {
+            first--;
+        }
+        first = Math.max(first, 0);
+        discarded = first;
+        long recovered = 0;
+        for (int i = first; i < count; i++) {
+            final int recordPosition = (int) (records[i] & Integer.MAX_VALUE);
+            final int length = readRecord(region, recordPosition, crc, event);
+            if (length <= 0 || region.getLong(recordPosition + 8) != minSeq + (records[i] >>> 31)) {
+                // overwritten since the scan
+                discarded++;
+                continue;
+            }
+            out.write(event[0], 0, length);
+            recovered++;
+        }
+        return recovered;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: MappedTraceRecovery trace.mapped trace.ndjson");
+            return;
+        }
+        final MappedTraceRecovery recovery = new MappedTraceRecovery();
+        final long events;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16)) {
+            events = recovery.recover(args[0], out);
+        }
+        System.out.println(events + " events recovered"
+                + (recovery.getDiscarded() > 0 ? ", " + recovery.getDiscarded() + " older events discarded" : ""));
+    }
+}
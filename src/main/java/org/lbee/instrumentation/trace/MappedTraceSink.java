@@ -0,0 +1,147 @@
+package org.lbee.instrumentation.trace;
+
+import static org.lbee.instrumentation.trace.MappedTraceFormat.*;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A sink writing the events directly in a memory-mapped file, in the same
+ * spirit as the FILE clock: an event is copied to the mapped memory and
+ * belongs to the page cache of the operating system as soon as
+ * {@link #write(byte[], int, int)} returns, without any system call. Every
+ * logged event thus survives a crash (or a kill) of the JVM; {@link #flush()}
+ * forces the mapped memory to the storage device to also survive a crash of
+ * the operating system.
+ *
+ * The file is not an NDJSON trace (see {@link MappedTraceFormat}): the events
+ * are extracted with {@link MappedTraceRecovery}, after the end or the crash
+ * of the process. In {@link Mode#APPEND} mode the file grows by regions and
+ * keeps all the events (a full region is forced before the next one is mapped,
+ * once per region); in {@link Mode#RING} mode the file has a fixed size and
+ * keeps only the last events (the oldest ones are overwritten).
+ */
+public class MappedTraceSink implements TraceSink {
+    /**
+     * How the mapped regions are used.
+     */
+    public enum Mode {
+        /** Keep all the events, mapping a new region when a region is full. */
+        APPEND,
+        /** Keep the last events, overwriting the oldest ones. */
+        RING
+    }
+
+    // default size of the mapped regions
+    public static final long DEFAULT_REGION_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final Mode mode;
+    private final int regionSize;
+    private final CRC32 crc = new CRC32();
+    // region being written, its index and the position in the region
+    private MappedByteBuffer region;
+    private long regionIndex;
+    private int position;
+    // sequence number of the next event
+    private long seq = 1;
+    private boolean closed;
+
+    /**
+     * Create a sink appending the events to the given file (the file is
+     * truncated if it exists), by regions of {@value #DEFAULT_REGION_SIZE}
+     * bytes.
+     *
+     * @param tracePath The path of the mapped file.
+     * @throws IOException Thrown when unable to create or map the file.
+     */
+    public MappedTraceSink(String tracePath) throws IOException {
+        this(tracePath, Mode.APPEND, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * Create a sink writing the events to the given file (the file is truncated
+     * if it exists).
+     *
+     * @param tracePath  The path of the mapped file.
+     * @param mode       Whether the events are appended or written in a ring.
+     * @param regionSize Size of the mapped regions (the size of the ring in
+     *                   {@link Mode#RING} mode), at most 2 GB.
+     * @throws IOException Thrown when unable to create or map the file.
+     */
+    public MappedTraceSink(String tracePath, Mode mode, long regionSize) throws IOException {
+        if (regionSize < RECORD_HEADER_SIZE * 2 || regionSize > (Integer.MAX_VALUE & ~7)) {
+            throw new IllegalArgumentException("Invalid region size " + regionSize);
+        }
+        this.mode = mode;
+        this.regionSize = (int) (regionSize & ~7L);
+        this.channel = FileChannel.open(Paths.get(tracePath), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.put(0, MAGIC);
+        header.putInt(VERSION_OFFSET, VERSION);
+        header.putInt(MODE_OFFSET, mode.ordinal());
+        header.putLong(REGION_SIZE_OFFSET, this.regionSize);
+        header.force();
+        this.region = map(0);
+    }
+
+    private MappedByteBuffer map(long index) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + index * regionSize, regionSize);
+    }
+
+    @Override
+    public synchronized void write(byte[] event, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Trace sink is closed");
+        }
+        final long size = recordSize(length);
+        if (size > regionSize) {
+            throw new IOException("Event of " + length + " bytes larger than the mapped region");
+        }
+        if (position + size > regionSize) {
+            if (mode == Mode.APPEND) {
+                // flush() only forces the region being written
+                region.force();
+                regionIndex++;
+                region = map(regionIndex);
+            }
+            position = 0;
+        }
+        region.putLong(position + 8, seq);
+        region.put(position + RECORD_HEADER_SIZE, event, offset, length);
+        region.putInt(position + 4, checksum(crc, seq, event, offset, length));
+        // commit the record once its content is written
+        LENGTH.setRelease(region, position, length);
+        position += (int) size;
+        seq++;
+    }
+
+    /**
+     * Force the events written so far to the storage device.
+     *
+     * @throws IOException Thrown when the sink is closed.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            throw new IOException("Trace sink is closed");
+        }
+        region.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        region.force();
+        // the mapping stays valid until the buffer is garbage collected
+        channel.close();
+    }
+}
@@ -0,0 +1,241 @@
+package org.lbee.instrumentation.trace;
+
+import com.google.gson.stream.JsonWriter;
+
+import org.lbee.instrumentation.clock.VectorDelta;
+import org.lbee.instrumentation.helper.NDJsonSerializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes events to NDJSON lines. The JSON tokens are streamed to a
+ * reusable UTF-8 buffer so that no intermediate JSON tree nor String is built
+ * for an event. An encoder is not thread-safe.
+ */
+class NDJsonEventEncoder implements EventEncoder {
+    // buffers larger than this are not kept between two events
+    private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    /**
+     * A byte buffer whose content can be accessed without copy.
+     */
+    private static final class EventBuffer extends ByteArrayOutputStream {
+        private EventBuffer() {
+            super(1024);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+
+        private void shrink() {
+            if (buf.length > MAX_RETAINED_CAPACITY) {
+                buf = new byte[1024];
+            }
+        }
+
+        // unsynchronized write (the buffer is confined to the encoder)
+        private void put(int b) {
+            if (count == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+            }
+            buf[count++] = (byte) b;
+        }
+    }
+
+    /**
+     * Encodes the characters written by the JSON writer to UTF-8, directly in
+     * the event buffer. JsonWriter writes token by token, and an
+     * OutputStreamWriter allocates a CharBuffer for each write.
+     */
+    private static final class Utf8Writer extends Writer {
+        private final EventBuffer out;
+        // high surrogate waiting for the low surrogate of the next write
+        private char high;
+
+        private Utf8Writer(EventBuffer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                encode(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                encode(str.charAt(i));
+            }
+        }
+
+        private void encode(char c) {
+            if (high != 0) {
+                final char h = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    final int cp = Character.toCodePoint(h, c);
+                    out.put(0xF0 | (cp >> 18));
+                    out.put(0x80 | ((cp >> 12) & 0x3F));
+                    out.put(0x80 | ((cp >> 6) & 0x3F));
+                    out.put(0x80 | (cp & 0x3F));
+                    return;
+                }
+                // malformed, replaced as by the UTF-8 charset
+                out.put('?');
+            }
+            if (c < 0x80) {
+                out.put(c);
+            } else if (c < 0x800) {
+                out.put(0xC0 | (c >> 6));
+                out.put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                high = c;
+            } else if (Character.isLowSurrogate(c)) {
+                out.put('?');
+            } else {
+                out.put(0xE0 | (c >> 12));
+                out.put(0x80 | ((c >> 6) & 0x3F));
+                out.put(0x80 | (c & 0x3F));
+            }
+        }
+
+        /**
+         * Forget a pending high surrogate (the event is dropped).
+         */
+        private void reset() {
+            high = 0;
+        }
+
+        @Override
+        public void flush() {
+            if (high != 0) {
+                high = 0;
+                out.put('?');
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final EventBuffer buffer;
+    private final Utf8Writer chars;
+    private JsonWriter json;
+    // the previous event failed, leaving the writers in the middle of it
+    private boolean interrupted;
+
+    NDJsonEventEncoder() {
+        this.buffer = new EventBuffer();
+        this.chars = new Utf8Writer(buffer);
+        this.json = newJsonWriter();
+    }
+
+    private JsonWriter newJsonWriter() {
+        final JsonWriter writer = new JsonWriter(chars);
+        // allows to write several top-level values with the same writer (and
+        // accepts NaN and infinite values, as JsonElement.toString does)
+        writer.setLenient(true);
+        return writer;
+    }
+
+    @Override
+    public void encode(long clockValue, Map<String, List<TraceItem>> changes, String eventName, Object[] args,
+            String desc, String logger, VectorDelta vector) throws IOException {
+        if (interrupted) {
+            // drop the characters of the failed event and restart from a
+            // fresh writer
+            chars.reset();
+            json = newJsonWriter();
+            interrupted = false;
+        }
+        buffer.shrink();
+        buffer.reset();
+        try {
+            json.beginObject();
+            // Set clock
+            json.name("clock").value(clockValue);
+            // add actions for each of the updated variables
+            for (Map.Entry<String, List<TraceItem>> change : changes.entrySet()) {
+                json.name(change.getKey());
+                json.beginArray();
+                for (TraceItem action : change.getValue()) {
+                    action.write(json);
+                }
+                json.endArray();
+            }
+            // set eventName and arguments if provided
+            if (eventName != null && !eventName.equals("")) {
+                json.name("event").value(eventName);
+            }
+            if (args != null && args.length > 0) {
+                json.name("event_args");
+                NDJsonSerializer.writeArray(json, args);
+            }
+            // set desc if provided
+            if (desc != null && !desc.equals("")) {
+                json.name("desc").value(desc);
+            }
+        } catch (IllegalAccessException e) {
+            // drop the partially written event and replace it by an exception
+            // event, with the exception message as description
+            chars.reset();
+            buffer.reset();
+            json = newJsonWriter();
+            json.beginObject();
+            json.name("clock").value(clockValue);
+            json.name("event").value("__exception");
+            json.name("desc").value(e.toString());
+        } catch (RuntimeException | Error e) {
+            // raised by a user value (iterator, accessor, TLASerializer...):
+            // the event is not written
+            interrupted = true;
+            throw e;
+        }
+        // set the changed entries of the vector clock
+        if (vector != null) {
+            if (!vector.ids().isEmpty()) {
+                json.name("vclock_ids");
+                json.beginArray();
+                for (String id : vector.ids()) {
+                    json.value(id);
+                }
+                json.endArray();
+            }
+            json.name("vclock");
+            json.beginArray();
+            for (long entry : vector.entries()) {
+                json.value(entry);
+            }
+            json.endArray();
+        }
+        // set the id of the logger
+        json.name("logger").value(logger);
+        json.endObject();
+        json.flush();
+        buffer.write('\n');
+    }
+
+    @Override
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    @Override
+    public int size() {
+        return buffer.size();
+    }
+}
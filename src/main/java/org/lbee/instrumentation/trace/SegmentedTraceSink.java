@@ -0,0 +1,252 @@
+package org.lbee.instrumentation.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A sink writing the trace in a sequence of files (segments): the sink rolls
+ * to a new segment when the current one reaches a maximum size or a maximum
+ * number of events. The events are flushed after each event, as with
+ * {@link FileTraceSink}.
+ *
+ * The segment being written is named <code>prefix-000001.ndjson.part</code>;
+ * when it is complete, it is renamed after the range of the clocks of its
+ * events, <code>prefix-000001-&lt;min clock&gt;-&lt;max clock&gt;.ndjson</code>,
+ * or, when it is compressed with gzip by a background thread, published as
+ * <code>prefix-000001-&lt;min&gt;-&lt;max&gt;.ndjson.gz</code> once compressed
+ * (so that a merge of the directory never sees both versions of a segment).
+ * The clocks are read from the NDJSON events. Binary traces cannot be
+ * segmented, since only the first segment would have the header and a segment
+ * would use the dictionary of the previous ones.
+ */
+public class SegmentedTraceSink implements TraceSink {
+    // default maximum size of a segment
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private static final byte[] CLOCK_PREFIX = "{\"clock\":".getBytes(StandardCharsets.US_ASCII);
+
+    private final String prefix;
+    private final long maxBytes;
+    private final long maxEvents;
+    // compresses the complete segments (null if they are not compressed)
+    private final ExecutorService compressor;
+    private final List<String> completed = new ArrayList<>();
+
+    // segment being written (null before the first event of the segment)
+    private OutputStream out;
+    private File part;
+    private int segment;
+    private long bytes;
+    private long events;
+    private long minClock;
+    private long maxClock;
+    private boolean closed;
+    // first error raised by the background compression
+    private volatile IOException failure;
+
+    /**
+     * Create a sink rolling to a new uncompressed segment every
+     * {@value #DEFAULT_MAX_BYTES} bytes.
+     *
+     * @param prefix Path of the segments, without the segment number and the
+     *               extension.
+     */
+    public SegmentedTraceSink(String prefix) {
+        this(prefix, DEFAULT_MAX_BYTES, 0, false);
+    }
+
+    /**
+     * Create a sink rolling to a new segment when a maximum size or a maximum
+     * number of events is reached.
+     *
+     * @param prefix    Path of the segments, without the segment number and the
+     *                  extension.
+     * @param maxBytes  Maximum size of a segment, in bytes (0 for no limit).
+     * @param maxEvents Maximum number of events in a segment (0 for no limit).
+     * @param compress  Whether the complete segments are compressed with gzip
+     *                  (by a background thread).
+     */
+    public SegmentedTraceSink(String prefix, long maxBytes, long maxEvents, boolean compress) {
+        if (maxBytes < 0 || maxEvents < 0) {
+            throw new IllegalArgumentException("Invalid segment limits");
+        }
+        this.prefix = prefix;
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.compressor = compress ? Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "trace-compressor");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @Override
+    public synchronized void write(byte[] event, int offset, int length) throws IOException {
+        checkState();
+        if (out == null) {
+            open();
+        }
+        out.write(event, offset, length);
+        out.flush();
+        bytes += length;
+        events++;
+        final long clock = clockOf(event, offset, length);
+        if (clock >= 0) {
+            minClock = Math.min(minClock, clock);
+            maxClock = Math.max(maxClock, clock);
+        }
+        if ((maxBytes > 0 && bytes >= maxBytes) || (maxEvents > 0 && events >= maxEvents)) {
+            complete();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        checkState();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Complete the current segment, wait for the compression of the segments
+     * and release the files. Closing an already closed sink has no effect.
+     *
+     * @throws IOException Thrown when unable to complete or compress a segment.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (out != null) {
+            complete();
+        }
+        if (compressor != null) {
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing trace");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the paths of the complete segments, in order. A compressed segment
+     * may still be being compressed (it is complete once the sink is closed).
+     *
+     * @return the paths of the complete segments
+     */
+    public synchronized List<String> getCompletedSegments() {
+        return Collections.unmodifiableList(new ArrayList<>(completed));
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Trace sink is closed");
+        }
+    }
+
+    private void open() throws IOException {
+        segment++;
+        part = new File(String.format("%s-%06d.ndjson.part", prefix, segment));
+        out = new BufferedOutputStream(new FileOutputStream(part), 1 << 16);
+        bytes = 0;
+        events = 0;
+        minClock = Long.MAX_VALUE;
+        maxClock = -1;
+    }
+
+    /**
+     * Close the current segment, rename it after its clocks and compress it.
+     */
+    private void complete() throws IOException {
+        out.close();
+        out = null;
+        final String name = maxClock >= 0 ? String.format("%s-%06d-%d-%d.ndjson", prefix, segment, minClock, maxClock)
+                : String.format("%s-%06d.ndjson", prefix, segment);
+        if (compressor == null) {
+            Files.move(part.toPath(), new File(name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            completed.add(name);
+        } else {
+            // the segment keeps its part name until it is compressed
+            final File source = part;
+            final File target = new File(name + ".gz");
+            completed.add(target.getPath());
+            compressor.execute(() -> compress(source, target));
+        }
+    }
+
+    /**
+     * Compress a complete segment, publish it, then delete the uncompressed
+     * segment (body of the background thread).
+     */
+    private void compress(File source, File target) {
+        if (failure != null) {
+            return;
+        }
+        final File gzPart = new File(target.getPath() + ".part");
+        try {
+            try (InputStream in = new FileInputStream(source);
+                    OutputStream gz = new GZIPOutputStream(new FileOutputStream(gzPart), 1 << 16)) {
+                in.transferTo(gz);
+            }
+            Files.move(gzPart.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(source.toPath());
+        } catch (IOException e) {
+            System.err.println("Error while compressing trace segment " + source + ": " + e.getMessage());
+            failure = e;
+        }
+    }
+
+    /**
+     * Reads the clock of an NDJSON event written by the tracer (it starts with
+     * its clock), -1 if the event does not start with a clock.
+     */
+    static long clockOf(byte[] event, int offset, int length) {
+        if (length <= CLOCK_PREFIX.length) {
+            return -1;
+        }
+        for (int i = 0; i < CLOCK_PREFIX.length; i++) {
+            if (event[offset + i] != CLOCK_PREFIX[i]) {
+                return -1;
+            }
+        }
+        long clock = 0;
+        int i = offset + CLOCK_PREFIX.length;
+        final int end = offset + length;
+        if (i >= end || event[i] < '0' || event[i] > '9') {
+            return -1;
+        }
+        while (i < end && event[i] >= '0' && event[i] <= '9') {
+            clock = clock * 10 + (event[i] - '0');
+            i++;
+        }
+        return clock;
+    }
+}
@@ -1,42 +1,80 @@
 package org.lbee.instrumentation.trace;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-
 import org.lbee.instrumentation.clock.ClockFactory;
 import org.lbee.instrumentation.clock.ClockException;
 import org.lbee.instrumentation.clock.InstrumentationClock;
-import org.lbee.instrumentation.helper.NDJsonSerializer;
+import org.lbee.instrumentation.clock.VectorClock;
+import org.lbee.instrumentation.clock.VectorDelta;
+import org.lbee.instrumentation.helper.MBeans;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import javax.management.ObjectName;
 
-public class TLATracer {
+public class TLATracer implements Closeable {
     // unique id
     private final String guid;
     // clock providing the next time value
     private final InstrumentationClock clock;
-    // writer used to write the trace
-    private final BufferedWriter writer;
+    // sink the trace is written to
+    private final TraceSink sink;
+    // to which event the changes are attached
+    private final UpdateScope scope;
     // for each logged variable store the modifications made since the last log
-    private final HashMap<String, List<TraceItem>> updates;
+    private final UpdateBuffer updates;
+    // reusable serialization buffers, one per logging thread
+    private final ThreadLocal<EventEncoder> encoders;
+    // interned variable handles (their fields are interned in the handles)
+    private final Map<String, VirtualField> variables;
+    private final FieldCache fieldCache;
+    // encoder used by all the threads when the encoding of an event depends on
+    // the previous ones (binary format)
+    private final EventEncoder sharedEncoder;
+    // fold the changes of each variable into their net effect before writing
+    private volatile boolean coalescing;
+    // variables, fields and events traced
+    private final TraceFilter filter = new TraceFilter();
+    // counters and durations of the tracer
+    private final TracerMeter meter;
+    // snapshots of the variables written periodically
+    private final Checkpointer checkpointer = new Checkpointer();
+    // sidecar index of the trace and its path (null if not indexed)
+    private volatile TraceIndexWriter index;
+    private volatile String indexPath;
+    // name of the MXBean of the tracer (null if not registered)
+    private volatile ObjectName mbeanName;
 
     /**
      * Create a new tracer.
      * 
-     * @param writer The writer used to write the trace.
+     * @param sink   The sink the trace is written to.
      * @param clock  The clock used when logging.
+     * @param scope  To which event the changes are attached.
+     * @param format Format of the trace.
      */
-    private TLATracer(BufferedWriter writer, InstrumentationClock clock) {
+    private TLATracer(TraceSink sink, InstrumentationClock clock, UpdateScope scope, TraceFormat format) {
         this.clock = clock;
-        this.writer = writer;
-        this.guid = UUID.randomUUID().toString();
-        this.updates = new HashMap<>();
+        this.sink = sink;
+        // the events of a vector clock are logged with the id of its process
+        this.guid = clock instanceof VectorClock ? ((VectorClock) clock).getId() : UUID.randomUUID().toString();
+        this.scope = scope;
+        this.updates = scope == UpdateScope.PER_THREAD ? new ThreadLocalUpdateBuffer() : new GlobalUpdateBuffer();
+        this.meter = new TracerMeter(this.updates);
+        this.variables = new ConcurrentHashMap<>();
+        this.fieldCache = new FieldCache(FieldCache.DEFAULT_CAPACITY);
+        if (format == TraceFormat.BINARY) {
+            this.sharedEncoder = new BinaryEventEncoder();
+            this.encoders = null;
+        } else {
+            this.sharedEncoder = null;
+            this.encoders = ThreadLocal.withInitial(NDJsonEventEncoder::new);
+        }
     }
 
     /**
@@ -48,8 +86,72 @@ public class TLATracer {
      * @throws IOException Thrown when unable to create trace file.
      */
     public static TLATracer getTracer(String tracePath, InstrumentationClock clock) throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(tracePath));
-        return new TLATracer(writer, clock);
+        return getTracer(new FileTraceSink(tracePath), clock);
+    }
+
+    /**
+     * Create a new tracer with a specified clock, writing the trace in the given
+     * format. A {@link TraceFormat#BINARY} trace can be converted to NDJSON with
+     * {@link BinaryTraceTranscoder}.
+     * 
+     * @param tracePath The path of the trace file.
+     * @param clock     The clock used when logging.
+     * @param format    The format of the trace file.
+     * @return A new instrumentation.
+     * @throws IOException Thrown when unable to create trace file.
+     */
+    public static TLATracer getTracer(String tracePath, InstrumentationClock clock, TraceFormat format)
+            throws IOException {
+        return getTracer(new FileTraceSink(tracePath), clock, UpdateScope.GLOBAL, format);
+    }
+
+    /**
+     * Create a new tracer writing to the given sink (e.g. an
+     * {@link AsyncTraceSink} to write the trace in a background thread).
+     * 
+     * @param sink  The sink the trace is written to.
+     * @param clock The clock used when logging.
+     * @return A new instrumentation.
+     */
+    public static TLATracer getTracer(TraceSink sink, InstrumentationClock clock) {
+        return getTracer(sink, clock, UpdateScope.GLOBAL);
+    }
+
+    /**
+     * Create a new tracer writing to the given sink with the given scope for the
+     * variable changes. With {@link UpdateScope#PER_THREAD}, each thread commits
+     * only its own changes and threads never contend when notifying changes or
+     * when serializing events.
+     * 
+     * @param sink  The sink the trace is written to.
+     * @param clock The clock used when logging.
+     * @param scope To which event the changes are attached.
+     * @return A new instrumentation.
+     */
+    public static TLATracer getTracer(TraceSink sink, InstrumentationClock clock, UpdateScope scope) {
+        return getTracer(sink, clock, scope, TraceFormat.NDJSON);
+    }
+
+    /**
+     * Create a new tracer writing to the given sink with the given scope for the
+     * variable changes and the given format.
+     * 
+     * @param sink   The sink the trace is written to.
+     * @param clock  The clock used when logging.
+     * @param scope  To which event the changes are attached.
+     * @param format The format of the trace.
+     * @return A new instrumentation.
+     * @throws IllegalArgumentException Thrown when the format is
+     *                                  {@link TraceFormat#BINARY} and the sink
+     *                                  does not store the events contiguously
+     *                                  (see {@link TraceSink#isContiguous()}).
+     */
+    public static TLATracer getTracer(TraceSink sink, InstrumentationClock clock, UpdateScope scope,
+            TraceFormat format) {
+        if (format == TraceFormat.BINARY && !sink.isContiguous()) {
+            throw new IllegalArgumentException("Binary traces need a sink storing every event in a single file");
+        }
+        return new TLATracer(sink, clock, scope, format);
     }
 
     /**
@@ -81,13 +183,28 @@ public class TLATracer {
      *                 and the address has a field city (and possibly other fields).
      * @param args     Arguments used by the operator.
      */
-    public synchronized void notifyChange(String variable, List<Object> path, String operator, List<Object> args) {
-        // check if a modification has been already notified for the variable
-        if (!updates.containsKey(variable)) {
-            updates.put(variable, new ArrayList<>());
+    public void notifyChange(String variable, List<Object> path, String operator, List<Object> args) {
+        if (!filter.isTraced(variable, path)) {
+            return;
         }
-        // add the action to the list of actions
-        updates.get(variable).add(new TraceItem(operator, path, args));
+        // add the action to the list of actions (without locking)
+        updates.add(variable, new TraceItem(operator, path, args));
+    }
+
+    /**
+     * Notify the modification of the value of a variable for a path already
+     * computed by a {@link VirtualField}.
+     */
+    void notifyChange(String variable, FieldPath path, String operator, List<Object> args) {
+        updates.add(variable, new TraceItem(operator, path, args));
+    }
+
+    /**
+     * Notify the modification of the value of a variable with an already built
+     * trace item (e.g. with an unboxed argument).
+     */
+    void notifyChange(String variable, TraceItem item) {
+        updates.add(variable, item);
     }
 
     /**
@@ -102,13 +219,207 @@ public class TLATracer {
 
     /**
      * Get a virtual variable, that is used to notify later changes of the
-     * corresponding concrete variable.
+     * corresponding concrete variable. Virtual variables and their fields are
+     * interned: as long as the field cache is not full, the same handle is
+     * returned for the same variable (and the same path). The cache is filled
+     * once and never evicts: the first handles looked up stay cached for the
+     * life of the tracer, and once it is full every lookup of another path
+     * creates a new handle (see {@link #setFieldCacheCapacity(int)}).
      * 
      * @param variableName Name of the variable
      * @return A virtual variable on which changes can be notified
      */
     public VirtualField getVariableTracer(String variableName) {
-        return new VirtualField(variableName, this);
+        final VirtualField variable = this.variables.get(variableName);
+        if (variable != null) {
+            this.fieldCache.hit();
+            return variable;
+        }
+        this.fieldCache.miss();
+        final VirtualField newVariable = new VirtualField(variableName, this);
+        if (!this.fieldCache.reserve()) {
+            return newVariable;
+        }
+        final VirtualField existing = this.variables.putIfAbsent(variableName, newVariable);
+        if (existing != null) {
+            // another thread interned the variable first
+            this.fieldCache.release();
+            return existing;
+        }
+        return newVariable;
+    }
+
+    /**
+     * Set the maximum number of virtual variables and fields handles kept by the
+     * tracer (handles already cached stay cached). A capacity of 0 disables the
+     * cache. Handles are never evicted, so the capacity (65536 by default)
+     * should cover the paths of the traced state: when the paths are unbounded
+     * (e.g. indexed by ever growing ids), a full cache shows as misses in
+     * {@link #getFieldCacheStats()}, and the callers should keep the handles of
+     * their hot paths themselves.
+     * 
+     * @param capacity Maximum number of cached handles.
+     */
+    public void setFieldCacheCapacity(int capacity) {
+        this.fieldCache.setCapacity(capacity);
+    }
+
+    /**
+     * Get the statistics of the cache of virtual variables and fields handles.
+     * 
+     * @return the hit rate, size and estimated memory footprint of the cache
+     */
+    public FieldCacheStats getFieldCacheStats() {
+        return this.fieldCache.stats();
+    }
+
+    /**
+     * Enable or disable the coalescing of the changes: when enabled, the changes
+     * made on a variable since the last log are folded into their net effect
+     * before being written (e.g. only the last update of a field is written, and
+     * the changes made before a clear are dropped). The value of the variables
+     * after applying the changes of an event is unchanged, but the trace is
+     * smaller when fields are modified several times between two logs.
+     * Disabled by default.
+     * 
+     * @param coalescing Whether the changes are coalesced.
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * Get the filter selecting the variables, fields and events traced. The
+     * filter can be modified at any time.
+     * 
+     * @return the filter of the tracer
+     */
+    public TraceFilter getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Get a snapshot of the metrics of the tracer: number of events and bytes
+     * written, changes not logged yet and time spent in the clock, waiting for
+     * the lock ordering the events, serializing, writing and flushing.
+     * 
+     * @return the metrics of the tracer
+     */
+    public TracerMetrics getMetrics() {
+        return this.meter.snapshot();
+    }
+
+    /**
+     * Set how often the durations of the events are measured: one event every
+     * given period (0 disables the measure; the counters are always
+     * maintained). Measuring an event costs a few calls to
+     * {@link System#nanoTime()}. One event in 16 by default.
+     * 
+     * @param period Sampling period of the durations.
+     */
+    public void setMetricsSampling(int period) {
+        this.meter.setSamplingPeriod(period);
+    }
+
+    /**
+     * Register the metrics of the tracer in the platform MBean server (see
+     * {@link TracerMXBean}), under the name
+     * <code>org.lbee.instrumentation:type=TLATracer,name=&lt;id&gt;</code>
+     * where id is the logger id of the tracer. The MXBean is unregistered when
+     * the tracer is closed.
+     * 
+     * @return the name of the MXBean, null if it could not be registered
+     */
+    public ObjectName registerMBean() {
+        this.mbeanName = MBeans.register("TLATracer", this.guid, this.meter);
+        return this.mbeanName;
+    }
+
+    /**
+     * Register the supplier of the full value of a variable, written in the
+     * checkpoints (see {@link #setCheckpointInterval(long, long)}). The value
+     * is serialized like the arguments of the changes. The supplier is called
+     * by the thread logging the event after which the checkpoint is written,
+     * and must read the state of the variable atomically with respect to its
+     * changes and their notification (e.g. under the lock protecting the
+     * state): the checkpoint is then consistent with the events before and
+     * after it.
+     * 
+     * @param variable Name of the variable.
+     * @param snapshot Supplier of the value of the variable (null to
+     *                 unregister the variable).
+     */
+    public void registerSnapshot(String variable, Supplier<?> snapshot) {
+        this.checkpointer.register(variable, snapshot);
+    }
+
+    /**
+     * Set how often a checkpoint is written: an event
+     * <code>__checkpoint</code>, with the clock of the previous event, that
+     * updates each variable with a registered snapshot to its full value.
+     * Consumers of the trace can start from the nearest checkpoint instead of
+     * the first event. A checkpoint is written after the event reaching the
+     * given number of events or duration since the previous checkpoint; it is
+     * delayed to a later event when changes are notified and not logged yet.
+     * No checkpoint is written by default. Checkpoints should be enabled before
+     * the first event is logged.
+     * 
+     * @param events Number of events between two checkpoints (0 to ignore).
+     * @param millis Time between two checkpoints, in milliseconds (0 to
+     *               ignore).
+     */
+    public void setCheckpointInterval(long events, long millis) {
+        this.checkpointer.setInterval(events, millis);
+    }
+
+    /**
+     * Request a checkpoint after the next event (see
+     * {@link #setCheckpointInterval(long, long)}).
+     */
+    public void requestCheckpoint() {
+        this.checkpointer.request();
+    }
+
+    /**
+     * @return the number of checkpoints written
+     */
+    public long getCheckpoints() {
+        return this.checkpointer.getWritten();
+    }
+
+    /**
+     * Write a sidecar index of the trace when the tracer is closed (see
+     * {@link TraceIndex}): offsets of the events by clock, by ordinal of the
+     * logger and by event name. The offsets are the positions of the events in
+     * the bytes written to the sink, which are the positions in the file only
+     * for a sink storing every event contiguously (see
+     * {@link TraceSink#isContiguous()}): a {@link FileTraceSink}, or an
+     * {@link AsyncTraceSink} with the {@link AsyncTraceSink.OverflowPolicy#BLOCK}
+     * policy. Only NDJSON traces are indexed, and the index should be enabled
+     * before the first event is logged. The events are written to the sink one
+     * at a time while the index is enabled. The traces of other sinks can be
+     * indexed once complete with {@link TraceIndexBuilder}.
+     * 
+     * @param indexPath The index file (usually the path of the trace followed
+     *                  by <code>.idx</code>).
+     * @throws IllegalStateException Thrown when the trace is not NDJSON or the
+     *                               sink does not store the events
+     *                               contiguously.
+     */
+    public void enableIndex(String indexPath) {
+        if (this.sharedEncoder != null) {
+            throw new IllegalStateException("Only NDJSON traces can be indexed");
+        }
+        if (!this.sink.isContiguous()) {
+            throw new IllegalStateException("The offsets of the events are only known for a sink storing every"
+                    + " event in a single file");
+        }
+        this.indexPath = indexPath;
+        this.index = new TraceIndexWriter(TraceIndexWriter.DEFAULT_BLOCK_SIZE);
+    }
+
+    FieldCache fieldCache() {
+        return this.fieldCache;
     }
 
     /**
@@ -121,48 +432,102 @@ public class TLATracer {
      *                   correspond to action arguments in the TLA+ specification).
      * @param desc       Description of the commit (custom message).
      * @param clockValue Clock value at the time the commit is requested.
+     * @param vector     Entries of the vector clock changed by the event (null
+     *                   if the clock is not a vector clock).
+     * @param timed      Current time if the durations of the event are
+     *                   measured, 0 otherwise.
      * @throws IOException Thrown when unable to write event in trace file.
      */
-    private synchronized void logChanges(String eventName, Object[] args, String desc, long clockValue)
-            throws IOException {
-        final JsonObject jsonEvent = new JsonObject();
-        // Set clock
-        jsonEvent.addProperty("clock", clockValue);
+    private void logChanges(String eventName, Object[] args, String desc, long clockValue, VectorDelta vector,
+            long timed) throws IOException {
+        if (scope == UpdateScope.GLOBAL) {
+            // keep the order of the events in the trace consistent with the
+            // order in which the changes are taken from the shared buffer
+            synchronized (this) {
+                commit(eventName, args, desc, clockValue, vector, this.meter.stop(this.meter.lockWait, timed));
+            }
+        } else {
+            commit(eventName, args, desc, clockValue, vector, timed);
+        }
+    }
+
+    /**
+     * Take the changes made since the last log and write them as an event.
+     */
+    private void commit(String eventName, Object[] args, String desc, long clockValue, VectorDelta vector,
+            long timed) throws IOException {
+        final EventEncoder encoder = this.sharedEncoder != null ? this.sharedEncoder : this.encoders.get();
+        final boolean counted = this.checkpointer.enter();
         try {
-            // add actions for each of the updated variables
-            for (String variableName : this.updates.keySet()) {
-                // all actions made on the updated variable
-                final List<TraceItem> actions = new ArrayList<>(this.updates.get(variableName));
-                final JsonArray jsonActions = new JsonArray();
-                for (TraceItem action : actions) {
-                    jsonActions.add(action.jsonize());
+            final Map<String, List<TraceItem>> changes = this.updates.drain();
+            if (this.coalescing) {
+                for (Map.Entry<String, List<TraceItem>> entry : changes.entrySet()) {
+                    entry.setValue(TraceCoalescer.coalesce(entry.getValue()));
                 }
-                jsonEvent.add(variableName, jsonActions);
             }
-
-            // set eventName and arguments if provided
-            if (eventName != null && !eventName.equals("")) {
-                jsonEvent.addProperty("event", eventName);
+            if (this.sharedEncoder != null) {
+                // the encoding depends on the previous events, encode and write
+                // the events in the same order
+                synchronized (this.sharedEncoder) {
+                    write(encoder, changes, eventName, args, desc, clockValue, vector,
+                            this.meter.stop(this.meter.lockWait, timed));
+                }
+            } else {
+                // serialize the event in the buffer of the calling thread
+                write(encoder, changes, eventName, args, desc, clockValue, vector, timed);
             }
-            if (args != null && args.length > 0) {
-                jsonEvent.add("event_args", NDJsonSerializer.jsonArrayOf(args));
+            this.checkpointer.written(counted, clockValue);
+        } finally {
+            this.checkpointer.exit(counted);
+        }
+        if (this.checkpointer.due(counted)) {
+            checkpoint(encoder);
+        }
+    }
+
+    /**
+     * Write a checkpoint, unless changes are pending. Other threads may have
+     * written events since the event just written: the checkpoint has the
+     * greatest clock of the events written before it.
+     */
+    private void checkpoint(EventEncoder encoder) throws IOException {
+        this.checkpointer.lock();
+        try {
+            final Map<String, List<TraceItem>> state = this.checkpointer.snapshot(this.updates, this.filter);
+            if (state == null) {
+                return;
             }
-            // set desc if provided
-            if (desc != null && !desc.equals("")) {
-                jsonEvent.addProperty("desc", desc);
+            final long clockValue = this.checkpointer.clock();
+            if (this.sharedEncoder != null) {
+                synchronized (this.sharedEncoder) {
+                    write(encoder, state, Checkpointer.EVENT, null, null, clockValue, null, 0);
+                }
+            } else {
+                write(encoder, state, Checkpointer.EVENT, null, null, clockValue, null, 0);
             }
-        } catch (IllegalAccessException e) {
-            // set event to exception, fill description with exception message
-            eventName = "__exception";
-            desc = e.toString();
+        } finally {
+            this.checkpointer.unlock();
         }
-        // set the id of the logger
-        jsonEvent.addProperty("logger", this.guid);
+    }
+
+    private void write(EventEncoder encoder, Map<String, List<TraceItem>> changes, String eventName, Object[] args,
+            String desc, long clockValue, VectorDelta vector, long timed) throws IOException {
+        encoder.encode(clockValue, changes, eventName, args, desc, this.guid, vector);
+        final long encoded = this.meter.stop(this.meter.serialize, timed);
         // record to file
-        writer.write(jsonEvent + "\n");
-        writer.flush();
-        // clear for next log
-        this.updates.clear();
+        final TraceIndexWriter index = this.index;
+        if (index == null) {
+            sink.write(encoder.array(), 0, encoder.size());
+        } else {
+            // the offset of the event is the number of bytes written before
+            synchronized (index) {
+                sink.write(encoder.array(), 0, encoder.size());
+                index.append(clockValue, this.guid, eventName == null || eventName.isEmpty() ? null : eventName,
+                        encoder.size());
+            }
+        }
+        this.meter.stop(this.meter.write, encoded);
+        this.meter.logged(encoder.size());
     }
 
     /**
@@ -175,14 +540,23 @@ public class TLATracer {
      *                   correspond to action arguments in the TLA+ specification).
      * @param desc       Description of the commit (custom message).
      * @param clockValue Clock value at the time the commit is requested.
-     * @return the clock value used to log the event.
+     * @return the clock value used to log the event (the given clock value if
+     *         the event is not traced, see {@link TraceFilter}).
      * @throws IOException Thrown when unable to write event in trace file.
      */
     public long log(String eventName, Object[] args, long clockValue, String desc) throws IOException {
+        if (!this.filter.isEventTraced(eventName)) {
+            // the changes are written with the next traced event
+            this.meter.filtered();
+            return clockValue;
+        }
         // Update global clock et get the next clock value
+        final long start = this.meter.start();
         long newClockValue = this.clock.getNextTime(clockValue);
+        final VectorDelta vector = this.clock instanceof VectorClock ? ((VectorClock) this.clock).takeDelta() : null;
+        final long timed = this.meter.stop(this.meter.clock, start);
         // Commit all previously changed variables
-        this.logChanges(eventName, args, desc, newClockValue);
+        this.logChanges(eventName, args, desc, newClockValue, vector, timed);
         return newClockValue;
     }
 
@@ -254,4 +628,32 @@ public class TLATracer {
     public long log() throws IOException {
         return this.log("");
     }
+
+    /**
+     * Flush all the events logged so far to the trace file.
+     * 
+     * @throws IOException Thrown when unable to flush the trace file.
+     */
+    public void flush() throws IOException {
+        final long start = this.meter.startAlways();
+        this.sink.flush();
+        this.meter.stop(this.meter.flush, start);
+    }
+
+    /**
+     * Flush all the events logged so far and close the trace file.
+     * 
+     * @throws IOException Thrown when unable to close the trace file.
+     */
+    @Override
+    public void close() throws IOException {
+        MBeans.unregister(this.mbeanName);
+        this.sink.close();
+        final TraceIndexWriter index = this.index;
+        if (index != null) {
+            synchronized (index) {
+                index.write(this.indexPath);
+            }
+        }
+    }
 }
@@ -0,0 +1,64 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A buffer with one set of changes per thread ({@link UpdateScope#PER_THREAD}).
+ * Notifying and draining never contend with other threads.
+ */
+class ThreadLocalUpdateBuffer implements UpdateBuffer {
+    /**
+     * The changes of a thread.
+     */
+    private static final class Changes {
+        private Map<String, List<TraceItem>> updates = new LinkedHashMap<>();
+    }
+
+    private final ThreadLocal<Changes> changes = ThreadLocal.withInitial(Changes::new);
+    // number of pending changes of each variable, for all the threads (the
+    // changes of a thread are only read by this thread)
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    @Override
+    public void add(String variable, TraceItem item) {
+        changes.get().updates.computeIfAbsent(variable, k -> new ArrayList<>()).add(item);
+        LongAdder count = counts.get(variable);
+        if (count == null) {
+            count = counts.computeIfAbsent(variable, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    @Override
+    public Map<String, List<TraceItem>> drain() {
+        final Changes current = changes.get();
+        if (current.updates.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, List<TraceItem>> drained = current.updates;
+        current.updates = new LinkedHashMap<>();
+        for (Map.Entry<String, List<TraceItem>> entry : drained.entrySet()) {
+            counts.get(entry.getKey()).add(-entry.getValue().size());
+        }
+        return drained;
+    }
+
+    @Override
+    public Map<String, Integer> pending() {
+        final Map<String, Integer> pending = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            final long count = entry.getValue().sum();
+            if (count > 0) {
+                pending.put(entry.getKey(), (int) count);
+            }
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,243 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Folds the actions made on a variable between two logs into their net effect,
+ * following the semantics of the operators of <code>TVOperators.tla</code>:
+ * <ul>
+ * <li><code>Update</code>, <code>Init</code>, <code>Clear</code> and
+ * <code>ClearBag</code> replace the value of the field they apply to, and
+ * <code>SetKey</code> and <code>ResetKey</code> the value of their key, so any
+ * earlier action on the same field (or on a field it contains) is
+ * dropped;</li>
+ * <li>only the last <code>AddElement</code> or <code>RemoveElement</code> of a
+ * value on a set is kept (actions on other values of the same set commute with
+ * it);</li>
+ * <li>consecutive <code>Add</code> and <code>Sub</code> of integers on the
+ * same field are summed, and consecutive <code>UpdateRec</code> on the same
+ * field are merged (the later fields win).</li>
+ * </ul>
+ * Each action only reads and writes the field it applies to, so the value of
+ * the variable after applying the folded actions is the same as after applying
+ * all of them, provided that all the actions are well-defined (an action that
+ * would fail in TLC, e.g. on a missing field, may be dropped). Values are
+ * compared with {@link Object#equals(Object)}: values that are equal in JSON
+ * but not in Java (e.g. an Integer and a Long) are simply not folded.
+ */
+final class TraceCoalescer {
+    // maximum number of later actions examined for each action
+    private static final int MAX_LOOKAHEAD = 64;
+
+    private TraceCoalescer() {
+    }
+
+    /**
+     * Returns the net effect of a sequence of actions on a variable.
+     *
+     * @param items the actions, in the order they were notified
+     * @return the folded actions (the given list if nothing can be folded)
+     */
+    static List<TraceItem> coalesce(List<TraceItem> items) {
+        if (items.size() < 2) {
+            return items;
+        }
+        // actions kept, from the last one to the first one
+        final List<TraceItem> kept = new ArrayList<>(items.size());
+        for (int i = items.size() - 1; i >= 0; i--) {
+            final TraceItem item = items.get(i);
+            if (!fold(item, kept)) {
+                kept.add(item);
+            }
+        }
+        if (kept.size() == items.size()) {
+            return items;
+        }
+        Collections.reverse(kept);
+        return kept;
+    }
+
+    /**
+     * Tries to fold an action into the later actions kept.
+     *
+     * @return true if the action can be dropped (the later actions may have been
+     *         replaced to include its effect)
+     */
+    private static boolean fold(TraceItem item, List<TraceItem> kept) {
+        final List<Object> written = writtenPath(item);
+        final int last = Math.max(0, kept.size() - MAX_LOOKAHEAD);
+        // a later action replacing the value written by this action (whatever
+        // the actions in between, which cannot move this value elsewhere)
+        if (written != null) {
+            for (int k = kept.size() - 1; k >= last; k--) {
+                final TraceItem later = kept.get(k);
+                if (overwrites(later)) {
+                    final List<Object> laterWritten = writtenPath(later);
+                    if (laterWritten != null && isPrefix(laterWritten, written)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        // the nearest later action is the last one of the kept list
+        for (int k = kept.size() - 1; k >= last; k--) {
+            final TraceItem later = kept.get(k);
+            if (!overlaps(item.path(), later.path())) {
+                continue;
+            }
+            // the first later action on the same field (or on a field containing
+            // it or contained in it)
+            final boolean samePath = item.path().equals(later.path());
+            switch (item.action()) {
+                case "AddElement":
+                case "RemoveElement":
+                    if (samePath && isElementAction(later)) {
+                        if (Objects.equals(item.args().get(0), later.args().get(0))) {
+                            return true;
+                        }
+                        // actions on other values commute
+                        continue;
+                    }
+                    break;
+                case "Add":
+                case "Sub":
+                    if (samePath && (later.action().equals("Add") || later.action().equals("Sub"))) {
+                        final TraceItem sum = sum(item, later);
+                        if (sum != null) {
+                            kept.set(k, sum);
+                            return true;
+                        }
+                    }
+                    break;
+                case "UpdateRec":
+                    if (samePath && later.action().equals("UpdateRec")) {
+                        final TraceItem merged = merge(item, later);
+                        if (merged != null) {
+                            kept.set(k, merged);
+                            return true;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            // the later action depends on the effect of this action
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the action replaces the whole value at its written path.
+     */
+    private static boolean overwrites(TraceItem item) {
+        switch (item.action()) {
+            case "Update":
+            case "Init":
+            case "Clear":
+            case "ClearBag":
+            case "SetKey":
+            case "ResetKey":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isElementAction(TraceItem item) {
+        return item.action().equals("AddElement") || item.action().equals("RemoveElement");
+    }
+
+    /**
+     * Returns the path of the value written by the action: the path of the key
+     * for SetKey and ResetKey, the path of the action otherwise (null if the key
+     * is not a valid path segment).
+     */
+    private static List<Object> writtenPath(TraceItem item) {
+        if (item.action().equals("SetKey") || item.action().equals("ResetKey")) {
+            if (item.args().isEmpty()) {
+                return null;
+            }
+            final Object key = item.args().get(0);
+            if (!(key instanceof String || key instanceof Integer || key instanceof Boolean)) {
+                return null;
+            }
+            final List<Object> path = new ArrayList<>(item.path().size() + 1);
+            path.addAll(item.path());
+            path.add(key);
+            return path;
+        }
+        return item.path();
+    }
+
+    private static boolean isPrefix(List<Object> prefix, List<Object> path) {
+        return prefix.size() <= path.size() && prefix.equals(path.subList(0, prefix.size()));
+    }
+
+    private static boolean overlaps(List<Object> path1, List<Object> path2) {
+        return isPrefix(path1, path2) || isPrefix(path2, path1);
+    }
+
+    /**
+     * Sums two Add/Sub actions (null if the arguments are not integers or if the
+     * sum overflows).
+     */
+    private static TraceItem sum(TraceItem first, TraceItem second) {
+        final Long a = signedInteger(first);
+        final Long b = signedInteger(second);
+        if (a == null || b == null) {
+            return null;
+        }
+        final long total;
+        try {
+            total = Math.addExact(a, b);
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        if (total == Long.MIN_VALUE) {
+            return null;
+        }
+        final long magnitude = Math.abs(total);
+        final Object arg = magnitude <= Integer.MAX_VALUE ? (Object) (int) magnitude : (Object) magnitude;
+        return second.with(total < 0 ? "Sub" : "Add", List.of(arg));
+    }
+
+    private static Long signedInteger(TraceItem item) {
+        if (item.args().size() != 1) {
+            return null;
+        }
+        final Object arg = item.args().get(0);
+        if (!(arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte)) {
+            return null;
+        }
+        final long value = ((Number) arg).longValue();
+        if (value == Long.MIN_VALUE) {
+            return null;
+        }
+        return item.action().equals("Sub") ? -value : value;
+    }
+
+    /**
+     * Merges two UpdateRec actions whose arguments are maps (null otherwise).
+     */
+    private static TraceItem merge(TraceItem first, TraceItem second) {
+        if (first.args().size() != 1 || second.args().size() != 1 || !(first.args().get(0) instanceof Map<?, ?>)
+                || !(second.args().get(0) instanceof Map<?, ?>)) {
+            return null;
+        }
+        // keys are compared as they are serialized
+        final Map<String, Object> merged = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) first.args().get(0)).entrySet()) {
+            merged.put(entry.getKey().toString(), entry.getValue());
+        }
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) second.args().get(0)).entrySet()) {
+            merged.put(entry.getKey().toString(), entry.getValue());
+        }
+        return second.with("UpdateRec", List.of(merged));
+    }
+}
@@ -0,0 +1,156 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects the variables, fields and events traced by a tracer. The filter can
+ * be changed at any time, from any thread.
+ *
+ * A change is traced depending on the most specific rule for its variable and
+ * path: a rule for a field applies to the field and to all its sub-fields, a
+ * rule for a variable (an empty path) to all its fields, and changes of
+ * variables without rules are traced depending on
+ * {@link #setTracedByDefault(boolean)}. A {@link VirtualField} caches its
+ * decision until the filter is modified, so that a change of a field that is
+ * not traced costs a single volatile read (nothing is allocated).
+ *
+ * Logging an event that is not traced does nothing: the changes notified
+ * since the last traced event are kept and written with the next one.
+ */
+public final class TraceFilter {
+    // for each variable, whether each path prefix is traced
+    private final Map<String, Map<List<Object>, Boolean>> rules = new ConcurrentHashMap<>();
+    private final Set<String> disabledEvents = ConcurrentHashMap.newKeySet();
+    private volatile boolean tracedByDefault = true;
+    // incremented each time the filter is modified
+    private volatile int version;
+
+    TraceFilter() {
+    }
+
+    /**
+     * Set whether the changes of the variables without rules are traced.
+     *
+     * @param traced Whether the variables are traced by default.
+     */
+    public synchronized void setTracedByDefault(boolean traced) {
+        this.tracedByDefault = traced;
+        this.version++;
+    }
+
+    /**
+     * Trace the changes of a variable (or of one of its fields and sub-fields).
+     *
+     * @param variable Name of the variable.
+     * @param path     Path of the field (empty for the whole variable).
+     */
+    public void enable(String variable, Object... path) {
+        setRule(variable, List.of(path), true);
+    }
+
+    /**
+     * Do not trace the changes of a variable (or of one of its fields and
+     * sub-fields).
+     *
+     * @param variable Name of the variable.
+     * @param path     Path of the field (empty for the whole variable).
+     */
+    public void disable(String variable, Object... path) {
+        setRule(variable, List.of(path), false);
+    }
+
+    /**
+     * Remove the rule set for a variable or one of its fields.
+     *
+     * @param variable Name of the variable.
+     * @param path     Path of the field (empty for the whole variable).
+     */
+    public synchronized void reset(String variable, Object... path) {
+        final Map<List<Object>, Boolean> prefixes = rules.get(variable);
+        if (prefixes != null && prefixes.remove(List.of(path)) != null) {
+            if (prefixes.isEmpty()) {
+                rules.remove(variable);
+            }
+            this.version++;
+        }
+    }
+
+    /**
+     * Trace an event that was not traced.
+     *
+     * @param eventName Name of the event.
+     */
+    public synchronized void enableEvent(String eventName) {
+        if (disabledEvents.remove(eventName)) {
+            this.version++;
+        }
+    }
+
+    /**
+     * Do not trace an event: logging the event does nothing (the changes are
+     * written with the next traced event).
+     *
+     * @param eventName Name of the event.
+     */
+    public synchronized void disableEvent(String eventName) {
+        if (disabledEvents.add(eventName)) {
+            this.version++;
+        }
+    }
+
+    /**
+     * Remove all the rules: all the variables and events are traced.
+     */
+    public synchronized void clear() {
+        rules.clear();
+        disabledEvents.clear();
+        this.tracedByDefault = true;
+        this.version++;
+    }
+
+    private synchronized void setRule(String variable, List<Object> prefix, boolean traced) {
+        rules.computeIfAbsent(variable, v -> new ConcurrentHashMap<>()).put(prefix, traced);
+        this.version++;
+    }
+
+    /**
+     * Whether the changes of a field are traced.
+     *
+     * @param variable Name of the variable.
+     * @param path     Path of the field.
+     * @return true if the changes of the field are traced
+     */
+    public boolean isTraced(String variable, List<Object> path) {
+        final Map<List<Object>, Boolean> prefixes = rules.get(variable);
+        if (prefixes != null) {
+            // the longest prefix of the path with a rule
+            for (int length = path.size(); length >= 0; length--) {
+                final Boolean traced = prefixes.get(path.subList(0, length));
+                if (traced != null) {
+                    return traced;
+                }
+            }
+        }
+        return tracedByDefault;
+    }
+
+    /**
+     * Whether an event is traced.
+     *
+     * @param eventName Name of the event.
+     * @return true if logging the event writes it to the trace
+     */
+    public boolean isEventTraced(String eventName) {
+        return disabledEvents.isEmpty() || !disabledEvents.contains(eventName);
+    }
+
+    /**
+     * @return a number that changes each time the filter is modified
+     */
+    int version() {
+        return version;
+    }
+}
@@ -0,0 +1,16 @@
+package org.lbee.instrumentation.trace;
+
+/**
+ * Format of the trace files written by a {@link TLATracer}.
+ */
+public enum TraceFormat {
+    /**
+     * One JSON object per line, the format read by the trace specifications.
+     */
+    NDJSON,
+    /**
+     * A compact binary format (see {@link BinaryTraceFormat}) that can be
+     * converted to NDJSON with {@link BinaryTraceTranscoder}.
+     */
+    BINARY
+}
@@ -0,0 +1,475 @@
+package org.lbee.instrumentation.trace;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Random access to the events of an NDJSON trace with its sidecar index (see
+ * {@link TraceIndexFormat}): the event with a given clock, the nth event of a
+ * logger and the events with a given name are found by reading a block of
+ * events at most, instead of scanning the trace. The index is loaded in memory
+ * and the events are read with a {@link FileChannel}; a reader can be used by
+ * several threads.
+ *
+ * The blocks whose clocks contain a given clock are scanned from the first
+ * block reaching the clock until no later block starts before the clock: a
+ * few blocks for traces in clock order or nearly (the events of a trace
+ * written by a tracer with several threads, or merged with a window).
+ *
+ * Usage: <code>TraceIndex trace.ndjson [--clock clock] [--logger id --nth n]
+ * [--event name]</code> prints the events found (the index is
+ * <code>trace.ndjson.idx</code>, see {@link TraceIndexBuilder}).
+ */
+public final class TraceIndex implements Closeable {
+    // size of the reads of the blocks of events, and of a single event (the
+    // buffer grows for longer events)
+    private static final int READ_SIZE = 1 << 16;
+    private static final int EVENT_READ_SIZE = 1 << 12;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final long events;
+    private final long[] blockOffsets;
+    private final long[] blockMin;
+    private final long[] blockMax;
+    // maximum clock of the blocks up to each block, and minimum clock of the
+    // blocks from each block
+    private final long[] prefixMax;
+    private final long[] suffixMin;
+    // events and sampled offsets of each logger
+    private final Map<String, Long> loggerCounts = new LinkedHashMap<>();
+    private final Map<String, long[]> loggerOffsets = new LinkedHashMap<>();
+    // events and offsets (varint deltas) of each event name
+    private final Map<String, Long> nameCounts = new LinkedHashMap<>();
+    private final Map<String, byte[]> nameOffsets = new LinkedHashMap<>();
+
+    private TraceIndex(FileChannel channel, ByteBuffer index) throws IOException {
+        this.channel = channel;
+        final byte[] magic = new byte[TraceIndexFormat.MAGIC.length];
+        index.get(magic);
+        if (!Arrays.equals(magic, TraceIndexFormat.MAGIC) || index.get() != TraceIndexFormat.VERSION) {
+            throw new IOException("Not a trace index (or unsupported version)");
+        }
+        final long length = varint(index);
+        if (channel.size() < length) {
+            throw new IOException("The index is not the index of the trace (trace shorter than indexed)");
+        }
+        this.blockSize = (int) varint(index);
+        this.events = varint(index);
+        final int blocks = (int) varint(index);
+        this.blockOffsets = new long[blocks];
+        this.blockMin = new long[blocks];
+        this.blockMax = new long[blocks];
+        this.prefixMax = new long[blocks];
+        long offset = 0;
+        long max = Long.MIN_VALUE;
+        for (int b = 0; b < blocks; b++) {
+            offset += varint(index);
+            blockOffsets[b] = offset;
+            blockMin[b] = zigzag(index);
+            blockMax[b] = zigzag(index);
+            max = Math.max(max, blockMax[b]);
+            prefixMax[b] = max;
+        }
+        this.suffixMin = new long[blocks];
+        long min = Long.MAX_VALUE;
+        for (int b = blocks - 1; b >= 0; b--) {
+            min = Math.min(min, blockMin[b]);
+            suffixMin[b] = min;
+        }
+        final int loggers = (int) varint(index);
+        for (int l = 0; l < loggers; l++) {
+            final String logger = string(index);
+            loggerCounts.put(logger, varint(index));
+            loggerOffsets.put(logger, decode(deltas(index)));
+        }
+        final int names = (int) varint(index);
+        for (int n = 0; n < names; n++) {
+            final String name = string(index);
+            nameCounts.put(name, varint(index));
+            nameOffsets.put(name, deltas(index));
+        }
+    }
+
+    /**
+     * Open a trace with its index (the trace path followed by
+     * <code>.idx</code>).
+     *
+     * @param tracePath The trace.
+     * @return a reader of the trace
+     * @throws IOException Thrown when unable to read the trace or its index.
+     */
+    public static TraceIndex open(String tracePath) throws IOException {
+        return open(tracePath, tracePath + TraceIndexFormat.EXTENSION);
+    }
+
+    /**
+     * Open a trace with its index.
+     *
+     * @param tracePath The trace.
+     * @param indexPath The index.
+     * @return a reader of the trace
+     * @throws IOException Thrown when unable to read the trace or its index.
+     */
+    public static TraceIndex open(String tracePath, String indexPath) throws IOException {
+        final ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(Paths.get(indexPath)));
+        final FileChannel channel = FileChannel.open(Paths.get(tracePath), StandardOpenOption.READ);
+        try {
+            return new TraceIndex(channel, index);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Invalid index " + indexPath, e);
+        }
+    }
+
+    /**
+     * @return the number of events of the trace
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the loggers of the trace (<code>""</code> for the events without
+     *         logger)
+     */
+    public Set<String> getLoggers() {
+        return Collections.unmodifiableSet(loggerCounts.keySet());
+    }
+
+    /**
+     * @return the event names of the trace
+     */
+    public Set<String> getEventNames() {
+        return Collections.unmodifiableSet(nameCounts.keySet());
+    }
+
+    /**
+     * @param logger A logger.
+     * @return the number of events of the logger
+     */
+    public long getEvents(String logger) {
+        return loggerCounts.getOrDefault(logger, 0L);
+    }
+
+    /**
+     * Find the first event with a given clock.
+     *
+     * @param clock The clock.
+     * @return the offset of the event in the trace, -1 if not found
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public long findClock(long clock) throws IOException {
+        // first block reaching the clock
+        int low = 0;
+        int high = blockOffsets.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (prefixMax[middle] < clock) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int b = low; b < blockOffsets.length && suffixMin[b] <= clock; b++) {
+            if (blockMin[b] > clock || blockMax[b] < clock) {
+                continue;
+            }
+            final Cursor cursor = new Cursor(blockOffsets[b], READ_SIZE);
+            for (int e = 0; e < blockSize; e++) {
+                final String line = cursor.next();
+                if (line == null) {
+                    break;
+                }
+                if (clockOf(line) == clock) {
+                    return cursor.offset;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the nth event of a logger.
+     *
+     * @param logger The logger (<code>""</code> for the events without logger).
+     * @param n      Ordinal of the event among the events of the logger
+     *               (starting at 0).
+     * @return the offset of the event in the trace, -1 if the logger has fewer
+     *         events
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public long findNth(String logger, long n) throws IOException {
+        if (n < 0 || n >= getEvents(logger)) {
+            return -1;
+        }
+        long remaining = n % blockSize;
+        final Cursor cursor = new Cursor(loggerOffsets.get(logger)[(int) (n / blockSize)], READ_SIZE);
+        String line;
+        while ((line = cursor.next()) != null) {
+            if (logger.equals(loggerOf(line))) {
+                if (remaining == 0) {
+                    return cursor.offset;
+                }
+                remaining--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the events with a given name.
+     *
+     * @param event The name.
+     * @return the offsets of the events in the trace, in the order of the trace
+     */
+    public long[] findEvents(String event) {
+        final byte[] deltas = nameOffsets.get(event);
+        return deltas == null ? new long[0] : decode(deltas);
+    }
+
+    /**
+     * Read an event.
+     *
+     * @param offset Offset of the event in the trace.
+     * @return the event (a JSON object), null at the end of the trace
+     * @throws IOException Thrown when unable to read the trace.
+     */
+    public String readEvent(long offset) throws IOException {
+        return offset < 0 ? null : new Cursor(offset, EVENT_READ_SIZE).next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the events of the trace from an offset.
+     */
+    private final class Cursor {
+        private ByteBuffer buffer;
+        // position in the trace of the start of the buffer
+        private long start;
+        // offset of the last event read
+        private long offset;
+
+        private Cursor(long position, int size) {
+            this.start = position;
+            this.buffer = ByteBuffer.allocate(size);
+            buffer.limit(0);
+        }
+
+        /**
+         * @return the next event (blank lines are skipped), null at the end of
+         *         the trace
+         */
+        private String next() throws IOException {
+            while (true) {
+                final int from = buffer.position();
+                int end = from;
+                while (end < buffer.limit() && buffer.get(end) != '\n') {
+                    end++;
+                }
+                if (end == buffer.limit()) {
+                    if (fill()) {
+                        continue;
+                    }
+                    if (buffer.position() == buffer.limit()) {
+                        return null;
+                    }
+                    // last event, without new line
+                }
+                final String line = new String(buffer.array(), from, end - from, StandardCharsets.UTF_8);
+                buffer.position(Math.min(end + 1, buffer.limit()));
+                if (!line.isBlank()) {
+                    offset = start + from;
+                    return line;
+                }
+            }
+        }
+
+        /**
+         * Read more of the trace, keeping the event being read.
+         *
+         * @return false at the end of the trace
+         */
+        private boolean fill() throws IOException {
+            final int kept = buffer.limit() - buffer.position();
+            if (kept == buffer.capacity()) {
+                // event longer than the buffer
+                buffer = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), 2 * buffer.capacity()), buffer.position(),
+                        kept);
+            }
+            start += buffer.position();
+            buffer.compact();
+            final int read = channel.read(buffer, start + buffer.position());
+            buffer.flip();
+            return read > 0;
+        }
+    }
+
+    /**
+     * @return the clock of an event, {@link TraceIndexFormat#NO_CLOCK} if it
+     *         has none
+     */
+    static long clockOf(String line) {
+        // written first by the tracers and the mergers
+        if (line.startsWith("{\"clock\":")) {
+            long clock = 0;
+            int i = "{\"clock\":".length();
+            for (; i < line.length() && Character.isDigit(line.charAt(i)); i++) {
+                clock = 10 * clock + line.charAt(i) - '0';
+            }
+            if (i > "{\"clock\":".length() && i < line.length() && (line.charAt(i) == ',' || line.charAt(i) == '}')) {
+                return clock;
+            }
+        }
+        final Object clock = field(line, "clock");
+        return clock instanceof Long ? (Long) clock : TraceIndexFormat.NO_CLOCK;
+    }
+
+    /**
+     * @return the logger of an event, <code>""</code> if it has none
+     */
+    static String loggerOf(String line) {
+        // written last by the tracers and the mergers
+        final int start = line.lastIndexOf("\"logger\":\"");
+        if (start >= 0 && line.endsWith("\"}")) {
+            final String logger = line.substring(start + "\"logger\":\"".length(), line.length() - 2);
+            if (logger.indexOf('"') < 0 && logger.indexOf('\\') < 0) {
+                return logger;
+            }
+        }
+        final Object logger = field(line, "logger");
+        return logger instanceof String ? (String) logger : "";
+    }
+
+    /**
+     * @return the value of a top-level field of an event (Long or String), null
+     *         if it has none or it is not a number or a string
+     */
+    static Object field(String line, String name) {
+        try (JsonReader reader = new JsonReader(new StringReader(line))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(name)) {
+                    reader.skipValue();
+                } else if (reader.peek() == JsonToken.NUMBER) {
+                    return reader.nextLong();
+                } else if (reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                } else {
+                    return null;
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // not an event
+        }
+        return null;
+    }
+
+    private static long varint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long zigzag(ByteBuffer in) {
+        final long value = varint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String string(ByteBuffer in) {
+        final byte[] bytes = new byte[(int) varint(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deltas(ByteBuffer in) {
+        final byte[] deltas = new byte[(int) varint(in)];
+        in.get(deltas);
+        return deltas;
+    }
+
+    private static long[] decode(byte[] deltas) {
+        final ByteBuffer in = ByteBuffer.wrap(deltas);
+        long[] offsets = new long[16];
+        int size = 0;
+        long offset = 0;
+        while (in.hasRemaining()) {
+            offset += varint(in);
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * size);
+            }
+            offsets[size++] = offset;
+        }
+        return Arrays.copyOf(offsets, size);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String trace = null;
+        Long clock = null;
+        String logger = null;
+        long nth = 0;
+        String event = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--clock":
+                    clock = Long.parseLong(args[++i]);
+                    break;
+                case "--logger":
+                    logger = args[++i];
+                    break;
+                case "--nth":
+                    nth = Long.parseLong(args[++i]);
+                    break;
+                case "--event":
+                    event = args[++i];
+                    break;
+                default:
+                    trace = args[i];
+            }
+        }
+        if (trace == null) {
+            System.out.println("Usage: TraceIndex trace.ndjson [--clock clock] [--logger id --nth n] [--event name]");
+            return;
+        }
+        try (TraceIndex index = open(trace)) {
+            System.out.println(index.getEvents() + " events, loggers " + index.getLoggers() + ", events "
+                    + index.getEventNames());
+            if (clock != null) {
+                System.out.println(index.readEvent(index.findClock(clock)));
+            }
+            if (logger != null) {
+                System.out.println(index.readEvent(index.findNth(logger, nth)));
+            }
+            if (event != null) {
+                for (long offset : index.findEvents(event)) {
+                    System.out.println(index.readEvent(offset));
+                }
+            }
+        }
+    }
+}
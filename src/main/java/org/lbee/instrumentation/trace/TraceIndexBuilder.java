@@ -0,0 +1,137 @@
+package org.lbee.instrumentation.trace;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the sidecar index (see {@link TraceIndexFormat}) of an existing
+ * NDJSON trace, e.g. a merged trace or a trace written without index. The
+ * trace is streamed; it must not be compressed, since the index gives
+ * positions in the file.
+ *
+ * Usage: <code>TraceIndexBuilder trace.ndjson [--block 64]
+ * [--out trace.ndjson.idx]</code>.
+ */
+public class TraceIndexBuilder {
+    private TraceIndexBuilder() {
+    }
+
+    /**
+     * Index a trace.
+     *
+     * @param tracePath The trace.
+     * @param indexPath The index written.
+     * @param blockSize Number of events per block.
+     * @return the number of events indexed
+     * @throws IOException Thrown when unable to read the trace or to write the
+     *                     index.
+     */
+    public static long build(String tracePath, String indexPath, int blockSize) throws IOException {
+        final TraceIndexWriter index = new TraceIndexWriter(blockSize);
+        try (InputStream in = new FileInputStream(tracePath)) {
+            final byte[] chunk = new byte[1 << 16];
+            // event being read (across chunks)
+            byte[] line = new byte[1 << 10];
+            int length = 0;
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                int from = 0;
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] != '\n') {
+                        continue;
+                    }
+                    line = append(line, length, chunk, from, i - from);
+                    length += i - from;
+                    add(index, line, length, length + 1);
+                    length = 0;
+                    from = i + 1;
+                }
+                line = append(line, length, chunk, from, read - from);
+                length += read - from;
+            }
+            if (length > 0) {
+                // last event, without new line
+                add(index, line, length, length);
+            }
+        }
+        index.write(indexPath);
+        return index.getEvents();
+    }
+
+    private static byte[] append(byte[] line, int length, byte[] chunk, int from, int count) {
+        final byte[] grown = length + count > line.length
+                ? Arrays.copyOf(line, Math.max(2 * line.length, length + count))
+                : line;
+        System.arraycopy(chunk, from, grown, length, count);
+        return grown;
+    }
+
+    /**
+     * Add a line of the trace, reading the clock, event name and logger of
+     * the event.
+     */
+    private static void add(TraceIndexWriter index, byte[] line, int length, int size) {
+        final String json = new String(line, 0, length, StandardCharsets.UTF_8);
+        if (json.isBlank()) {
+            index.skip(size);
+            return;
+        }
+        long clock = TraceIndexFormat.NO_CLOCK;
+        String event = null;
+        String logger = null;
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.setLenient(true);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (name.equals("clock") && reader.peek() == JsonToken.NUMBER) {
+                    clock = reader.nextLong();
+                } else if (name.equals("event") && reader.peek() == JsonToken.STRING) {
+                    event = reader.nextString();
+                } else if (name.equals("logger") && reader.peek() == JsonToken.STRING) {
+                    logger = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // malformed event, indexed with the fields read
+        }
+        index.append(clock, logger, event, size);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String trace = null;
+        String out = null;
+        int blockSize = TraceIndexWriter.DEFAULT_BLOCK_SIZE;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--block":
+                    blockSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                default:
+                    trace = args[i];
+            }
+        }
+        if (trace == null) {
+            System.out.println("Usage: TraceIndexBuilder trace.ndjson [--block 64] [--out trace.ndjson.idx]");
+            return;
+        }
+        final String index = out == null ? trace + TraceIndexFormat.EXTENSION : out;
+        final long begin = System.nanoTime();
+        final long events = build(trace, index, blockSize);
+        System.out.printf("%d events indexed in %.1f s, index %s (%d bytes)%n", events,
+                (System.nanoTime() - begin) / 1e9, index, new File(index).length());
+    }
+}
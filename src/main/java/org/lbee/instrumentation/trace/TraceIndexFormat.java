@@ -0,0 +1,40 @@
+package org.lbee.instrumentation.trace;
+
+/**
+ * Constants of the sidecar index of an NDJSON trace (written next to the
+ * trace, as <code>trace.ndjson.idx</code>). The index starts with the magic
+ * bytes <code>TLAI</code> followed by the version byte, and then contains:
+ * <ul>
+ * <li>the length of the trace when it was indexed, the block size and the
+ * number of events;</li>
+ * <li>the blocks: their number and, for each block of <code>block size</code>
+ * consecutive events, the offset of its first event (delta from the previous
+ * block), and the minimum and maximum clocks of its events (zigzag varints;
+ * the events without clock are ignored, a block without clock has a minimum
+ * of {@link Long#MAX_VALUE} and a maximum of {@link Long#MIN_VALUE});</li>
+ * <li>the loggers: their number and, for each logger, its id, its number of
+ * events and the offsets of its events whose ordinal is a multiple of the block
+ * size (deltas);</li>
+ * <li>the event names: their number and, for each name, the name, its number
+ * of events and the offsets of all its events (deltas).</li>
+ * </ul>
+ * The offsets are the positions of the first byte of the events in the trace;
+ * the lists of offsets of the loggers and names are given by their length in
+ * bytes followed by the deltas.
+ * Integers are unsigned LEB128 varints and a string is its UTF-8 length
+ * followed by its bytes. The events without logger are counted for the logger
+ * <code>""</code>.
+ */
+final class TraceIndexFormat {
+    static final byte[] MAGIC = { 'T', 'L', 'A', 'I' };
+    static final int VERSION = 1;
+
+    // extension of the index, added to the path of the trace
+    static final String EXTENSION = ".idx";
+
+    // clock of the events without clock
+    static final long NO_CLOCK = -1;
+
+    private TraceIndexFormat() {
+    }
+}
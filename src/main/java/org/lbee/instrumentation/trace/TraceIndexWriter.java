@@ -0,0 +1,187 @@
+package org.lbee.instrumentation.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds the sidecar index of an NDJSON trace (see {@link TraceIndexFormat})
+ * while the events are written, in their order in the trace, and writes it
+ * when the trace is complete. The index is kept in memory: a few bytes per
+ * event for the lists of the events of each name, and a few bytes per block of
+ * events for the offsets by clock and by logger.
+ *
+ * A {@link TLATracer} writes the index of its trace when
+ * {@link TLATracer#enableIndex(String)} is called; {@link TraceIndexBuilder}
+ * indexes an existing trace, and {@link TraceIndex} reads the index.
+ */
+public final class TraceIndexWriter {
+    // default number of events per block (and per sampled ordinal of a logger)
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * Offsets sampled or listed for a logger or an event name, as varint
+     * deltas.
+     */
+    private static final class Offsets {
+        private byte[] deltas = new byte[16];
+        private int size;
+        private long last;
+        // events of the logger or with the name
+        private long count;
+
+        private void add(long offset) {
+            if (size + 10 > deltas.length) {
+                deltas = Arrays.copyOf(deltas, 2 * deltas.length);
+            }
+            long delta = offset - last;
+            last = offset;
+            while ((delta & ~0x7FL) != 0) {
+                deltas[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            deltas[size++] = (byte) delta;
+        }
+    }
+
+    private final int blockSize;
+    // position of the next event in the trace
+    private long position;
+    private long events;
+    // offset and clocks of the blocks
+    private long[] blockOffsets = new long[64];
+    private long[] blockMin = new long[64];
+    private long[] blockMax = new long[64];
+    private int blocks;
+    private final Map<String, Offsets> loggers = new LinkedHashMap<>();
+    private final Map<String, Offsets> names = new LinkedHashMap<>();
+
+    /**
+     * Create an index of a trace starting at the beginning of the file.
+     *
+     * @param blockSize Number of events per block.
+     */
+    public TraceIndexWriter(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Add the next event of the trace.
+     *
+     * @param clock  Clock of the event ({@link TraceIndexFormat#NO_CLOCK} if
+     *               none).
+     * @param logger Logger of the event (null if none).
+     * @param event  Name of the event (null if none).
+     * @param length Length of the event in the trace, new line included.
+     */
+    public void append(long clock, String logger, String event, int length) {
+        final long offset = position;
+        position += length;
+        if (events % blockSize == 0) {
+            if (blocks == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, 2 * blocks);
+                blockMin = Arrays.copyOf(blockMin, 2 * blocks);
+                blockMax = Arrays.copyOf(blockMax, 2 * blocks);
+            }
+            blockOffsets[blocks] = offset;
+            blockMin[blocks] = Long.MAX_VALUE;
+            blockMax[blocks] = Long.MIN_VALUE;
+            blocks++;
+        }
+        events++;
+        if (clock != TraceIndexFormat.NO_CLOCK) {
+            blockMin[blocks - 1] = Math.min(blockMin[blocks - 1], clock);
+            blockMax[blocks - 1] = Math.max(blockMax[blocks - 1], clock);
+        }
+        final Offsets ofLogger = loggers.computeIfAbsent(logger == null ? "" : logger, l -> new Offsets());
+        if (ofLogger.count++ % blockSize == 0) {
+            ofLogger.add(offset);
+        }
+        if (event != null) {
+            final Offsets ofName = names.computeIfAbsent(event, e -> new Offsets());
+            ofName.count++;
+            ofName.add(offset);
+        }
+    }
+
+    /**
+     * Skip bytes of the trace that are not an event (e.g. an empty line).
+     *
+     * @param length Number of bytes skipped.
+     */
+    public void skip(int length) {
+        position += length;
+    }
+
+    /**
+     * @return the length of the trace indexed so far
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the number of events indexed so far
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * Write the index.
+     *
+     * @param indexPath The index file.
+     * @throws IOException Thrown when unable to write the index.
+     */
+    public void write(String indexPath) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(indexPath))) {
+            out.write(TraceIndexFormat.MAGIC);
+            out.write(TraceIndexFormat.VERSION);
+            varint(out, position);
+            varint(out, blockSize);
+            varint(out, events);
+            varint(out, blocks);
+            long last = 0;
+            for (int b = 0; b < blocks; b++) {
+                varint(out, blockOffsets[b] - last);
+                last = blockOffsets[b];
+                zigzag(out, blockMin[b]);
+                zigzag(out, blockMax[b]);
+            }
+            write(out, loggers);
+            write(out, names);
+        }
+    }
+
+    private static void write(OutputStream out, Map<String, Offsets> offsets) throws IOException {
+        varint(out, offsets.size());
+        for (Map.Entry<String, Offsets> entry : offsets.entrySet()) {
+            final byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            varint(out, name.length);
+            out.write(name);
+            varint(out, entry.getValue().count);
+            varint(out, entry.getValue().size);
+            out.write(entry.getValue().deltas, 0, entry.getValue().size);
+        }
+    }
+
+    private static void varint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void zigzag(OutputStream out, long value) throws IOException {
+        varint(out, (value << 1) ^ (value >> 63));
+    }
+}
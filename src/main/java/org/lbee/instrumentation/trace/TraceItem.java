@@ -1,37 +1,162 @@
 package org.lbee.instrumentation.trace;
 
 import org.lbee.instrumentation.helper.NDJsonSerializer;
+
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Represents a single trace item w.r.t. a variable. It consists of the path to
  * the field of the variable that is being traced, the action that is being
  * applied to the field and the arguments of the action.
+ *
+ * The last argument of an action can be kept unboxed (a long or a boolean,
+ * possibly preceded by a key): the item then holds no list of arguments and
+ * writes the primitive directly, with the same output as the boxed value.
  */
 class TraceItem {
+    // kinds of the unboxed argument
+    static final byte LONG = 1;
+    static final byte BOOLEAN = 2;
+    // no key before the unboxed argument
+    static final Object NO_KEY = new Object();
+
     private final List<Object> path;
+    // JSON array representing the path (null if not computed)
+    private final String pathJson;
     private final String action;
+    // arguments (null if the argument is unboxed)
     private final List<Object> args;
+    // unboxed argument: optional key, kind and value (0 or 1 for a boolean)
+    private final Object key;
+    private final byte kind;
+    private final long value;
 
     public TraceItem(String action, List<Object> path, List<Object> args) {
+        this(action, path, null, args);
+    }
+
+    public TraceItem(String action, FieldPath path, List<Object> args) {
+        this(action, path.segments(), path.json(), args);
+    }
+
+    private TraceItem(String action, List<Object> path, String pathJson, List<Object> args) {
         this.action = action;
         this.path = path;
+        this.pathJson = pathJson;
         this.args = args;
+        this.key = NO_KEY;
+        this.kind = 0;
+        this.value = 0;
+    }
+
+    /**
+     * Creates a trace item whose last argument is unboxed.
+     *
+     * @param action the action
+     * @param path   the path of the field
+     * @param key    the argument before the unboxed one ({@link #NO_KEY} if none)
+     * @param kind   {@link #LONG} or {@link #BOOLEAN}
+     * @param value  the unboxed argument (0 or 1 for a boolean)
+     */
+    TraceItem(String action, FieldPath path, Object key, byte kind, long value) {
+        this.action = action;
+        this.path = path.segments();
+        this.pathJson = path.json();
+        this.args = null;
+        this.key = key;
+        this.kind = kind;
+        this.value = value;
+    }
+
+    /**
+     * Returns a trace item on the same path with another action.
+     */
+    TraceItem with(String action, List<Object> args) {
+        return new TraceItem(action, this.path, this.pathJson, args);
+    }
+
+    String action() {
+        return action;
+    }
+
+    List<Object> path() {
+        return path;
+    }
+
+    /**
+     * Returns the arguments (boxing the unboxed argument, if any).
+     */
+    List<Object> args() {
+        if (args != null) {
+            return args;
+        }
+        final Object boxed = kind == BOOLEAN ? (Object) (value != 0) : (Object) value;
+        return key == NO_KEY ? List.of(boxed) : Arrays.asList(key, boxed);
+    }
+
+    /**
+     * @return whether the last argument is unboxed
+     */
+    boolean isUnboxed() {
+        return args == null;
+    }
+
+    /**
+     * @return the argument before the unboxed one ({@link #NO_KEY} if none)
+     */
+    Object key() {
+        return key;
+    }
+
+    /**
+     * @return the kind of the unboxed argument
+     */
+    byte kind() {
+        return kind;
+    }
+
+    /**
+     * @return the unboxed argument (0 or 1 for a boolean)
+     */
+    long value() {
+        return value;
     }
 
     /**
-     * Converts the trace item to a JSON object.
+     * Writes the trace item as a JSON object.
      * 
-     * @return the JSON object representing the trace item
+     * @param out the writer the JSON object is written to
      * @throws IllegalAccessException if the path or the arguments cannot be accessed
+     * @throws IOException            if the JSON object cannot be written
      */
-    public JsonObject jsonize() throws IllegalAccessException {
-        JsonObject jsonObject = new JsonObject();
-        jsonObject.addProperty("op", this.action);
-        jsonObject.add("path", NDJsonSerializer.jsonArrayOf(path));
-        jsonObject.add("args", NDJsonSerializer.jsonArrayOf(args));
-        return jsonObject;
+    public void write(JsonWriter out) throws IllegalAccessException, IOException {
+        out.beginObject();
+        out.name("op").value(this.action);
+        out.name("path");
+        if (pathJson != null) {
+            out.jsonValue(pathJson);
+        } else {
+            NDJsonSerializer.writeArray(out, path);
+        }
+        out.name("args");
+        if (args != null) {
+            NDJsonSerializer.writeArray(out, args);
+        } else {
+            out.beginArray();
+            if (key != NO_KEY) {
+                NDJsonSerializer.writeValue(out, key);
+            }
+            if (kind == BOOLEAN) {
+                out.value(value != 0);
+            } else {
+                out.value(value);
+            }
+            out.endArray();
+        }
+        out.endObject();
     }
 }
@@ -0,0 +1,39 @@
+package org.lbee.instrumentation.trace;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * Destination of the events produced by a {@link TLATracer}. Each call to
+ * {@link #write(byte[], int, int)} receives exactly one complete serialized
+ * event (including its line terminator). The sink decides when the events are
+ * actually flushed to the underlying storage; {@link #flush()} forces all the
+ * events written so far to be flushed and {@link #close()} flushes and releases
+ * the underlying storage.
+ */
+public interface TraceSink extends Closeable, Flushable {
+    /**
+     * Writes a serialized event. The sink must not keep a reference to the
+     * given array after the call returns since the caller may reuse it.
+     *
+     * @param event  buffer containing the serialized event
+     * @param offset offset of the event in the buffer
+     * @param length length of the event
+     * @throws IOException Thrown when unable to write the event.
+     */
+    void write(byte[] event, int offset, int length) throws IOException;
+
+    /**
+     * Whether every event written is stored, in order and as is, right after
+     * the previous one in a single file. The binary format needs it, since its
+     * header and dictionary definitions are written only once, before the
+     * first event using them.
+     *
+     * @return true if the events are stored contiguously, false if they may be
+     *         dropped, split across files or framed
+     */
+    default boolean isContiguous() {
+        return false;
+    }
+}
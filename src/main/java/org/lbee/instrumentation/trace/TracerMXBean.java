@@ -0,0 +1,46 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of a {@link TLATracer} (see
+ * {@link TLATracer#registerMBean()}). The durations are in nanoseconds and
+ * only cover the sampled events (one every sampling period; the flushes are
+ * not sampled); the percentiles are upper bounds (at most twice the actual
+ * value).
+ */
+public interface TracerMXBean {
+    long getEventsLogged();
+
+    long getEventsFiltered();
+
+    long getBytesWritten();
+
+    Map<String, Integer> getPendingUpdates();
+
+    int getSamplingPeriod();
+
+    void setSamplingPeriod(int period);
+
+    long getClockTotalNanos();
+
+    long getClockP99Nanos();
+
+    long getLockWaitTotalNanos();
+
+    long getLockWaitP99Nanos();
+
+    long getSerializeTotalNanos();
+
+    long getSerializeP99Nanos();
+
+    long getWriteTotalNanos();
+
+    long getWriteP99Nanos();
+
+    long getFlushCount();
+
+    long getFlushTotalNanos();
+
+    long getFlushP99Nanos();
+}
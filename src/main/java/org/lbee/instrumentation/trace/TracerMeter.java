@@ -0,0 +1,172 @@
+package org.lbee.instrumentation.trace;
+
+import org.lbee.instrumentation.helper.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a tracer. The counters are always maintained;
+ * the durations are measured for one event every sampling period (0 disables
+ * the measure), the durations of an event sharing their bounds so that the
+ * measure of an event costs a call to {@link System#nanoTime()} per stage.
+ */
+final class TracerMeter implements TracerMXBean {
+    static final int DEFAULT_SAMPLING_PERIOD = 16;
+
+    private final UpdateBuffer updates;
+    private final LongAdder eventsLogged = new LongAdder();
+    private final LongAdder eventsFiltered = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    final LatencyHistogram clock = new LatencyHistogram();
+    final LatencyHistogram lockWait = new LatencyHistogram();
+    final LatencyHistogram serialize = new LatencyHistogram();
+    final LatencyHistogram write = new LatencyHistogram();
+    final LatencyHistogram flush = new LatencyHistogram();
+    // durations measured for one event every period (0: not measured), and
+    // events logged since the last measure (racy: only used for sampling)
+    private volatile int samplingPeriod = DEFAULT_SAMPLING_PERIOD;
+    private int tick;
+
+    TracerMeter(UpdateBuffer updates) {
+        this.updates = updates;
+    }
+
+    /**
+     * Returns the current time if the durations of the event being logged are
+     * measured, 0 otherwise.
+     */
+    long start() {
+        final int period = samplingPeriod;
+        if (period == 0 || ++tick < period) {
+            return 0;
+        }
+        tick = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the current time if the durations are measured (for operations
+     * that are not sampled), 0 otherwise.
+     */
+    long startAlways() {
+        return samplingPeriod == 0 ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since a time returned by {@link #start()} (if
+     * the durations were measured) and returns the current time (0 if not
+     * measured), so that consecutive durations share their bounds.
+     */
+    long stop(LatencyHistogram histogram, long start) {
+        if (start == 0) {
+            return 0;
+        }
+        final long now = System.nanoTime();
+        histogram.record(now - start);
+        return now;
+    }
+
+    void logged(int bytes) {
+        eventsLogged.increment();
+        bytesWritten.add(bytes);
+    }
+
+    void filtered() {
+        eventsFiltered.increment();
+    }
+
+    TracerMetrics snapshot() {
+        return new TracerMetrics(eventsLogged.sum(), eventsFiltered.sum(), bytesWritten.sum(), updates.pending(),
+                samplingPeriod, clock.snapshot(), lockWait.snapshot(), serialize.snapshot(), write.snapshot(),
+                flush.snapshot());
+    }
+
+    @Override
+    public long getEventsLogged() {
+        return eventsLogged.sum();
+    }
+
+    @Override
+    public long getEventsFiltered() {
+        return eventsFiltered.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public Map<String, Integer> getPendingUpdates() {
+        return updates.pending();
+    }
+
+    @Override
+    public int getSamplingPeriod() {
+        return samplingPeriod;
+    }
+
+    @Override
+    public void setSamplingPeriod(int period) {
+        if (period < 0) {
+            throw new IllegalArgumentException("Negative sampling period " + period);
+        }
+        this.samplingPeriod = period;
+    }
+
+    @Override
+    public long getClockTotalNanos() {
+        return clock.snapshot().totalNanos();
+    }
+
+    @Override
+    public long getClockP99Nanos() {
+        return clock.snapshot().percentileNanos(99);
+    }
+
+    @Override
+    public long getLockWaitTotalNanos() {
+        return lockWait.snapshot().totalNanos();
+    }
+
+    @Override
+    public long getLockWaitP99Nanos() {
+        return lockWait.snapshot().percentileNanos(99);
+    }
+
+    @Override
+    public long getSerializeTotalNanos() {
+        return serialize.snapshot().totalNanos();
+    }
+
+    @Override
+    public long getSerializeP99Nanos() {
+        return serialize.snapshot().percentileNanos(99);
+    }
+
+    @Override
+    public long getWriteTotalNanos() {
+        return write.snapshot().totalNanos();
+    }
+
+    @Override
+    public long getWriteP99Nanos() {
+        return write.snapshot().percentileNanos(99);
+    }
+
+    @Override
+    public long getFlushCount() {
+        return flush.snapshot().count();
+    }
+
+    @Override
+    public long getFlushTotalNanos() {
+        return flush.snapshot().totalNanos();
+    }
+
+    @Override
+    public long getFlushP99Nanos() {
+        return flush.snapshot().percentileNanos(99);
+    }
+}
@@ -0,0 +1,28 @@
+package org.lbee.instrumentation.trace;
+
+import org.lbee.instrumentation.helper.LatencySnapshot;
+
+import java.util.Map;
+
+/**
+ * Snapshot of the metrics of a {@link TLATracer}. The durations of the events
+ * are measured for one event every sampling period (multiply the total times
+ * by the period to estimate the time spent for all the events); the durations
+ * of the flushes are not sampled.
+ *
+ * @param eventsLogged   number of events written
+ * @param eventsFiltered number of events not written because of the filter
+ * @param bytesWritten   number of bytes of the events written
+ * @param pendingUpdates number of changes not logged yet, per variable
+ * @param samplingPeriod one event in this number has its durations measured
+ *                       (0 if the durations are not measured)
+ * @param clock          time spent getting the next time from the clock
+ * @param lockWait       time spent waiting for the lock ordering the events
+ * @param serialize      time spent serializing the events
+ * @param write          time spent writing the events to the sink
+ * @param flush          time spent flushing the sink
+ */
+public record TracerMetrics(long eventsLogged, long eventsFiltered, long bytesWritten,
+        Map<String, Integer> pendingUpdates, int samplingPeriod, LatencySnapshot clock, LatencySnapshot lockWait,
+        LatencySnapshot serialize, LatencySnapshot write, LatencySnapshot flush) {
+}
@@ -0,0 +1,33 @@
+package org.lbee.instrumentation.trace;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the changes notified to a tracer until they are committed by a log.
+ */
+interface UpdateBuffer {
+    /**
+     * Adds a change of a variable to the buffer.
+     * 
+     * @param variable name of the modified variable
+     * @param item     the change
+     */
+    void add(String variable, TraceItem item);
+
+    /**
+     * Removes from the buffer all the changes visible to the calling thread.
+     * 
+     * @return the changes grouped by variable, in the order in which the
+     *         variables were first modified
+     */
+    Map<String, List<TraceItem>> drain();
+
+    /**
+     * Counts the changes in the buffer, for all the threads. The count is
+     * approximate when changes are notified or drained concurrently.
+     * 
+     * @return the number of changes per variable
+     */
+    Map<String, Integer> pending();
+}
@@ -0,0 +1,19 @@
+package org.lbee.instrumentation.trace;
+
+/**
+ * Defines to which event the variable changes notified to a tracer are
+ * attached.
+ */
+public enum UpdateScope {
+    /**
+     * All the changes notified since the last log, whatever the thread that
+     * notified them, are attached to the next logged event.
+     */
+    GLOBAL,
+    /**
+     * The changes notified by a thread since its last log are attached to the
+     * next event logged by the same thread. Changes notified by a thread that
+     * never logs are never written.
+     */
+    PER_THREAD
+}
@@ -1,21 +1,33 @@
 package org.lbee.instrumentation.trace;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Used to trace changes to a variable or to a field of a variable usiing a
- * given tracer. A null parentField indicates that we trace a variable at the
- * top level and in this case the item is necessarily a String representing its
- * name. Otherwise, it's either the field of a variable (if the item is a
- * String), or an index in a sequence (if the item is an Integer), or a boolean
- * index (if the item is a Boolean).
+ * given tracer. An empty path indicates that we trace a variable at the top
+ * level. Otherwise, each segment of the path is either the field of a variable
+ * (if the segment is a String), or an index in a sequence (if the segment is an
+ * Integer), or a boolean index (if the segment is a Boolean).
  */
 public final class VirtualField {
     private final TLATracer tracer;
-    private final PathItem item;
-    private final VirtualField parentField;
+    // name of the top level variable
+    private final String variable;
+    // path from the top level variable to this field
+    private final FieldPath path;
+    // interned fields of this field: small indexes, booleans, and other keys
+    // (names and large indexes); only modified while holding the monitor, with
+    // room reserved in the field cache beforehand
+    private volatile VirtualField[] indexFields;
+    private volatile VirtualField trueField;
+    private volatile VirtualField falseField;
+    private volatile Map<Object, VirtualField> keyFields;
+    // decision of the filter of the tracer for this field: version of the
+    // filter (31 bits) and whether the field is traced (lowest bit)
+    private int filterState = -1;
 
     /**
      * Creates a VirtualField for a variable at the top level.
@@ -23,108 +35,201 @@ public final class VirtualField {
      * @param tracer the tracer to use
      */
     public VirtualField(String name, TLATracer tracer) {
-        this.item = new PathItem(name, null, null);
-        this.parentField = null;
+        this.variable = name;
+        this.path = FieldPath.ROOT;
         this.tracer = tracer;
     }
 
     /**
-     * Creates a VirtualField for a field of a variable. Only one of name, index and
-     * bindex should be non-null.
-     * @param name        the name of the field
-     * @param index       the index of the field
-     * @param bindex      the boolean index of the field
+     * Creates a VirtualField for a field of a variable. The variable name and
+     * the path are computed once, when the field is created.
+     * @param segment     the name, index or boolean index of the field
      * @param parentField the parent field
      */
-    private VirtualField(String name, Integer index, Boolean bindex, VirtualField parentField) {
-        this.item = new PathItem(name, index, bindex);
-        this.parentField = parentField;
+    private VirtualField(Object segment, VirtualField parentField) {
+        this.variable = parentField.variable;
+        this.path = parentField.path.child(segment);
         this.tracer = parentField.tracer;
     }
 
     /**
-     * Returns a VirtualField for a field of a variable.
+     * Returns a VirtualField for a field of a variable. The same handle is
+     * returned for the same name as long as the field cache of the tracer is not
+     * full.
      * @param name
      * @return
      */
     public VirtualField getField(String name) {
-        return new VirtualField(name, null, null, this);
+        return getKeyField(name);
     }
 
     /**
-     * Returns a VirtualField for an index in a sequence.
+     * Returns a VirtualField for an index in a sequence. The same handle is
+     * returned for the same index as long as the field cache of the tracer is
+     * not full (small indexes are looked up without boxing).
      * @param name
      * @return
      */
     public VirtualField getField(int index) {
-        return new VirtualField(null, index, null, this);
+        if (index < 0 || index >= FieldCache.SMALL_INDEXES) {
+            return getKeyField(index);
+        }
+        final VirtualField[] fields = this.indexFields;
+        if (fields != null) {
+            final VirtualField field = fields[index];
+            if (field != null) {
+                tracer.fieldCache().hit();
+                return field;
+            }
+        }
+        // once the cache is full, handles are created without locking
+        if (!tracer.fieldCache().reserve()) {
+            tracer.fieldCache().miss();
+            return new VirtualField(index, this);
+        }
+        synchronized (this) {
+            VirtualField[] current = this.indexFields;
+            if (current != null && current[index] != null) {
+                tracer.fieldCache().release();
+                tracer.fieldCache().hit();
+                return current[index];
+            }
+            final VirtualField field = new VirtualField(index, this);
+            tracer.fieldCache().miss();
+            if (current == null) {
+                current = new VirtualField[FieldCache.SMALL_INDEXES];
+            }
+            current[index] = field;
+            // publish the array (and the new handle)
+            this.indexFields = current;
+            return field;
+        }
     }
 
     /**
-     * Returns a VirtualField for a boolean index.
+     * Returns a VirtualField for a boolean index. The same handle is returned
+     * for the same boolean as long as the field cache of the tracer is not full.
      * @param bindex
      * @return
      */
     public VirtualField getField(boolean bindex) {
-        return new VirtualField(null, null, bindex, this);
+        final VirtualField field = bindex ? this.trueField : this.falseField;
+        if (field != null) {
+            tracer.fieldCache().hit();
+            return field;
+        }
+        if (!tracer.fieldCache().reserve()) {
+            tracer.fieldCache().miss();
+            return new VirtualField(bindex, this);
+        }
+        synchronized (this) {
+            VirtualField current = bindex ? this.trueField : this.falseField;
+            if (current != null) {
+                tracer.fieldCache().release();
+                tracer.fieldCache().hit();
+                return current;
+            }
+            current = new VirtualField(bindex, this);
+            tracer.fieldCache().miss();
+            if (bindex) {
+                this.trueField = current;
+            } else {
+                this.falseField = current;
+            }
+            return current;
+        }
     }
 
     /**
-     * Returns the top variable name for the this field.
-     * @return the top variable name for the this field
+     * Returns the (possibly interned) VirtualField for a field name or an index
+     * that is not small.
      */
-    private String getVar() {
-        if (parentField == null) {
-            return this.item.name();
+    private VirtualField getKeyField(Object key) {
+        final Map<Object, VirtualField> fields = this.keyFields;
+        if (fields != null) {
+            final VirtualField field = fields.get(key);
+            if (field != null) {
+                tracer.fieldCache().hit();
+                return field;
+            }
+        }
+        if (!tracer.fieldCache().reserve()) {
+            tracer.fieldCache().miss();
+            return new VirtualField(key, this);
+        }
+        synchronized (this) {
+            Map<Object, VirtualField> current = this.keyFields;
+            if (current != null && current.containsKey(key)) {
+                tracer.fieldCache().release();
+                tracer.fieldCache().hit();
+                return current.get(key);
+            }
+            final VirtualField field = new VirtualField(key, this);
+            tracer.fieldCache().miss();
+            if (current == null) {
+                current = new ConcurrentHashMap<>();
+                this.keyFields = current;
+            }
+            current.put(key, field);
+            return field;
         }
-        return parentField.getVar();
     }
 
     /**
-     * Returns the full path of this field, including the top variable name.
-     * @return the full path of this field
+     * Returns whether the changes of this field are traced by the filter of the
+     * tracer. The decision is cached until the filter is modified.
+     * @return true if the changes of this field are traced
      */
-    private List<Object> getFullPath() {
-        List<Object> path = new ArrayList<>();
-        if (parentField != null) {
-            path = parentField.getFullPath();
+    public boolean isTraced() {
+        final TraceFilter filter = tracer.getFilter();
+        final int version = filter.version() & Integer.MAX_VALUE;
+        final int state = this.filterState;
+        if (state >>> 1 == version) {
+            return (state & 1) != 0;
         }
-        if (item.name() != null) {
-            path.add(item.name());
-        } else if (item.index() != null) {
-            path.add(item.index());
-        } else if (item.bindex() != null) {
-            path.add(item.bindex());
-        } else { // should never happen
-            path.add(null);
+        final boolean traced = filter.isTraced(this.variable, this.path.segments());
+        // racy but safe: a stale decision is recomputed
+        this.filterState = version << 1 | (traced ? 1 : 0);
+        return traced;
+    }
+
+    /**
+     * Notifies the tracer of a change to this field (if the field is traced).
+     * The caller builds the varargs array before the filter is checked, so a
+     * call on a field that is not traced still allocates it: the typed
+     * operations ({@link #update(long)}, {@link #setKey(Object, Object)}, ...)
+     * allocate nothing themselves in that case.
+     * @param op    the operation
+     * @param args  the arguments of the operation
+     */
+    public void apply(String op, Object... args) {
+        if (isTraced()) {
+            tracer.notifyChange(this.variable, this.path, op, List.of(args));
         }
-        return path;
     }
 
     /**
-     * Returns the path of this field, empty if the field is a top variable.
-     * @return the path of this field
+     * Notifies the tracer of a change (the field is known to be traced).
      */
-    private List<Object> getPath() {
-        List<Object> fullPath = this.getFullPath();
-        List<Object> path = fullPath.subList(1, fullPath.size());
-        return path;
+    private void change(String op, List<Object> args) {
+        tracer.notifyChange(this.variable, this.path, op, args);
     }
 
     /**
-     * Notifies the tracer of a change to this field.
-     * @param op    the operation
-     * @param args  the arguments of the operation
+     * Notifies the tracer of a change whose last argument is unboxed (the field
+     * is known to be traced).
      */
-    public void apply(String op, Object... args) {
-        tracer.notifyChange(this.getVar(), this.getPath(), op, List.of(args));
+    private void change(String op, Object key, byte kind, long value) {
+        tracer.notifyChange(this.variable, new TraceItem(op, this.path, key, kind, value));
     }
 
     /**
      * Notifies the tracer that an initialisation is applied to this field.
      */
     public void init() {
-        apply("Init");
+        if (isTraced()) {
+            change("Init", List.of());
+        }
     }
 
     /**
@@ -132,7 +237,40 @@ public final class VirtualField {
      * @param val new value of the field
      */
     public void update(Object val) {
-        apply("Update", val);
+        if (isTraced()) {
+            change("Update", List.of(val));
+        }
+    }
+
+    /**
+     * Notifies the tracer that an update is applied to this field (without
+     * boxing the value).
+     * @param val new value of the field
+     */
+    public void update(long val) {
+        if (isTraced()) {
+            change("Update", TraceItem.NO_KEY, TraceItem.LONG, val);
+        }
+    }
+
+    /**
+     * Notifies the tracer that an update is applied to this field (without
+     * boxing the value).
+     * @param val new value of the field
+     */
+    public void update(boolean val) {
+        if (isTraced()) {
+            change("Update", TraceItem.NO_KEY, TraceItem.BOOLEAN, val ? 1 : 0);
+        }
+    }
+
+    /**
+     * Notifies the tracer that an update is applied to this field (the
+     * character is traced as a string, not as a number).
+     * @param val new value of the field
+     */
+    public void update(char val) {
+        update((Object) val);
     }
 
     /**
@@ -140,7 +278,29 @@ public final class VirtualField {
      * @param val the object to add
      */
     public void add(Object val) {
-        apply("AddElement", val);
+        if (isTraced()) {
+            change("AddElement", List.of(val));
+        }
+    }
+
+    /**
+     * Notifies the tracer that a number is added to this field (without
+     * boxing it).
+     * @param val the number to add
+     */
+    public void add(long val) {
+        if (isTraced()) {
+            change("AddElement", TraceItem.NO_KEY, TraceItem.LONG, val);
+        }
+    }
+
+    /**
+     * Notifies the tracer that a character is added to this field (traced as a
+     * string).
+     * @param val the character to add
+     */
+    public void add(char val) {
+        add((Object) val);
     }
 
     /**
@@ -148,7 +308,9 @@ public final class VirtualField {
      * @param vals the collection of objects to add
      */
     public void addAll(Collection<?> vals) {
-        apply("AddElements", vals);
+        if (isTraced()) {
+            change("AddElements", List.of(vals));
+        }
     }
 
     /**
@@ -156,14 +318,38 @@ public final class VirtualField {
      * @param val the object to remove
      */
     public void remove(Object val) {
-        apply("RemoveElement", val);
+        if (isTraced()) {
+            change("RemoveElement", List.of(val));
+        }
+    }
+
+    /**
+     * Notifies the tracer that a number is removed from this field (without
+     * boxing it).
+     * @param val the number to remove
+     */
+    public void remove(long val) {
+        if (isTraced()) {
+            change("RemoveElement", TraceItem.NO_KEY, TraceItem.LONG, val);
+        }
+    }
+
+    /**
+     * Notifies the tracer that a character is removed from this field (traced
+     * as a string).
+     * @param val the character to remove
+     */
+    public void remove(char val) {
+        remove((Object) val);
     }
 
     /**
      * Notifies the tracer that the field is cleared.
      */
     public void clear() {
-        apply("Clear");
+        if (isTraced()) {
+            change("Clear", List.of());
+        }
     }
 
     /**
@@ -171,7 +357,9 @@ public final class VirtualField {
      * @param val the object to add
      */
     public void addToBag(Object val) {
-        apply("AddElementToBag", val);
+        if (isTraced()) {
+            change("AddElementToBag", List.of(val));
+        }
     }
 
     /**
@@ -179,7 +367,9 @@ public final class VirtualField {
      * @param val the object to remove
      */
     public void removeFromBag(Object val) {
-        apply("RemoveElementFromBag", val);
+        if (isTraced()) {
+            change("RemoveElementFromBag", List.of(val));
+        }
     }
 
     /**
@@ -187,7 +377,9 @@ public final class VirtualField {
      * @param val the object to add
      */
     public void addValToBag(Object val) {
-        apply("AddToBag", val);
+        if (isTraced()) {
+            change("AddToBag", List.of(val));
+        }
     }
 
     /**
@@ -195,14 +387,18 @@ public final class VirtualField {
      * @param val the object to remove
      */
     public void removeValFromBag(Object val) {
-        apply("RemoveFromBag", val);
+        if (isTraced()) {
+            change("RemoveFromBag", List.of(val));
+        }
     }
 
     /**
      * Notifies the tracer that the bag is cleared.
      */
     public void clearBag() {
-        apply("ClearBag");
+        if (isTraced()) {
+            change("ClearBag", List.of());
+        }
     }
 
     /**
@@ -210,7 +406,29 @@ public final class VirtualField {
      * @param val the object to add
      */
     public void append(Object val) {
-        apply("AppendElement", val);
+        if (isTraced()) {
+            change("AppendElement", List.of(val));
+        }
+    }
+
+    /**
+     * Notifies the tracer that a number is added to a sequence (without boxing
+     * it).
+     * @param val the number to add
+     */
+    public void append(long val) {
+        if (isTraced()) {
+            change("AppendElement", TraceItem.NO_KEY, TraceItem.LONG, val);
+        }
+    }
+
+    /**
+     * Notifies the tracer that a character is added to a sequence (traced as a
+     * string).
+     * @param val the character to add
+     */
+    public void append(char val) {
+        append((Object) val);
     }
 
     /**
@@ -218,7 +436,9 @@ public final class VirtualField {
      * @param key the key to reset
      */
     public void resetKey(Object key) {
-        apply("ResetKey", key);
+        if (isTraced()) {
+            change("ResetKey", List.of(key));
+        }
     }
 
     /**
@@ -227,7 +447,34 @@ public final class VirtualField {
      * @param value the new value 
      */
     public void setKey(Object key, Object value) {
-        apply("SetKey", key, value);
+        if (isTraced()) {
+            change("SetKey", List.of(key, value));
+        }
+    }
+
+    /**
+     * Notifies the tracer that the value for an integer key in a map is set to
+     * a number (without boxing the value; small keys are not allocated
+     * either).
+     * @param key   the key to set
+     * @param value the new value
+     */
+    public void setKeyLong(int key, long value) {
+        if (isTraced()) {
+            change("SetKey", key, TraceItem.LONG, value);
+        }
+    }
+
+    /**
+     * Notifies the tracer that the value for an integer key in a map is set to
+     * a boolean (without boxing the value).
+     * @param key   the key to set
+     * @param value the new value
+     */
+    public void setKeyBoolean(int key, boolean value) {
+        if (isTraced()) {
+            change("SetKey", key, TraceItem.BOOLEAN, value ? 1 : 0);
+        }
     }
 
     /**
@@ -235,13 +482,17 @@ public final class VirtualField {
      * @param val the new value of the record
      */
     public void updateRecord(Object val) {
-        apply("UpdateRec", val);
+        if (isTraced()) {
+            change("UpdateRec", List.of(val));
+        }
     }
 
     /**
      * Notifies the tracer that a record is initialised.
      */
     public void initRecord() {
-        apply("InitRec");
+        if (isTraced()) {
+            change("InitRec", List.of());
+        }
     }
 }
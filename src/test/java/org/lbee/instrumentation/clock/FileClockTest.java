@@ -0,0 +1,107 @@
+package org.lbee.instrumentation.clock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The FILE clock never gives the same time twice, even to several JVMs
+ * sharing the clock file, and gives increasing times to each thread.
+ */
+class FileClockTest {
+    private static final int PROCESSES = 3;
+    private static final int THREADS = 2;
+    private static final int TIMES = 20000;
+
+    @Test
+    void processesSharingTheClockFileGetDistinctTimes(@TempDir Path dir) throws Exception {
+        final String clockFile = dir.resolve("shared.clock").toString();
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final List<Process> children = new ArrayList<>();
+        final List<Path> outputs = new ArrayList<>();
+        for (int p = 0; p < PROCESSES; p++) {
+            final Path output = dir.resolve("times-" + p);
+            outputs.add(output);
+            children.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    Child.class.getName(), clockFile, output.toString(), THREADS + "", TIMES + "")
+                    .redirectErrorStream(true).redirectOutput(dir.resolve("log-" + p).toFile()).start());
+        }
+        for (int p = 0; p < PROCESSES; p++) {
+            final Process child = children.get(p);
+            assertTrue(child.waitFor(60, TimeUnit.SECONDS), "process " + p + " did not finish");
+            assertEquals(0, child.exitValue(),
+                    "process " + p + " failed: " + Files.readString(dir.resolve("log-" + p)));
+        }
+
+        // time -> "process p thread t", to name both owners of a duplicate
+        final Map<Long, String> owners = new HashMap<>();
+        for (int p = 0; p < PROCESSES; p++) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(outputs.get(p)))) {
+                for (int t = 0; t < THREADS; t++) {
+                    final String owner = "process " + p + " thread " + t;
+                    long previous = 0;
+                    for (int i = 0; i < TIMES; i++) {
+                        final long time = in.readLong();
+                        assertTrue(time > previous,
+                                owner + " got " + time + " after " + previous + " (time " + i + ")");
+                        previous = time;
+                        final String other = owners.put(time, owner);
+                        assertNull(other, "time " + time + " given to " + other + " and " + owner);
+                    }
+                }
+                assertEquals(-1, in.read(), "process " + p + " wrote more times than taken");
+            }
+        }
+        assertEquals(PROCESSES * THREADS * TIMES, owners.size(), "number of distinct times");
+    }
+
+    /**
+     * Body of a forked process: takes times from the FILE clock with several
+     * threads, then writes them to a file, thread after thread.
+     */
+    static class Child {
+        public static void main(String[] args) throws Exception {
+            final InstrumentationClock clock = ClockFactory.getClock(ClockFactory.FILE, args[0]);
+            final int threads = Integer.parseInt(args[2]);
+            final int times = Integer.parseInt(args[3]);
+            final long[][] values = new long[threads][times];
+            final Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final long[] mine = values[t];
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; i < times; i++) {
+                        mine[i] = clock.getNextTime();
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            try (OutputStream file = Files.newOutputStream(Path.of(args[1]));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                for (long[] mine : values) {
+                    for (long value : mine) {
+                        out.writeLong(value);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.lbee.instrumentation.clock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Times given by a {@link HybridClock} on a simulated wall clock.
+ */
+class HybridClockTest {
+    private static final long START = 1_700_000_000_000L;
+
+    @Test
+    void timesIncreaseWhateverTheWallClock() {
+        final AtomicLong wall = new AtomicLong(START);
+        final HybridClock clock = new HybridClock(wall::get);
+        assertEquals(HybridClock.of(START, 0), clock.getNextTime(0), "first time of a millisecond");
+        assertEquals(HybridClock.of(START, 1), clock.getNextTime(0), "second time of the same millisecond");
+        // the wall clock goes backwards: the counter goes on
+        wall.set(START - 1000);
+        assertEquals(HybridClock.of(START, 2), clock.getNextTime(0), "time after the wall clock went back");
+        // the wall clock is ahead again: the counter is reset
+        wall.set(START + 1);
+        assertEquals(HybridClock.of(START + 1, 0), clock.getNextTime(0), "time after the wall clock moved on");
+    }
+
+    @Test
+    void threadsGetDistinctIncreasingTimes() throws InterruptedException {
+        final HybridClock clock = new HybridClock();
+        final Map<Long, Integer> owners = new ConcurrentHashMap<>();
+        final Thread[] threads = new Thread[4];
+        final String[] failures = new String[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                long previous = 0;
+                for (int i = 0; i < 20000 && failures[index] == null; i++) {
+                    final long time = clock.getNextTime(0);
+                    final Integer other = owners.putIfAbsent(time, index);
+                    if (time <= previous || other != null) {
+                        failures[index] = "thread " + index + " got " + time + " after " + previous
+                                + (other != null ? ", also given to thread " + other : "");
+                    }
+                    previous = time;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (String failure : failures) {
+            assertNull(failure);
+        }
+        assertEquals(threads.length * 20000, owners.size(), "number of distinct times");
+    }
+
+    @Test
+    void receptionFollowsARemoteClockAhead() {
+        final AtomicLong wall = new AtomicLong(START);
+        final HybridClock clock = new HybridClock(wall::get);
+        clock.getNextTime(0);
+        // sent by a node whose wall clock is 5 s ahead
+        final long sent = HybridClock.of(START + 5000, 7);
+        final long received = clock.getNextTime(sent);
+        assertEquals(sent + 1, received, "reception right after the sending");
+        assertEquals(START + 5000, HybridClock.physicalTime(received), "wall clock of the sender kept");
+        assertEquals(8, HybridClock.logicalCount(received), "counter of the sender incremented");
+        // the later events of the receiver stay after the reception
+        wall.addAndGet(10);
+        assertEquals(sent + 2, clock.getNextTime(0), "event after the reception");
+        // until its own wall clock passes the clock of the sender
+        wall.set(START + 5001);
+        assertEquals(HybridClock.of(START + 5001, 0), clock.getNextTime(0), "event once the wall clock caught up");
+    }
+
+    @Test
+    void counterOverflowsIntoTheWallClock() {
+        final AtomicLong wall = new AtomicLong(START);
+        final HybridClock clock = new HybridClock(wall::get);
+        long time = 0;
+        for (long i = 0; i < 1L << HybridClock.LOGICAL_BITS; i++) {
+            time = clock.getNextTime(0);
+        }
+        assertEquals(HybridClock.of(START, (1L << HybridClock.LOGICAL_BITS) - 1), time, "last time of the counter");
+        final long overflow = clock.getNextTime(0);
+        assertTrue(overflow > time, overflow + " after " + time);
+        assertEquals(START + 1, HybridClock.physicalTime(overflow), "wall clock part ahead of the wall clock");
+        assertEquals(0, HybridClock.logicalCount(overflow), "counter after the overflow");
+        // the wall clock reaches the time that ran ahead: the counter goes on
+        wall.set(START + 1);
+        assertEquals(HybridClock.of(START + 1, 1), clock.getNextTime(0), "time once the wall clock caught up");
+    }
+}
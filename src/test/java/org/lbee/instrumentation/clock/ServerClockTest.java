@@ -0,0 +1,58 @@
+package org.lbee.instrumentation.clock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Requests of the {@link ServerClock} protocol, including invalid frames that
+ * must not move the shared clock.
+ */
+class ServerClockTest {
+    @Test
+    void invalidRequestsAreAnsweredWithoutMovingTheClock() throws Exception {
+        final ServerClock server = new ServerClock();
+        server.startInBackground(0);
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final long[][] requests = {
+                    { 10, 1 },
+                    { 0, 0 },
+                    { 0, -5 },
+                    { 0, ServerClock.MAX_BLOCK_SIZE + 1L },
+                    { 0, Long.MAX_VALUE },
+                    { Long.MAX_VALUE, 1 },
+                    { Long.MAX_VALUE - 10, 100 },
+                    { 0, ServerClock.MAX_BLOCK_SIZE },
+                    { 0, 1 } };
+            for (long[] request : requests) {
+                out.writeLong(request[0]);
+                out.writeLong(request[1]);
+            }
+            out.flush();
+            assertEquals(11, in.readLong(), "first time after the clock of the client");
+            for (int i = 1; i <= 6; i++) {
+                assertEquals(-1, in.readLong(), "request " + i + " is invalid");
+            }
+            assertEquals(12, in.readLong(), "a block right after the last time given");
+            assertEquals(12 + ServerClock.MAX_BLOCK_SIZE, in.readLong(), "the time after the block");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void reserveRejectsBlocksOutOfRange() {
+        final ServerClock server = new ServerClock();
+        assertThrows(IllegalArgumentException.class, () -> server.reserve(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> server.reserve(0, ServerClock.MAX_BLOCK_SIZE + 1L));
+        assertThrows(ArithmeticException.class, () -> server.reserve(Long.MAX_VALUE, 1));
+        assertEquals(1, server.getNextTime(0));
+    }
+}
@@ -0,0 +1,47 @@
+package org.lbee.instrumentation.helper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Precedence of the custom encoders over the types supported by the
+ * serializers.
+ */
+class ValueTypeTest {
+    private enum Color {
+        RED
+    }
+
+    @Test
+    void encoderOfAnInterfaceDoesNotApplyToStringsAndNumbers() throws IllegalAccessException {
+        NDJsonSerializer.registerEncoder(Comparable.class, Object::toString);
+        try {
+            assertEquals(ValueType.Kind.STRING, ValueType.of(String.class).kind());
+            assertEquals(ValueType.Kind.NUMBER, ValueType.of(Integer.class).kind());
+            assertEquals(ValueType.Kind.CUSTOM, ValueType.of(Color.class).kind());
+            assertEquals("[\"a\",1,true,\"RED\"]",
+                    NDJsonSerializer.jsonArrayOf(new Object[] { "a", 1, true, Color.RED }).toString());
+        } finally {
+            NDJsonSerializer.unregisterEncoder(Comparable.class);
+        }
+        assertEquals(ValueType.Kind.ENUM, ValueType.of(Color.class).kind());
+    }
+
+    @Test
+    void encoderReturningAValueItEncodesIsRejected() {
+        NDJsonSerializer.registerEncoder(Collection.class, c -> new ArrayList<>((Collection<?>) c));
+        try {
+            assertThrows(IllegalAccessException.class,
+                    () -> NDJsonSerializer.jsonArrayOf(List.of(new TreeSet<>(List.of(1, 2)))));
+        } finally {
+            NDJsonSerializer.unregisterEncoder(Collection.class);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.lbee.instrumentation.tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonParser;
+
+import org.lbee.instrumentation.clock.VectorClock;
+import org.lbee.instrumentation.trace.TLATracer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Order of the events of small traces written with vector clocks, once merged
+ * by the {@link CausalMerger}.
+ */
+class CausalMergerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentEventsAreOrderedByClock() throws IOException {
+        final String a = trace("a", event(3, "A1", "a", List.of(), 0, 1), event(4, "A2", "a", List.of(), 0, 2));
+        final String b = trace("b", event(1, "B1", "b", List.of(), 0, 1), event(6, "B2", "b", List.of(), 0, 2));
+        final CausalMerger merger = new CausalMerger(CausalMerger.Order.CLOCK, 0, false, false, 4);
+        assertEquals(List.of("{\"clock\":1,\"event\":\"B1\",\"logger\":\"b\"}",
+                "{\"clock\":3,\"event\":\"A1\",\"logger\":\"a\"}",
+                "{\"clock\":4,\"event\":\"A2\",\"logger\":\"a\"}",
+                "{\"clock\":6,\"event\":\"B2\",\"logger\":\"b\"}"), merge(merger, a, b),
+                "merged trace (vector clocks removed)");
+        assertEquals(0, merger.getUnresolved(), "events written before their causes");
+    }
+
+    @Test
+    void concurrentEventsAreInterleavedRandomly() throws IOException {
+        final String a = trace("a", event(1, "A1", "a", List.of(), 0, 1), event(2, "A2", "a", List.of(), 0, 2));
+        final String b = trace("b", event(1, "B1", "b", List.of(), 0, 1));
+        final Set<List<String>> orders = new HashSet<>();
+        for (long seed = 0; seed < 32; seed++) {
+            final CausalMerger merger = new CausalMerger(CausalMerger.Order.RANDOM, seed, true, false, 4);
+            final List<String> order = events(merge(merger, a, b));
+            assertTrue(order.indexOf("A1") < order.indexOf("A2"), "events of a tracer out of order: " + order);
+            orders.add(order);
+        }
+        assertEquals(Set.of(List.of("A1", "A2", "B1"), List.of("A1", "B1", "A2"), List.of("B1", "A1", "A2")),
+                orders, "linearizations of the concurrent events");
+    }
+
+    @Test
+    void receptionWaitsForItsSendingWithAGreaterClock() throws IOException {
+        // the clock of b is behind: the reception has a smaller clock than the
+        // sending it depends on (entry of a at 1)
+        final String a = trace("a", event(10, "Send", "a", List.of(), 0, 1), event(11, "A2", "a", List.of(), 0, 2));
+        final String b = trace("b", event(1, "B1", "b", List.of(), 0, 1),
+                event(2, "Receive", "b", List.of("a"), 0, 2, 1, 1), event(3, "B3", "b", List.of(), 0, 3));
+        final CausalMerger merger = new CausalMerger(CausalMerger.Order.CLOCK, 0, true, false, 4);
+        assertEquals(List.of("B1", "Send", "Receive", "B3", "A2"), events(merge(merger, a, b)), "merged events");
+        assertEquals(0, merger.getUnresolved(), "events written before their causes");
+    }
+
+    @Test
+    void deltasWrittenOutOfOrderAreReorderedByTheWindow() throws IOException {
+        // the tick 2 of b (which only gives the entry of a) is written before
+        // the tick 1 that adds a to the dictionary of b
+        final String a = trace("a", event(1, "Send1", "a", List.of(), 0, 1), event(2, "Send2", "a", List.of(), 0, 2));
+        final String b = trace("b", event(6, "Receive2", "b", List.of(), 0, 2, 1, 2),
+                event(5, "Receive1", "b", List.of("a"), 0, 1, 1, 1));
+        final CausalMerger merger = new CausalMerger(CausalMerger.Order.CLOCK, 0, false, true, 2);
+        assertEquals(List.of("{\"clock\":1,\"event\":\"Send1\",\"vclock\":{\"a\":1},\"logger\":\"a\"}",
+                "{\"clock\":2,\"event\":\"Send2\",\"vclock\":{\"a\":2},\"logger\":\"a\"}",
+                "{\"clock\":5,\"event\":\"Receive1\",\"vclock\":{\"a\":1,\"b\":1},\"logger\":\"b\"}",
+                "{\"clock\":6,\"event\":\"Receive2\",\"vclock\":{\"a\":2,\"b\":2},\"logger\":\"b\"}"),
+                merge(merger, a, b), "merged trace (full vector clocks)");
+        // without a window, the entry of a is unknown when the tick 2 is read
+        final IOException error = assertThrows(IOException.class,
+                () -> merge(new CausalMerger(CausalMerger.Order.CLOCK, 0, false, false, 1), a, b));
+        assertTrue(error.getMessage().startsWith("Unknown vector clock entry"), error.getMessage());
+    }
+
+    @Test
+    void tracersExchangingStampsAreMergedCausally() throws IOException {
+        final VectorClock clockA = new VectorClock("a");
+        final VectorClock clockB = new VectorClock("b");
+        final String a = dir.resolve("a.ndjson").toString();
+        final String b = dir.resolve("b.ndjson").toString();
+        final TLATracer tracerA = TLATracer.getTracer(a, clockA);
+        final TLATracer tracerB = TLATracer.getTracer(b, clockB);
+        tracerB.log("B1");
+        tracerB.log("B2");
+        tracerA.log("Send");
+        clockB.receive(clockA.stamp());
+        tracerB.log("Receive");
+        tracerA.log("A2");
+        tracerA.close();
+        tracerB.close();
+        // clocks: B1 1, B2 2, Send 1, Receive 3, A2 2 (ties in the order of the
+        // files)
+        final List<String> merged = merge(new CausalMerger(CausalMerger.Order.CLOCK, 0, true, false, 4), a, b);
+        assertEquals(List.of("Send", "B1", "A2", "B2", "Receive"), events(merged), "merged events");
+    }
+
+    private String trace(String name, String... events) throws IOException {
+        final Path path = dir.resolve(name + ".ndjson");
+        Files.write(path, List.of(events), StandardCharsets.UTF_8);
+        return path.toString();
+    }
+
+    /**
+     * An event as written by a tracer using a vector clock.
+     *
+     * @param ids     ids added to the dictionary of the tracer
+     * @param entries changed entries of the vector clock (index, value, ...)
+     */
+    private static String event(long clock, String name, String logger, List<String> ids, long... entries) {
+        final StringBuilder json = new StringBuilder("{\"clock\":").append(clock).append(",\"event\":\"")
+                .append(name).append('"');
+        if (!ids.isEmpty()) {
+            json.append(",\"vclock_ids\":[\"").append(String.join("\",\"", ids)).append("\"]");
+        }
+        json.append(",\"vclock\":[");
+        for (int e = 0; e < entries.length; e++) {
+            json.append(e > 0 ? "," : "").append(entries[e]);
+        }
+        return json.append("],\"logger\":\"").append(logger).append("\"}").toString();
+    }
+
+    private List<String> merge(CausalMerger merger, String... files) throws IOException {
+        final Path out = dir.resolve("merged.ndjson");
+        final long count = merger.merge(List.of(files), out.toString());
+        final List<String> lines = Files.readAllLines(out, StandardCharsets.UTF_8);
+        assertEquals(count, lines.size(), "events merged");
+        return lines;
+    }
+
+    private static List<String> events(List<String> lines) {
+        final List<String> events = new ArrayList<>();
+        for (String line : lines) {
+            events.add(JsonParser.parseString(line).getAsJsonObject().get("event").getAsString());
+        }
+        return events;
+    }
+}
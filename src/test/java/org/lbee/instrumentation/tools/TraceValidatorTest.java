@@ -0,0 +1,105 @@
+package org.lbee.instrumentation.tools;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Windows cut by the {@link TraceValidator} and aggregation of their verdicts,
+ * with a stub validation command.
+ */
+class TraceValidatorTest {
+    private static final int EVENTS = 35;
+    private static final int WINDOW = 10;
+    private static final int OVERLAP = 3;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void windowsOverlapStartFromTheStateAndReportTheFirstFailingLine() throws Exception {
+        // events 1..35 updating x to their number, a blank line after the third
+        // one; event 5 crashes the command, events 19 and 23 are rejected
+        final List<String> lines = new ArrayList<>();
+        for (int i = 1; i <= EVENTS; i++) {
+            lines.add(event(i, i == 5 ? "Crash" : i == 19 || i == 23 ? "Bad" : "Step"));
+            if (i == 3) {
+                lines.add("");
+            }
+        }
+        final Path trace = dir.resolve("trace.ndjson");
+        Files.write(trace, lines, StandardCharsets.UTF_8);
+        final Path copies = Files.createDirectory(dir.resolve("copies"));
+        // keeps a copy of each window, exits with 2 on a crash, prints the line
+        // of the first rejected event of the window
+        final String stub = "cp \"$1\" \"" + copies + "/$(basename \"$2\").ndjson\";"
+                + " if grep -q '\"Crash\"' \"$1\"; then exit 2; fi;"
+                + " L=$(grep -n '\"Bad\"' \"$1\" | head -n 1 | cut -d: -f1);"
+                + " if [ -n \"$L\" ]; then echo \"rejected at line $L\"; exit 1; fi";
+        final TraceValidator validator = new TraceValidator(List.of("sh", "-c", stub, "sh", "{trace}", "{dir}"),
+                WINDOW, OVERLAP, 2);
+        validator.setLinePattern(Pattern.compile("rejected at line (\\d+)"), 0);
+        validator.setDirectory(Files.createDirectory(dir.resolve("windows")).toFile());
+        final List<WindowVerdict> verdicts = validator.validate(trace.toString());
+
+        // windows of events 1-10, 8-20, 18-30 and 28-35 (trace lines one more
+        // after the blank line)
+        assertEquals(4, verdicts.size(), "windows: " + verdicts);
+        final long[][] expectedLines = { { 1, 11 }, { 9, 21 }, { 19, 31 }, { 29, 36 } };
+        for (int w = 0; w < verdicts.size(); w++) {
+            final WindowVerdict verdict = verdicts.get(w);
+            assertEquals(w, verdict.index(), "index of " + verdict);
+            assertEquals(expectedLines[w][0], verdict.firstLine(), "first line of " + verdict);
+            assertEquals(expectedLines[w][1], verdict.lastLine(), "last line of " + verdict);
+        }
+        assertFalse(verdicts.get(0).accepted(), "window with a crash");
+        assertEquals(2, verdicts.get(0).exitCode(), "exit status of the crash");
+        assertEquals(-1, verdicts.get(0).failingLine(), "failing line of the crash");
+        // event 19 is in the overlap of windows 1 and 2
+        assertFalse(verdicts.get(1).accepted(), "window with event 19");
+        assertEquals(20, verdicts.get(1).failingLine(), "failing line of window 1");
+        assertFalse(verdicts.get(2).accepted(), "window with events 19 and 23");
+        assertEquals(20, verdicts.get(2).failingLine(), "failing line of window 2");
+        assertTrue(verdicts.get(3).accepted(), "last window");
+        assertEquals(20, TraceValidator.firstFailingLine(verdicts), "first failing line");
+        assertEquals(0, validator.getReplayIssues(), "problems replaying the trace");
+
+        for (int w = 0; w < verdicts.size(); w++) {
+            final List<String> window = Files.readAllLines(copies.resolve(String.format("window-%05d.ndjson", w)),
+                    StandardCharsets.UTF_8);
+            // the state after the events before the window
+            final int first = Math.max(0, w * WINDOW - OVERLAP);
+            final JsonObject checkpoint = JsonParser.parseString(window.get(0)).getAsJsonObject();
+            assertEquals("__checkpoint", checkpoint.get("event").getAsString(), "first event of window " + w);
+            if (first == 0) {
+                assertFalse(checkpoint.has("x"), "state of window " + w + ": " + window.get(0));
+            } else {
+                assertEquals(first, checkpoint.getAsJsonArray("x").get(0).getAsJsonObject().getAsJsonArray("args")
+                        .get(0).getAsLong(), "state of window " + w + ": " + window.get(0));
+            }
+            final List<String> events = new ArrayList<>();
+            for (int i = first + 1; i <= Math.min((w + 1) * WINDOW, EVENTS); i++) {
+                events.add(lines.get(i <= 3 ? i - 1 : i));
+            }
+            assertEquals(events, window.subList(1, window.size()), "events of window " + w);
+        }
+    }
+
+    private static String event(int clock, String name) {
+        return "{\"clock\":" + clock + ",\"x\":[{\"op\":\"Update\",\"path\":[],\"args\":[" + clock + "]}],\"event\":\""
+                + name + "\"}";
+    }
+}
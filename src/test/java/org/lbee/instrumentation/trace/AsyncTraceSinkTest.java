@@ -0,0 +1,164 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Ordering, flush, close and overflow contract of the {@link AsyncTraceSink}.
+ */
+class AsyncTraceSinkTest {
+    /**
+     * A stream recording what is written and flushed to it, whose writes can
+     * be held back.
+     */
+    private static final class RecordingStream extends OutputStream {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream flushed = new ByteArrayOutputStream();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released;
+        private boolean closed;
+
+        private RecordingStream(boolean held) {
+            this.released = new CountDownLatch(held ? 1 : 0);
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            synchronized (this) {
+                written.write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized void flush() {
+            flushed.reset();
+            flushed.write(written.toByteArray(), 0, written.size());
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+
+        private synchronized String flushed() {
+            return flushed.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] event(String name) {
+        return ("{\"event\":\"" + name + "\"}\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void eventsOfEachThreadAreWrittenInOrder() throws Exception {
+        final RecordingStream stream = new RecordingStream(false);
+        final AsyncTraceSink sink = new AsyncTraceSink(stream, 16, 0, 0, AsyncTraceSink.OverflowPolicy.BLOCK);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) {
+                        sink.write(event(thread + "-" + i), 0, event(thread + "-" + i).length);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sink.close();
+        final int[] next = new int[4];
+        final String[] lines = stream.flushed().split("\n");
+        assertEquals(4000, lines.length);
+        for (String line : lines) {
+            final String name = line.substring("{\"event\":\"".length(), line.length() - 2);
+            final int thread = Integer.parseInt(name.substring(0, name.indexOf('-')));
+            assertEquals(next[thread]++, Integer.parseInt(name.substring(name.indexOf('-') + 1)),
+                    "event " + name + " out of order");
+        }
+        assertEquals(0, sink.getDroppedEvents());
+    }
+
+    @Test
+    void flushWritesTheEventsWrittenSoFar() throws Exception {
+        final RecordingStream stream = new RecordingStream(false);
+        final AsyncTraceSink sink = new AsyncTraceSink(stream, 16, 0, 0, AsyncTraceSink.OverflowPolicy.BLOCK);
+        final byte[] event = event("Flushed");
+        sink.write(event, 0, event.length);
+        sink.flush();
+        assertEquals("{\"event\":\"Flushed\"}\n", stream.flushed());
+        sink.close();
+    }
+
+    @Test
+    void closeFlushesThePendingEventsAndClosesTheStream() throws Exception {
+        final RecordingStream stream = new RecordingStream(false);
+        // no periodic flush: only close flushes
+        final AsyncTraceSink sink = new AsyncTraceSink(stream, 16, 0, 0, AsyncTraceSink.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 10; i++) {
+            sink.write(event("E" + i), 0, event("E" + i).length);
+        }
+        sink.close();
+        assertEquals(10, stream.flushed().split("\n").length);
+        assertTrue(stream.closed);
+        // closing again has no effect, writing and flushing fail
+        sink.close();
+        final byte[] event = event("Late");
+        assertThrows(IOException.class, () -> sink.write(event, 0, event.length));
+        assertThrows(IOException.class, sink::flush);
+    }
+
+    @Test
+    void eventsOverflowingTheQueueAreDroppedAndCounted() throws Exception {
+        final RecordingStream stream = new RecordingStream(true);
+        final AsyncTraceSink sink = new AsyncTraceSink(stream, 4, 0, 0, AsyncTraceSink.OverflowPolicy.DROP);
+        assertFalse(sink.isContiguous());
+        // larger than the buffer of the sink: written through, and held back
+        final byte[] large = new byte[1 << 17];
+        Arrays.fill(large, (byte) ' ');
+        large[large.length - 1] = '\n';
+        sink.write(large, 0, large.length);
+        stream.entered.await();
+        // the writer is held back: 4 events fill the queue, the others are dropped
+        for (int i = 0; i < 10; i++) {
+            sink.write(event("E" + i), 0, event("E" + i).length);
+        }
+        assertEquals(6, sink.getDroppedEvents());
+        stream.released.countDown();
+        sink.close();
+        final String[] lines = stream.flushed().split("\n");
+        assertEquals(5, lines.length);
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(event("E" + i), (lines[i + 1] + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.lbee.instrumentation.clock.ClockFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The checkpoints written by concurrent threads are not older than the events
+ * before them, and contain the state reached by these events.
+ */
+class CheckpointTest {
+    private static final int THREADS = 8;
+    private static final int EVENTS = 20000;
+
+    @Test
+    void checkpointFollowsTheClockOfTheEventsBeforeIt() throws Exception {
+        final StringBuilder trace = new StringBuilder();
+        final TraceSink sink = new TraceSink() {
+            @Override
+            public synchronized void write(byte[] event, int offset, int length) {
+                trace.append(new String(event, offset, length, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final TLATracer tracer = TLATracer.getTracer(sink, ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.PER_THREAD);
+        final long[] counters = new long[THREADS];
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            final VirtualField counter = tracer.getVariableTracer("counters").getField(index);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < EVENTS; i++) {
+                        synchronized (counters) {
+                            counters[index]++;
+                            counter.update(counters[index]);
+                        }
+                        tracer.log("Increment", new Object[] { index });
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        tracer.registerSnapshot("counters", () -> {
+            synchronized (counters) {
+                return counters.clone();
+            }
+        });
+        tracer.setCheckpointInterval(1, 0);
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        tracer.close();
+        assertTrue(tracer.getCheckpoints() > 0);
+
+        long max = Long.MIN_VALUE;
+        final long[] replayed = new long[THREADS];
+        try (BufferedReader reader = new BufferedReader(new StringReader(trace.toString()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final JsonObject event = JsonParser.parseString(line).getAsJsonObject();
+                final long clock = event.get("clock").getAsLong();
+                for (JsonElement element : event.getAsJsonArray("counters")) {
+                    final JsonObject change = element.getAsJsonObject();
+                    final JsonArray path = change.getAsJsonArray("path");
+                    final JsonElement value = change.getAsJsonArray("args").get(0);
+                    if (path.isEmpty()) {
+                        assertTrue(clock >= max, "checkpoint at " + clock + " after an event at " + max);
+                        for (int t = 0; t < THREADS; t++) {
+                            assertEquals(replayed[t], value.getAsJsonArray().get(t).getAsLong());
+                        }
+                    } else {
+                        replayed[path.get(0).getAsInt()] = value.getAsLong();
+                    }
+                }
+                max = Math.max(max, clock);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.lbee.instrumentation.clock.ClockFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * An event whose serialization fails does not corrupt the events encoded
+ * after it.
+ */
+class EventEncoderTest {
+    /**
+     * A sink keeping the events in memory.
+     */
+    private static final class MemorySink implements TraceSink {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public void write(byte[] event, int offset, int length) {
+            bytes.write(event, offset, length);
+        }
+
+        @Override
+        public boolean isContiguous() {
+            return true;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A list whose second element cannot be read: the serialization fails
+     * after a part of the event is encoded.
+     */
+    private static final class FailingList extends AbstractList<Object> {
+        @Override
+        public Object get(int index) {
+            if (index == 1) {
+                throw new IllegalStateException("Failing element");
+            }
+            return "first";
+        }
+
+        @Override
+        public int size() {
+            return 3;
+        }
+    }
+
+    /**
+     * A collection changed while it is serialized: it has one element less
+     * than its size when iterated.
+     */
+    private static final class ShrinkingCollection<E> extends AbstractCollection<E> {
+        private final List<E> elements;
+
+        private ShrinkingCollection(List<E> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return elements.subList(1, elements.size()).iterator();
+        }
+
+        @Override
+        public int size() {
+            return elements.size();
+        }
+    }
+
+    private static String trace(TraceFormat format, Object value) throws Exception {
+        final MemorySink sink = new MemorySink();
+        final TLATracer tracer = TLATracer.getTracer(sink, ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.GLOBAL, format);
+        tracer.getVariableTracer("x").update(value);
+        tracer.log("Set");
+        tracer.getVariableTracer("x").update("after");
+        tracer.log("Set");
+        tracer.close();
+        if (format == TraceFormat.NDJSON) {
+            return sink.bytes.toString(StandardCharsets.UTF_8).replaceAll(",\"logger\":\"[^\"]*\"", "");
+        }
+        final StringWriter out = new StringWriter();
+        BinaryTraceTranscoder.transcode(new ByteArrayInputStream(sink.bytes.toByteArray()), out);
+        return out.toString().replaceAll(",\"logger\":\"[^\"]*\"", "");
+    }
+
+    @Test
+    void collectionsChangedWhileEncodedKeepTheBinaryTraceReadable() throws Exception {
+        final Collection<Map.Entry<String, Object>> entries = new ShrinkingCollection<>(
+                List.of(Map.entry("a", 1), Map.entry("b", 2), Map.entry("c", 3)));
+        final Map<String, Object> map = new AbstractMap<>() {
+            @Override
+            public Set<Map.Entry<String, Object>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator() {
+                        return entries.iterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return entries.size();
+                    }
+                };
+            }
+        };
+        final Object value = List.of(new ShrinkingCollection<>(List.of("a", "b", "c")), map);
+        final String ndjson = trace(TraceFormat.NDJSON, value);
+        assertEquals("{\"clock\":1,\"x\":[{\"op\":\"Update\",\"path\":[],"
+                + "\"args\":[[[\"b\",\"c\"],{\"b\":2,\"c\":3}]]}],\"event\":\"Set\"}",
+                ndjson.substring(0, ndjson.indexOf('\n')));
+        assertEquals(ndjson, trace(TraceFormat.BINARY, value));
+    }
+
+    @ParameterizedTest
+    @EnumSource(TraceFormat.class)
+    void eventAfterAFailedEventIsIntact(TraceFormat format) throws Exception {
+        final MemorySink sink = new MemorySink();
+        final TLATracer tracer = TLATracer.getTracer(sink, ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.GLOBAL, format);
+        final VirtualField y = tracer.getVariableTracer("y");
+        // the strings of the failed event are new to the binary dictionary
+        y.update(new FailingList());
+        assertThrows(IllegalStateException.class, () -> tracer.log("Failed", new Object[] { "failed arg" }));
+        y.update(List.of("first", "second"));
+        tracer.log("Succeeded", new Object[] { "first" });
+        tracer.close();
+
+        final String trace;
+        if (format == TraceFormat.BINARY) {
+            final StringWriter out = new StringWriter();
+            assertEquals(1, BinaryTraceTranscoder.transcode(new ByteArrayInputStream(sink.bytes.toByteArray()), out));
+            trace = out.toString();
+        } else {
+            trace = sink.bytes.toString(StandardCharsets.UTF_8);
+        }
+        final String[] lines = trace.split("\n");
+        assertEquals(1, lines.length, "trace " + trace);
+        final JsonObject event = JsonParser.parseString(lines[0]).getAsJsonObject();
+        event.remove("clock");
+        event.remove("logger");
+        assertEquals(JsonParser.parseString("{\"y\":[{\"op\":\"Update\",\"path\":[],"
+                + "\"args\":[[\"first\",\"second\"]]}],\"event\":\"Succeeded\",\"event_args\":[\"first\"]}"), event);
+    }
+}
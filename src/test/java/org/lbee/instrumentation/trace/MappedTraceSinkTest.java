@@ -0,0 +1,196 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.lbee.instrumentation.clock.ClockFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Durability of the {@link MappedTraceSink}: the events logged by a JVM killed
+ * with SIGKILL are recovered by {@link MappedTraceRecovery}, a ring can be
+ * recovered while it is written, and appended events are recovered across
+ * regions (the latency of a write is measured by the benchmarks).
+ */
+class MappedTraceSinkTest {
+    // delay before the logging JVM is killed
+    private static final long KILL_AFTER_MILLIS = 1500;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Body of the killed JVM: log events until killed, printing the number of
+     * events logged every 1000 events.
+     */
+    public static void main(String[] args) throws Exception {
+        final TLATracer tracer = TLATracer.getTracer(
+                new MappedTraceSink(args[0], MappedTraceSink.Mode.valueOf(args[1]), Long.parseLong(args[2])),
+                ClockFactory.getClock(ClockFactory.MEMORY));
+        final VirtualField messages = tracer.getVariableTracer("messages");
+        for (long i = 1;; i++) {
+            messages.getField((int) (i % 4)).getField("log").append("some payload value " + i);
+            tracer.log("AppendEntries", new Object[] { i % 4 });
+            if (i % 1000 == 0) {
+                System.out.println(i);
+                System.out.flush();
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(MappedTraceSink.Mode.class)
+    void killedProcessKeepsLoggedEvents(MappedTraceSink.Mode mode) throws Exception {
+        final File mapped = dir.resolve("trace.mapped").toFile();
+        final long regionSize = mode == MappedTraceSink.Mode.APPEND ? 1L << 20 : 4L << 20;
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                MappedTraceSinkTest.class.getName(), mapped.getPath(), mode.name(), regionSize + "")
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        // the child prints the number of events logged so far
+        final long[] logged = { 0 };
+        final Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    synchronized (logged) {
+                        logged[0] = Long.parseLong(line);
+                    }
+                }
+            } catch (IOException e) {
+                // the child was killed
+            }
+        });
+        reader.start();
+        Thread.sleep(KILL_AFTER_MILLIS);
+        final long acknowledged;
+        synchronized (logged) {
+            acknowledged = logged[0];
+        }
+        // SIGKILL
+        child.destroyForcibly().waitFor();
+        reader.join();
+        assertTrue(acknowledged > 0, "no event logged before the kill");
+
+        final File recovered = dir.resolve("trace.ndjson").toFile();
+        final MappedTraceRecovery recovery = new MappedTraceRecovery();
+        final long count;
+        try (OutputStream out = new FileOutputStream(recovered)) {
+            count = recovery.recover(mapped.getPath(), out);
+        }
+        // the clock of the events is their number: the recovered events are the
+        // last ones, consecutive and complete
+        final List<String> lines = Files.readAllLines(recovered.toPath(), StandardCharsets.UTF_8);
+        assertEquals(count, lines.size());
+        long previous = -1;
+        for (String line : lines) {
+            final long clock = clockOf(line);
+            assertTrue(line.endsWith("}"), "truncated event " + line);
+            assertTrue(previous < 0 || clock == previous + 1, "event " + clock + " after " + previous);
+            previous = clock;
+        }
+        if (mode == MappedTraceSink.Mode.APPEND) {
+            assertEquals(1, clockOf(lines.get(0)));
+        }
+        assertTrue(previous >= acknowledged, "last event recovered " + previous + ", " + acknowledged + " logged");
+    }
+
+    @Test
+    void ringIsRecoveredWhileWritten() throws Exception {
+        final String mapped = dir.resolve("ring.mapped").toString();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final TraceSink sink = new MappedTraceSink(mapped, MappedTraceSink.Mode.RING, 1 << 16);
+        final Thread writer = new Thread(() -> {
+            try {
+                for (long clock = 1; !stop.get(); clock++) {
+                    final byte[] event = ("{\"clock\":" + clock + ",\"event\":\"Tick\",\"logger\":\"n1\"}\n")
+                            .getBytes(StandardCharsets.UTF_8);
+                    sink.write(event, 0, event.length);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+        try {
+            final MappedTraceRecovery recovery = new MappedTraceRecovery();
+            for (int run = 0; run < 200; run++) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final long count = recovery.recover(mapped, out);
+                final String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+                assertEquals(count, out.size() == 0 ? 0 : lines.length);
+                long previous = -1;
+                for (String line : lines) {
+                    if (count > 0) {
+                        // events overwritten during the recovery are skipped
+                        assertTrue(line.endsWith("\"logger\":\"n1\"}"), "truncated event " + line);
+                        assertTrue(clockOf(line) > previous);
+                        previous = clockOf(line);
+                    }
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+            sink.close();
+        }
+    }
+
+    @Test
+    void appendedEventsCrossRegions() throws Exception {
+        final String mapped = dir.resolve("append.mapped").toString();
+        final int regionSize = 4096;
+        final Random random = new Random(7);
+        final List<String> events = new ArrayList<>();
+        try (TraceSink sink = new MappedTraceSink(mapped, MappedTraceSink.Mode.APPEND, regionSize)) {
+            for (int clock = 1; clock <= 2000; clock++) {
+                // mostly small events, some filling a whole region (record header
+                // of 16 bytes)
+                final int length = clock % 500 == 0 ? regionSize - 16 : 40 + random.nextInt(600);
+                final String prefix = "{\"clock\":" + clock + ",\"pad\":\"";
+                final String event = prefix + "x".repeat(length - prefix.length() - 3) + "\"}\n";
+                assertEquals(length, event.length(), "length of event " + clock);
+                final byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+                sink.write(bytes, 0, bytes.length);
+                events.add(event);
+            }
+            sink.flush();
+            final long size = Files.size(Path.of(mapped));
+            assertTrue(size > 100L * regionSize, "only " + size + " bytes mapped");
+            assertRecovered(events, mapped, "before close");
+        }
+        assertRecovered(events, mapped, "after close");
+    }
+
+    private static void assertRecovered(List<String> events, String mapped, String when) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long count = new MappedTraceRecovery().recover(mapped, out);
+        assertEquals(events.size(), count, "events recovered " + when);
+        assertEquals(String.join("", events), out.toString(StandardCharsets.UTF_8), "trace recovered " + when);
+    }
+
+    private static long clockOf(String line) {
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return SegmentedTraceSink.clockOf(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,188 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.stream.JsonWriter;
+
+import org.lbee.instrumentation.tools.TraceReplayer;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The coalesced actions of a variable lead to the same state as all the
+ * actions, when replayed with the semantics of <code>TVOperators.tla</code>.
+ */
+class TraceCoalescerTest {
+    // v = [a |-> [x |-> 0, y |-> 0], b |-> [x |-> 0, y |-> 0], s |-> {}, n |-> 0]
+    private static final String INITIAL = "{\"a\":{\"x\":0,\"y\":0},\"b\":{\"x\":0,\"y\":0},\"s\":[],\"n\":0}";
+    private static final int SEQUENCES = 2000;
+
+    @Test
+    void overwrittenActionsAreDropped() throws Exception {
+        final List<TraceItem> items = List.of(
+                item("Update", List.of("a", "x"), 1L),
+                item("Add", List.of("a", "x"), 2L),
+                item("SetKey", List.of("a"), "y", 3L),
+                item("AddElement", List.of("s"), 1L),
+                item("Update", List.of("a"), record(4L, 5L)));
+        assertCoalesced(List.of(items.get(3), items.get(4)), items);
+    }
+
+    @Test
+    void onlyTheLastActionOnAnElementIsKept() throws Exception {
+        final List<TraceItem> items = List.of(
+                item("AddElement", List.of("s"), 1L),
+                item("AddElement", List.of("s"), 2L),
+                item("RemoveElement", List.of("s"), 1L),
+                item("AddElement", List.of("s"), 2L));
+        assertCoalesced(List.of(items.get(2), items.get(3)), items);
+    }
+
+    @Test
+    void consecutiveAddAndSubAreSummed() throws Exception {
+        final List<TraceItem> items = List.of(
+                item("Add", List.of("n"), 3L),
+                item("Sub", List.of("n"), 5L),
+                item("Add", List.of("n"), 1L),
+                item("Add", List.of("a", "x"), 7L));
+        assertCoalesced(List.of(item("Sub", List.of("n"), 1), items.get(3)), items);
+    }
+
+    @Test
+    void consecutiveUpdateRecAreMerged() throws Exception {
+        final List<TraceItem> items = List.of(
+                item("UpdateRec", List.of("b"), Map.of("x", 1L)),
+                item("UpdateRec", List.of("b"), Map.of("y", 2L)),
+                item("UpdateRec", List.of("b"), Map.of("x", 3L)));
+        assertCoalesced(List.of(item("UpdateRec", List.of("b"), record(3L, 2L))), items);
+    }
+
+    @Test
+    void actionsAreNotFoldedBeyondTheLookahead() throws Exception {
+        // 63 actions between the two updates: the first one is dropped
+        assertEquals(64, TraceCoalescer.coalesce(updatesAround(63)).size(), "actions kept within the lookahead");
+        // 64 actions between them: the second one is not seen from the first one
+        assertEquals(66, TraceCoalescer.coalesce(updatesAround(64)).size(), "actions kept beyond the lookahead");
+        assertSameState(updatesAround(64), "updates around 64 element actions");
+    }
+
+    @Test
+    void coalescedActionsLeadToTheSameState() throws Exception {
+        final Random random = new Random(42);
+        int folded = 0;
+        for (int sequence = 0; sequence < SEQUENCES; sequence++) {
+            final List<TraceItem> items = new ArrayList<>();
+            final int length = 1 + random.nextInt(sequence % 10 == 0 ? 150 : 20);
+            for (int i = 0; i < length; i++) {
+                items.add(randomItem(random));
+            }
+            folded += items.size() - assertSameState(items, "sequence " + sequence);
+        }
+        // the sequences exercise the folding rules
+        assertTrue(folded > SEQUENCES, "only " + folded + " actions folded");
+    }
+
+    /**
+     * Update n, then element actions on distinct values of s, then Update n.
+     */
+    private static List<TraceItem> updatesAround(int between) {
+        final List<TraceItem> items = new ArrayList<>();
+        items.add(item("Update", List.of("n"), 1L));
+        for (long i = 0; i < between; i++) {
+            items.add(item("AddElement", List.of("s"), i));
+        }
+        items.add(item("Update", List.of("n"), 2L));
+        return items;
+    }
+
+    private static TraceItem randomItem(Random random) {
+        final long value = random.nextInt(4);
+        final List<Object> record = List.of(random.nextBoolean() ? "a" : "b");
+        final List<Object> field = List.of(record.get(0), random.nextBoolean() ? "x" : "y");
+        switch (random.nextInt(12)) {
+            case 0:
+                return item("Update", field, value);
+            case 1:
+                return item("Update", record, record(value, random.nextInt(4)));
+            case 2:
+                return item("SetKey", record, random.nextBoolean() ? "x" : "y", value);
+            case 3:
+                return item(random.nextBoolean() ? "Add" : "Sub", field, value);
+            case 4:
+                return item(random.nextBoolean() ? "Add" : "Sub", List.of("n"), value);
+            case 5:
+            case 6:
+                return item(random.nextBoolean() ? "AddElement" : "RemoveElement", List.of("s"), value);
+            case 7:
+                return item("Clear", List.of("s"));
+            case 8:
+                return item("UpdateRec", record,
+                        random.nextBoolean() ? Map.of("x", value) : Map.of("x", value, "y", value + 1));
+            case 9:
+                return item("UpdateRec", record, Map.of("y", value));
+            case 10:
+                return item("Init", random.nextInt(4) == 0 ? List.of() : record);
+            default:
+                return item("Update", List.of("n"), value);
+        }
+    }
+
+    private static void assertCoalesced(List<TraceItem> expected, List<TraceItem> items) throws Exception {
+        final List<TraceItem> coalesced = TraceCoalescer.coalesce(items);
+        assertEquals(json(expected), json(coalesced), "coalesced actions");
+        assertSameState(items, json(items));
+    }
+
+    /**
+     * Replays the actions with and without coalescing.
+     *
+     * @return the number of actions kept
+     */
+    private static int assertSameState(List<TraceItem> items, String message) throws Exception {
+        final List<TraceItem> coalesced = TraceCoalescer.coalesce(items);
+        final Map<String, Object> expected = replay(items);
+        final Map<String, Object> actual = replay(coalesced);
+        assertEquals(expected, actual, message + ": " + json(items) + " coalesced into " + json(coalesced));
+        return coalesced.size();
+    }
+
+    private static Map<String, Object> replay(List<TraceItem> items) throws Exception {
+        final TraceReplayer replayer = new TraceReplayer();
+        replayer.setDefault("v", INITIAL);
+        replayer.replayEvent("{\"clock\":1,\"v\":[{\"op\":\"Init\",\"path\":[],\"args\":[]}]}", 1);
+        replayer.replayEvent("{\"clock\":2,\"v\":" + json(items) + "}", 2);
+        assertEquals(0, replayer.getIssueCount(), "problems replaying " + json(items) + ": " + replayer.getIssues());
+        return replayer.getState();
+    }
+
+    private static String json(List<TraceItem> items) throws Exception {
+        final StringWriter out = new StringWriter();
+        final JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (TraceItem item : items) {
+            item.write(writer);
+        }
+        writer.endArray();
+        writer.flush();
+        return out.toString();
+    }
+
+    private static TraceItem item(String action, List<Object> path, Object... args) {
+        return new TraceItem(action, path, List.of(args));
+    }
+
+    private static Map<String, Object> record(long x, long y) {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("x", x);
+        record.put("y", y);
+        return record;
+    }
+}
@@ -0,0 +1,62 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.lbee.instrumentation.clock.ClockFactory;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The index written by a tracer gives the offsets of the events in the trace
+ * file, and is only enabled for the sinks where these offsets are known.
+ */
+class TraceIndexTest {
+    private static final int EVENTS = 1000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void indexWrittenByTheTracerFindsTheEvents() throws Exception {
+        final String trace = dir.resolve("trace.ndjson").toString();
+        final List<TraceSink> sinks = List.of(new FileTraceSink(trace),
+                new AsyncTraceSink(trace + ".async", 16, 0, 0, AsyncTraceSink.OverflowPolicy.BLOCK));
+        for (TraceSink sink : sinks) {
+            final String path = sink instanceof FileTraceSink ? trace : trace + ".async";
+            final TLATracer tracer = TLATracer.getTracer(sink, ClockFactory.getClock(ClockFactory.MEMORY));
+            tracer.enableIndex(path + ".idx");
+            final VirtualField x = tracer.getVariableTracer("x");
+            for (int i = 0; i < EVENTS; i++) {
+                x.update(i);
+                tracer.log(i % 2 == 0 ? "Even" : "Odd", new Object[] { i });
+            }
+            tracer.close();
+            try (TraceIndex index = TraceIndex.open(path)) {
+                assertEquals(EVENTS, index.getEvents());
+                assertEquals(EVENTS / 2, index.findEvents("Odd").length);
+                for (long clock = 1; clock <= EVENTS; clock += 97) {
+                    final String event = index.readEvent(index.findClock(clock));
+                    assertEquals(clock, Long.parseLong(event.substring("{\"clock\":".length(), event.indexOf(','))));
+                }
+            }
+        }
+    }
+
+    @Test
+    void indexIsRejectedWhenTheOffsetsAreUnknown() throws Exception {
+        final String trace = dir.resolve("trace").toString();
+        final List<TraceSink> sinks = List.of(
+                new AsyncTraceSink(trace + ".ndjson", 16, 0, 0, AsyncTraceSink.OverflowPolicy.DROP),
+                new SegmentedTraceSink(trace), new MappedTraceSink(trace + ".mapped"));
+        for (TraceSink sink : sinks) {
+            final TLATracer tracer = TLATracer.getTracer(sink, ClockFactory.getClock(ClockFactory.MEMORY));
+            assertThrows(IllegalStateException.class, () -> tracer.enableIndex(trace + ".idx"));
+            tracer.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.lbee.instrumentation.clock.ClockFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * The metrics of a {@link TLATracer} match the trace written and the changes
+ * not logged yet.
+ */
+class TracerMetricsTest {
+    /**
+     * A sink keeping the events in memory.
+     */
+    private static final class MemorySink implements TraceSink {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int events;
+
+        @Override
+        public synchronized void write(byte[] event, int offset, int length) {
+            bytes.write(event, offset, length);
+            events++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(UpdateScope.class)
+    void countersMatchTheTrace(UpdateScope scope) throws Exception {
+        final MemorySink sink = new MemorySink();
+        final TLATracer tracer = TLATracer.getTracer(sink, ClockFactory.getClock(ClockFactory.MEMORY), scope);
+        final VirtualField x = tracer.getVariableTracer("x");
+        for (int i = 0; i < 1000; i++) {
+            x.update(i);
+            tracer.log("Set", new Object[] { i });
+        }
+        final TracerMetrics metrics = tracer.getMetrics();
+        assertEquals(sink.events, metrics.eventsLogged());
+        assertEquals(sink.bytes.size(), metrics.bytesWritten());
+        assertEquals(Map.of(), metrics.pendingUpdates());
+        tracer.close();
+    }
+
+    @Test
+    void pendingUpdatesOfAllTheThreadsAreCounted() throws Exception {
+        final TLATracer tracer = TLATracer.getTracer(new MemorySink(), ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.PER_THREAD);
+        final VirtualField x = tracer.getVariableTracer("x");
+        final VirtualField y = tracer.getVariableTracer("y");
+        x.update(1);
+        x.update(2);
+        final Thread other = new Thread(() -> {
+            x.update(3);
+            y.update(4);
+        });
+        other.start();
+        other.join();
+        assertEquals(Map.of("x", 3, "y", 1), tracer.getMetrics().pendingUpdates());
+        // only the changes of the logging thread are logged
+        tracer.log("Set");
+        assertEquals(Map.of("x", 1, "y", 1), tracer.getMetrics().pendingUpdates());
+        tracer.close();
+    }
+
+    @Test
+    void pendingUpdatesAreReadWhileThreadsLog() throws Exception {
+        final TLATracer tracer = TLATracer.getTracer(new MemorySink(), ClockFactory.getClock(ClockFactory.MEMORY),
+                UpdateScope.PER_THREAD);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(4);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final VirtualField field = tracer.getVariableTracer("v" + (t % 2));
+            threads.add(new Thread(() -> {
+                started.countDown();
+                try {
+                    for (long i = 0; !stop.get(); i++) {
+                        field.update(i);
+                        field.update(i + 1);
+                        tracer.log("Set");
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        started.await();
+        for (int i = 0; i < 10000; i++) {
+            for (int count : tracer.getMetrics().pendingUpdates().values()) {
+                assertTrue(count > 0, "pending " + count);
+            }
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Map.of(), tracer.getMetrics().pendingUpdates());
+        tracer.close();
+    }
+}
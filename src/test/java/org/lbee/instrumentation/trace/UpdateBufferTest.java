@@ -0,0 +1,104 @@
+package org.lbee.instrumentation.trace;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Semantics of the two {@link UpdateBuffer}s: which changes a drain takes,
+ * and in which order.
+ */
+class UpdateBufferTest {
+    private static TraceItem change(long value) {
+        return new TraceItem("Update", FieldPath.ROOT, List.of(value));
+    }
+
+    private static long valueOf(TraceItem item) {
+        return (Long) item.args().get(0);
+    }
+
+    @Test
+    void globalDrainTakesAllTheChangesInNotificationOrder() {
+        final UpdateBuffer buffer = new GlobalUpdateBuffer();
+        buffer.add("y", change(1));
+        buffer.add("x", change(2));
+        buffer.add("y", change(3));
+        final Map<String, List<TraceItem>> drained = buffer.drain();
+        // variables in the order of their first change
+        assertEquals(List.of("y", "x"), new ArrayList<>(drained.keySet()));
+        assertEquals(List.of(1L, 3L), drained.get("y").stream().map(UpdateBufferTest::valueOf).toList());
+        assertEquals(Map.of(), buffer.drain());
+    }
+
+    @Test
+    void globalChangeIsDrainedExactlyOnceUnderContention() throws Exception {
+        final UpdateBuffer buffer = new GlobalUpdateBuffer();
+        final AtomicBoolean stop = new AtomicBoolean();
+        final ConcurrentLinkedQueue<Long> drained = new ConcurrentLinkedQueue<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final long first = t * 100000L;
+            threads.add(new Thread(() -> {
+                for (long i = first; i < first + 20000; i++) {
+                    buffer.add("x", change(i));
+                }
+            }));
+        }
+        final Thread drainer = new Thread(() -> {
+            while (!stop.get()) {
+                for (TraceItem item : buffer.drain().getOrDefault("x", List.of())) {
+                    drained.add(valueOf(item));
+                }
+            }
+        });
+        drainer.start();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        stop.set(true);
+        drainer.join();
+        for (TraceItem item : buffer.drain().getOrDefault("x", List.of())) {
+            drained.add(valueOf(item));
+        }
+        final Set<Long> distinct = new HashSet<>(drained);
+        assertEquals(80000, drained.size(), "changes lost or drained twice");
+        assertEquals(80000, distinct.size(), "change drained twice");
+        // the changes of each thread are drained in the order they were added
+        final long[] last = { -1, -1, -1, -1 };
+        for (long value : drained) {
+            final int thread = (int) (value / 100000);
+            assertTrue(value > last[thread], "change " + value + " after " + last[thread]);
+            last[thread] = value;
+        }
+    }
+
+    @Test
+    void perThreadDrainTakesOnlyTheChangesOfTheCallingThread() throws Exception {
+        final UpdateBuffer buffer = new ThreadLocalUpdateBuffer();
+        buffer.add("x", change(1));
+        final List<Map<String, List<TraceItem>>> other = new ArrayList<>();
+        final Thread thread = new Thread(() -> {
+            buffer.add("x", change(2));
+            buffer.add("y", change(3));
+            other.add(buffer.drain());
+        });
+        thread.start();
+        thread.join();
+        assertEquals(List.of(2L), other.get(0).get("x").stream().map(UpdateBufferTest::valueOf).toList());
+        assertEquals(List.of(3L), other.get(0).get("y").stream().map(UpdateBufferTest::valueOf).toList());
+        final Map<String, List<TraceItem>> mine = buffer.drain();
+        assertEquals(Set.of("x"), mine.keySet());
+        assertEquals(List.of(1L), mine.get("x").stream().map(UpdateBufferTest::valueOf).toList());
+        assertEquals(Map.of(), buffer.drain());
+    }
+}
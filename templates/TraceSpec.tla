@@ -50,6 +50,13 @@ IsStuttering ==
     /\ IsEvent("Stuttering")
     /\ UNCHANGED Vars
 
+(* Checkpoints set the variables to the values they already have, except on *)
+(* the first line, where they give the state at the start of a window of the *)
+(* trace (see TraceValidator) *)
+IsCheckpoint ==
+    /\ IsEvent("__checkpoint")
+    /\ l = 1 \/ UNCHANGED Vars
+
 TraceSpec ==
     \* Because of  [A]_v <=> A \/ v=v'  , the following formula is logically
      \* equivalent to the (canonical) Spec formula Init /\ [][Next]_vars.
@@ -57,7 +64,7 @@ TraceSpec ==
      \* states of a *seen* state.  Since one or more states may appear one or
      \* more times in the the trace, the  UNCHANGED vars  combined with the
      \*  TraceView  that includes  TLCGet("level")  is our workaround.
-    TraceInit /\ [][TraceNext \/ IsStuttering]_<<l, Vars>>
+    TraceInit /\ [][TraceNext \/ IsStuttering \/ IsCheckpoint]_<<l, Vars>>
 
 TraceAccepted ==
     LET d == TLCGet("stats").diameter IN